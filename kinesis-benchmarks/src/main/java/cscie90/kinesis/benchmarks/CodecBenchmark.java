@@ -0,0 +1,158 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import cscie90.kinesis.BufferPool;
+import cscie90.kinesis.LengthPrefixedCodec;
+import cscie90.kinesis.PayloadCompressor;
+import cscie90.kinesis.RecordAggregator;
+import cscie90.kinesis.RecordDeaggregator;
+import cscie90.kinesis.Utf8StringCodec;
+
+/**
+ * Encoding and decoding of a single payload: the UTF-8 and length-prefixed codecs with a
+ * pooled buffer, deflate compression of demo-like text, and packing 100 user records into
+ * an aggregated record and back.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	private static final int USER_RECORDS = 100;
+
+	@Param({"100", "4096"})
+	public int payloadBytes;
+
+	private final Utf8StringCodec utf8 = new Utf8StringCodec();
+	private final LengthPrefixedCodec frames = new LengthPrefixedCodec();
+	private final BufferPool pool = BufferPool.getDefault();
+
+	private String text;
+	private ByteBuffer encodedText;
+	private List<ByteBuffer> frameList;
+	private ByteBuffer encodedFrames;
+	private ByteBuffer payload;
+	private String[] partitionKeys;
+	private RecordAggregator aggregator;
+	private Record aggregated;
+	private ByteBuffer demoText;
+	private PayloadCompressor compressor;
+	private ByteBuffer compressed;
+
+	@Setup
+	public void setUp() {
+		char[] chars = new char[payloadBytes];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		encodedText = utf8.encode(text, null);
+
+		frameList = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			frameList.add(ByteBuffer.wrap(new byte[payloadBytes / 4]));
+		}
+		encodedFrames = frames.encode(frameList, null);
+
+		payload = ByteBuffer.wrap(new byte[payloadBytes]);
+		partitionKeys = new String[USER_RECORDS];
+		for (int i = 0; i < USER_RECORDS; i++) {
+			partitionKeys[i] = "session"+i;
+		}
+		aggregator = new RecordAggregator();
+		for (int i = 0; i < USER_RECORDS; i++) {
+			aggregator.addUserRecord(partitionKeys[i], null, payload);
+		}
+		aggregated = new Record().withData(aggregator.toByteBuffer())
+				.withPartitionKey(partitionKeys[0]).withSequenceNumber("1");
+		aggregator.clear();
+
+		// the demo's records look like "stream2data"+x
+		StringBuilder demo = new StringBuilder();
+		for (int i = 0; demo.length() < payloadBytes; i++) {
+			demo.append("stream2data").append(i);
+		}
+		demoText = utf8.encode(demo.substring(0, payloadBytes), null);
+		compressor = new PayloadCompressor(PayloadCompressor.Mode.RECORD);
+		compressed = compressor.compress(demoText);
+	}
+
+	@Benchmark
+	public int encodeUtf8() {
+		ByteBuffer scratch = pool.acquire();
+		int size = utf8.encode(text, scratch).remaining();
+		pool.release(scratch);
+		return size;
+	}
+
+	@Benchmark
+	public String decodeUtf8() {
+		return utf8.decode(encodedText);
+	}
+
+	@Benchmark
+	public int encodeLengthPrefixed() {
+		ByteBuffer scratch = pool.acquire();
+		int size = frames.encode(frameList, scratch).remaining();
+		pool.release(scratch);
+		return size;
+	}
+
+	@Benchmark
+	public List<ByteBuffer> decodeLengthPrefixed() {
+		return frames.decode(encodedFrames);
+	}
+
+	@Benchmark
+	public ByteBuffer compressDeflate() {
+		return compressor.compress(demoText);
+	}
+
+	@Benchmark
+	public ByteBuffer decompressDeflate() {
+		return PayloadCompressor.decompress(compressed);
+	}
+
+	@Benchmark
+	public ByteBuffer aggregate() {
+		for (int i = 0; i < USER_RECORDS; i++) {
+			aggregator.addUserRecord(partitionKeys[i], null, payload);
+		}
+		ByteBuffer data = aggregator.toByteBuffer();
+		aggregator.clear();
+		return data;
+	}
+
+	@Benchmark
+	public List<Record> deaggregate() {
+		return RecordDeaggregator.deaggregate(List.of(aggregated));
+	}
+}
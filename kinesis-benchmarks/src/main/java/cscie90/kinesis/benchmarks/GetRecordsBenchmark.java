@@ -0,0 +1,105 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Record;
+
+import cscie90.kinesis.KinesisProducer;
+import cscie90.kinesis.KinesisUtils;
+import cscie90.kinesis.LocalKinesis;
+import cscie90.kinesis.RecordCodec;
+import cscie90.kinesis.RecordDeaggregator;
+import cscie90.kinesis.Utf8StringCodec;
+
+/**
+ * The batch handling getMyStreamData and the consumer do for every GetRecords result:
+ * fetching a batch from LocalKinesis, unpacking aggregated records and decoding the
+ * payloads. getMyStreamData itself isn't measured, it sleeps a second per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GetRecordsBenchmark {
+
+	private static final String STREAM = "bench";
+
+	// 25 is what getMyStreamData asks for
+	@Param({"25", "1000"})
+	public int batchSize;
+
+	@Param({"false", "true"})
+	public boolean aggregation;
+
+	private LocalKinesis kinesis;
+	private final KinesisUtils kus = new KinesisUtils();
+	private final RecordCodec<String> utf8 = new Utf8StringCodec();
+	private String shardIterator;
+	private List<Record> batch;
+
+	@Setup
+	public void setUp() {
+		kinesis = new LocalKinesis();
+		kinesis.setThrottlingEnabled(false);
+		kinesis.createStream(STREAM, 1);
+		KinesisProducer producer = kus.createMyProducer(kinesis, STREAM);
+		producer.setAggregationEnabled(aggregation);
+		for (int i = 0; i < batchSize; i++) {
+			producer.addRecord("session"+(i % 5), "stream data "+i);
+		}
+		producer.flush().join();
+		producer.close();
+
+		String shardId = kus.getMyShards(kinesis, STREAM).get(0).getShardId();
+		shardIterator = kinesis.getShardIterator(STREAM, shardId, "TRIM_HORIZON").getShardIterator();
+		batch = fetch().getRecords();
+	}
+
+	private GetRecordsResult fetch() {
+		GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
+		getRecordsRequest.setShardIterator(shardIterator);
+		getRecordsRequest.setLimit(batchSize);
+		return kinesis.getRecords(getRecordsRequest);
+	}
+
+	@Benchmark
+	public List<String> fetchAndDecode() {
+		return kus.decodeMyData(RecordDeaggregator.deaggregate(fetch().getRecords()), utf8);
+	}
+
+	@Benchmark
+	public List<Record> deaggregate() {
+		return RecordDeaggregator.deaggregate(batch);
+	}
+
+	@Benchmark
+	public List<String> deaggregateAndDecode() {
+		return kus.decodeMyData(RecordDeaggregator.deaggregate(batch), utf8);
+	}
+
+}
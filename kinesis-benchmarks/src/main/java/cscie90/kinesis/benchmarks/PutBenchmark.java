@@ -0,0 +1,102 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+
+import cscie90.kinesis.KinesisProducer;
+import cscie90.kinesis.KinesisUtils;
+import cscie90.kinesis.LocalKinesis;
+
+/**
+ * Records per second through putMyData (one request per record) against the producer
+ * (PutRecords batches, optionally aggregated), with the throughput limits of LocalKinesis
+ * turned off so only the client side is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class PutBenchmark {
+
+	private static final String STREAM = "bench";
+	private static final int BATCH = 500;
+
+	@Param({"100", "4096"})
+	public int payloadBytes;
+
+	@Param({"false", "true"})
+	public boolean aggregation;
+
+	private LocalKinesis kinesis;
+	private KinesisUtils kus;
+	private KinesisProducer producer;
+	private ByteBuffer payload;
+	private String[] partitionKeys;
+	private int next = 0;
+
+	// a fresh stream per iteration, LocalKinesis keeps every record it is sent
+	@Setup(Level.Iteration)
+	public void setUp() {
+		kinesis = new LocalKinesis();
+		kinesis.setThrottlingEnabled(false);
+		kinesis.createStream(STREAM, 4);
+		kus = new KinesisUtils();
+		producer = kus.createMyProducer(kinesis, STREAM);
+		producer.setAggregationEnabled(aggregation);
+		payload = ByteBuffer.wrap(new byte[payloadBytes]);
+		partitionKeys = new String[1024];
+		for (int i = 0; i < partitionKeys.length; i++) {
+			partitionKeys[i] = "session"+i;
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		producer.close();
+	}
+
+	private String nextPartitionKey() {
+		return partitionKeys[next++ & (partitionKeys.length - 1)];
+	}
+
+	@Benchmark
+	public PutRecordResult singlePut() {
+		return kus.putMyData(kinesis, payload, nextPartitionKey(), STREAM, null);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public Object batchedPut() {
+		for (int i = 0; i < BATCH; i++) {
+			producer.addRecord(nextPartitionKey(), payload);
+		}
+		return producer.flush().join();
+	}
+}
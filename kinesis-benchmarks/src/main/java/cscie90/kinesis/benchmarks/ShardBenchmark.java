@@ -0,0 +1,110 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis.benchmarks;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+import cscie90.kinesis.KinesisUtils;
+import cscie90.kinesis.LocalKinesis;
+import cscie90.kinesis.ShardMap;
+import cscie90.kinesis.StreamMetadataCache;
+
+/**
+ * The resharding paths: the hash key midpoint splitMyShard computes, mapping partition keys
+ * to shards, and getMyShards over a stream with many shards: cached, refreshed, and the full
+ * describeStream pagination walk the cache saves.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ShardBenchmark {
+
+	private static final String STREAM = "bench";
+
+	// describeStream returns at most 100 shards per call
+	@Param({"4", "500"})
+	public int shardCount;
+
+	private LocalKinesis kinesis;
+	private final KinesisUtils kus = new KinesisUtils();
+	private ShardMap shardMap;
+	// expires at once and never refreshes incrementally, so every read walks all the pages
+	private final StreamMetadataCache uncached = new StreamMetadataCache();
+	private List<Shard> shards;
+	private String[] partitionKeys;
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		kinesis = new LocalKinesis();
+		kinesis.setThrottlingEnabled(false);
+		kinesis.createStream(STREAM, shardCount);
+		shards = kus.getMyShards(kinesis, STREAM);
+		shardMap = kus.createMyShardMap(kinesis, STREAM);
+		uncached.setTtlMillis(0);
+		uncached.setFullRefreshIntervalMillis(0);
+		partitionKeys = new String[1024];
+		for (int i = 0; i < partitionKeys.length; i++) {
+			partitionKeys[i] = "session"+i;
+		}
+	}
+
+	@Benchmark
+	public String midpointHashKey() {
+		return KinesisUtils.midpointHashKey(shards.get(next++ % shards.size()));
+	}
+
+	@Benchmark
+	public BigInteger partitionKeyHash() {
+		return ShardMap.hashKey(partitionKeys[next++ & (partitionKeys.length - 1)]);
+	}
+
+	@Benchmark
+	public String shardForPartitionKey() {
+		return shardMap.shardIdForPartitionKey(partitionKeys[next++ & (partitionKeys.length - 1)]);
+	}
+
+	// served from the metadata cache
+	@Benchmark
+	public List<Shard> getMyShards() {
+		return kus.getMyShards(kinesis, STREAM);
+	}
+
+	// every describeStream page, as each getMyShards call did before the cache
+	@Benchmark
+	public List<Shard> getMyShardsUncached() {
+		return uncached.getShards(kinesis, STREAM);
+	}
+
+	// an incremental refresh, one describeStream call after the last known shard
+	@Benchmark
+	public List<Shard> getMyShardsInvalidated() {
+		kus.getMetadataCache().invalidate(kinesis, STREAM);
+		return kus.getMyShards(kinesis, STREAM);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable scratch buffers for encoding payloads, so a busy producer doesn't allocate a
+ * new buffer per record. All pooled buffers have the same capacity; larger requests get
+ * a one-off buffer that is not kept.
+ */
+public class BufferPool {
+
+	// records are at most 1 MB, most are far smaller
+	public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+	public static final int DEFAULT_MAX_POOLED = 256;
+
+	private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_BYTES, DEFAULT_MAX_POOLED);
+
+	private final int bufferBytes;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	public BufferPool(int bufferBytes, int maxPooled) {
+		this.bufferBytes = bufferBytes;
+		this.maxPooled = maxPooled;
+	}
+
+	// the pool shared by KinesisUtils and the producers
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	public int getBufferBytes() {
+		return bufferBytes;
+	}
+
+	// a cleared buffer with room for at least minCapacity bytes
+	public ByteBuffer acquire(int minCapacity) {
+		if (minCapacity > bufferBytes) {
+			return ByteBuffer.allocate(minCapacity);
+		}
+		ByteBuffer buffer = pooled.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocate(bufferBytes);
+		}
+		size.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	public ByteBuffer acquire() {
+		return acquire(bufferBytes);
+	}
+
+	// hand a buffer from acquire() back. It must not be used afterwards
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferBytes || buffer.isReadOnly() || buffer.isDirect()) {
+			return;
+		}
+		if (size.incrementAndGet() > maxPooled) {
+			size.decrementAndGet();
+			return;
+		}
+		pooled.offer(buffer);
+	}
+}
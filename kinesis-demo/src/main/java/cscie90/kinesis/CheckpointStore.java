@@ -0,0 +1,254 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last processed sequence number of every shard in a small local file, so a
+ * consumer can resume with AFTER_SEQUENCE_NUMBER instead of replaying from TRIM_HORIZON.
+ *
+ * The file is memory-mapped and split into fixed-size slots, one per stream and shard. A
+ * checkpoint only overwrites its own slot in memory; the pages are forced to disk every
+ * flushEveryUpdates checkpoints, every flushIntervalMillis, or when flush() is called.
+ */
+public class CheckpointStore implements AutoCloseable {
+
+	// stored for a closed shard whose records have all been processed
+	public static final String SHARD_END = "SHARD_END";
+
+	private static final int MAGIC = 0x4B434B50;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	// slot layout: used flag, key length, key, sequence number length, sequence number, update time
+	static final int SLOT_BYTES = 512;
+	private static final int MAX_KEY_BYTES = 320;
+	// Kinesis sequence numbers have at most 129 digits
+	private static final int MAX_SEQUENCE_BYTES = 160;
+	private static final int USED_OFFSET = 0;
+	private static final int KEY_LENGTH_OFFSET = 1;
+	private static final int KEY_OFFSET = 3;
+	private static final int SEQUENCE_LENGTH_OFFSET = KEY_OFFSET + MAX_KEY_BYTES;
+	private static final int SEQUENCE_OFFSET = SEQUENCE_LENGTH_OFFSET + 2;
+	private static final int UPDATED_OFFSET = SEQUENCE_OFFSET + MAX_SEQUENCE_BYTES;
+
+	private static final int INITIAL_SLOTS = 256;
+
+	private final Path file;
+	private final FileChannel channel;
+	private MappedByteBuffer map;
+	private int slotCount;
+
+	// slot of each stream/shard key, plus slots freed by remove()
+	private final Map<String, Integer> slots = new HashMap<>();
+	private final Map<String, String> checkpoints = new HashMap<>();
+	private final Deque<Integer> freeSlots = new ArrayDeque<>();
+	private int nextSlot = 0;
+
+	private volatile int flushEveryUpdates = 0;
+	private int unflushedUpdates = 0;
+	private ScheduledExecutorService flusher;
+
+	// open the checkpoint file, creating it if it doesn't exist yet
+	public CheckpointStore(Path file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (channel.size() < HEADER_BYTES) {
+			mapSlots(INITIAL_SLOTS);
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.force();
+		}
+		else {
+			mapSlots((int) ((channel.size() - HEADER_BYTES) / SLOT_BYTES));
+			if (map.getInt(0) != MAGIC) {
+				channel.close();
+				throw new IOException(file+" is not a checkpoint file");
+			}
+			load();
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	// force the file to disk after this many checkpoints, 0 turns batched flushing off
+	public void setFlushEveryUpdates(int flushEveryUpdates) {
+		this.flushEveryUpdates = flushEveryUpdates;
+	}
+
+	// force the file to disk on a timer, 0 turns periodic flushing off
+	public synchronized void setFlushIntervalMillis(long flushIntervalMillis) {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher = null;
+		}
+		if (flushIntervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "checkpoint-flusher");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// the last sequence number checkpointed for the shard, or null if there is none
+	public synchronized String getCheckpoint(String myStreamName, String shardId) {
+		return checkpoints.get(key(myStreamName, shardId));
+	}
+
+	// remember that everything up to and including this sequence number has been processed
+	public synchronized void checkpoint(String myStreamName, String shardId, String sequenceNumber) {
+		String key = key(myStreamName, shardId);
+		byte[] sequenceBytes = sequenceNumber.getBytes(StandardCharsets.US_ASCII);
+		if (sequenceBytes.length > MAX_SEQUENCE_BYTES) {
+			throw new IllegalArgumentException("sequence number is longer than "+MAX_SEQUENCE_BYTES+" digits");
+		}
+		if (sequenceNumber.equals(checkpoints.get(key))) {
+			return;
+		}
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			slot = allocateSlot(key);
+		}
+		int base = slotOffset(slot);
+		// the slot is overwritten in place, nothing else in the file is touched
+		map.put(base + SEQUENCE_OFFSET, sequenceBytes);
+		map.putShort(base + SEQUENCE_LENGTH_OFFSET, (short) sequenceBytes.length);
+		map.putLong(base + UPDATED_OFFSET, System.currentTimeMillis());
+		checkpoints.put(key, sequenceNumber);
+
+		unflushedUpdates++;
+		if (flushEveryUpdates > 0 && unflushedUpdates >= flushEveryUpdates) {
+			flush();
+		}
+	}
+
+	// forget a shard, e.g. once it is closed and its children have been read past it
+	public synchronized void remove(String myStreamName, String shardId) {
+		String key = key(myStreamName, shardId);
+		Integer slot = slots.remove(key);
+		if (slot != null) {
+			map.put(slotOffset(slot) + USED_OFFSET, (byte) 0);
+			checkpoints.remove(key);
+			freeSlots.push(slot);
+			unflushedUpdates++;
+		}
+	}
+
+	// write all checkpoints made so far to disk
+	public synchronized void flush() {
+		if (unflushedUpdates > 0) {
+			map.force();
+			unflushedUpdates = 0;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		setFlushIntervalMillis(0);
+		flush();
+		channel.close();
+	}
+
+	// read every used slot of an existing file into memory
+	private void load() {
+		for (int slot = 0; slot < slotCount; slot++) {
+			int base = slotOffset(slot);
+			if (map.get(base + USED_OFFSET) == 0) {
+				freeSlots.addLast(slot);
+				continue;
+			}
+			String key = readString(base + KEY_LENGTH_OFFSET, base + KEY_OFFSET, MAX_KEY_BYTES);
+			slots.put(key, slot);
+			int sequenceLength = map.getShort(base + SEQUENCE_LENGTH_OFFSET);
+			if (sequenceLength > 0) {
+				checkpoints.put(key, readString(base + SEQUENCE_LENGTH_OFFSET, base + SEQUENCE_OFFSET,
+						MAX_SEQUENCE_BYTES));
+			}
+		}
+		nextSlot = slotCount;
+		// free slots after the last used one are handed out in order again
+		while (!freeSlots.isEmpty() && freeSlots.peekLast() == nextSlot - 1) {
+			nextSlot = freeSlots.pollLast();
+		}
+	}
+
+	private String readString(int lengthOffset, int offset, int maxBytes) {
+		int length = Math.min(map.getShort(lengthOffset), maxBytes);
+		byte[] bytes = new byte[length];
+		map.get(offset, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int allocateSlot(String key) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		if (keyBytes.length > MAX_KEY_BYTES) {
+			throw new IllegalArgumentException("stream and shard name are longer than "+MAX_KEY_BYTES+" bytes");
+		}
+		int slot;
+		if (!freeSlots.isEmpty()) {
+			slot = freeSlots.pop();
+		}
+		else {
+			if (nextSlot == slotCount) {
+				mapSlots(slotCount * 2);
+			}
+			slot = nextSlot++;
+		}
+		int base = slotOffset(slot);
+		map.putShort(base + SEQUENCE_LENGTH_OFFSET, (short) 0);
+		map.putShort(base + KEY_LENGTH_OFFSET, (short) keyBytes.length);
+		map.put(base + KEY_OFFSET, keyBytes);
+		map.put(base + USED_OFFSET, (byte) 1);
+		slots.put(key, slot);
+		return slot;
+	}
+
+	// map the header plus this many slots, growing the file if needed
+	private void mapSlots(int count) {
+		try {
+			if (map != null) {
+				map.force();
+			}
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) count * SLOT_BYTES);
+			slotCount = count;
+			map.putInt(8, slotCount);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("could not map "+file, e);
+		}
+	}
+
+	private static int slotOffset(int slot) {
+		return HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	private static String key(String myStreamName, String shardId) {
+		return myStreamName+"/"+shardId;
+	}
+}
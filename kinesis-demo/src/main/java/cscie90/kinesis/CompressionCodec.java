@@ -0,0 +1,35 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compression algorithm PayloadCompressor can use. Each codec has a one byte ID that is
+ * written into the header of every payload it compressed, so readers can find it again;
+ * register codecs other than deflate with PayloadCompressor.registerCodec on both sides.
+ */
+public interface CompressionCodec {
+
+	// written into the payload header, unique among the registered codecs. 0 is not allowed
+	byte getId();
+
+	String getName();
+
+	// the most bytes compress() can write for an input of this length
+	int maxCompressedLength(int length);
+
+	// compress the bytes between the data's position and limit into out, starting at out's
+	// position. The data's position is left alone. The dictionary may be null
+	void compress(ByteBuffer data, byte[] dictionary, ByteBuffer out);
+
+	// the original bytes, flipped and exactly uncompressedLength long. Throws
+	// IllegalArgumentException when the data is corrupt or has a different length
+	ByteBuffer decompress(ByteBuffer data, int uncompressedLength, byte[] dictionary);
+}
@@ -0,0 +1,300 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Drops records a consumer has already seen before passing the rest on to another
+ * RecordProcessor. Retried puts make the stream at-least-once, and a retried record comes
+ * back with a new sequence number, so records are recognised by an ID the producer put in
+ * them or, by default, by the payload itself. Each shard keeps two Bloom filters covering
+ * consecutive windows of arrival time, rotated as records arrive, so memory stays fixed
+ * however long the consumer runs. A Bloom filter hit is checked against an exact set of the
+ * most recent record fingerprints, so a false positive doesn't drop a record that set covers.
+ */
+public class DeduplicatingProcessor implements RecordProcessor {
+
+	// the payload as the record ID, the default
+	public static final Function<Record, ByteBuffer> PAYLOAD = Record::getData;
+
+	// MessageDigest isn't thread safe and is costly to look up, so each thread keeps one
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(RecordAggregator::md5);
+
+	private final RecordProcessor processor;
+	private final Map<String, ShardFilter> shards = new ConcurrentHashMap<>();
+
+	// settings - see the setters below. Changes apply to shards first seen afterwards
+	private volatile Function<Record, ByteBuffer> recordId = PAYLOAD;
+	private volatile long windowMillis = 5 * 60 * 1000;
+	private volatile int expectedRecordsPerWindow = 100000;
+	private volatile double falsePositiveRate = 0.001;
+	private volatile int maxExactEntries = 50000;
+
+	private final LongAdder records = new LongAdder();
+	private final LongAdder droppedDuplicates = new LongAdder();
+	private final LongAdder unverifiedDuplicates = new LongAdder();
+	private final LongAdder falsePositives = new LongAdder();
+
+	public DeduplicatingProcessor(RecordProcessor processor) {
+		this.processor = processor;
+	}
+
+	// the first bytes of the payload as the record ID, for producers that start each record
+	// with one
+	public static Function<Record, ByteBuffer> payloadPrefix(int bytes) {
+		return record -> {
+			ByteBuffer data = record.getData().duplicate();
+			data.limit(data.position() + Math.min(bytes, data.remaining()));
+			return data;
+		};
+	}
+
+	// the partition key as the record ID, for producers that give each record its own key
+	public static Function<Record, ByteBuffer> partitionKey() {
+		return record -> ByteBuffer.wrap(record.getPartitionKey().getBytes(StandardCharsets.UTF_8));
+	}
+
+	// the bytes that identify a record. Records with equal bytes are duplicates
+	public void setRecordIdFunction(Function<Record, ByteBuffer> recordId) {
+		this.recordId = recordId;
+	}
+
+	// how much arrival time each Bloom filter covers. A duplicate arriving within this long of
+	// the first copy is always dropped, one arriving up to twice this long after it may be
+	public void setWindowMillis(long windowMillis) {
+		this.windowMillis = Math.max(windowMillis, 1);
+	}
+
+	// sizes each Bloom filter, per shard. More records than this per window raise the false
+	// positive rate above the one asked for
+	public void setExpectedRecordsPerWindow(int expectedRecordsPerWindow) {
+		this.expectedRecordsPerWindow = Math.max(expectedRecordsPerWindow, 1);
+	}
+
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		this.falsePositiveRate = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+	}
+
+	// how many recent fingerprints each shard keeps to check Bloom filter hits against. When
+	// both windows hold more records than this, hits on the older ones can't be checked and are
+	// dropped as unverified duplicates. 0 keeps no fingerprints at all: every hit is dropped
+	// unverified, false positives included, for the memory of the Bloom filters alone
+	public void setMaxExactEntries(int maxExactEntries) {
+		this.maxExactEntries = Math.max(maxExactEntries, 0);
+	}
+
+	// records seen, duplicates or not
+	public long getRecords() {
+		return records.sum();
+	}
+
+	// records dropped because an exact fingerprint matched
+	public long getDroppedDuplicates() {
+		return droppedDuplicates.sum();
+	}
+
+	// records dropped on a Bloom filter hit that had aged out of the exact set, some of which
+	// may have been false positives
+	public long getUnverifiedDuplicates() {
+		return unverifiedDuplicates.sum();
+	}
+
+	// Bloom filter hits the exact set showed to be new records, which were passed on
+	public long getFalsePositives() {
+		return falsePositives.sum();
+	}
+
+	@Override
+	public void processRecords(String shardId, List<Record> records, long millisBehindLatest) {
+		ShardFilter filter = shards.computeIfAbsent(shardId, id -> new ShardFilter());
+		Function<Record, ByteBuffer> recordId = this.recordId;
+		List<Record> unique = new ArrayList<>(records.size());
+		for (Record record : records) {
+			if (filter.add(record, recordId.apply(record))) {
+				unique.add(record);
+			}
+		}
+		this.records.add(records.size());
+		if (!unique.isEmpty()) {
+			processor.processRecords(shardId, unique, millisBehindLatest);
+		}
+	}
+
+	@Override
+	public boolean completesOnReturn() {
+		return processor.completesOnReturn();
+	}
+
+	// a retried record goes to the same shard as the first copy unless the shard was split or
+	// merged in between, so a finished shard's filter isn't needed any more
+	@Override
+	public void shardEnded(String shardId) {
+		processor.shardEnded(shardId);
+		shards.remove(shardId);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d records, %d duplicates dropped, %d unverified, %d false positives",
+				getRecords(), getDroppedDuplicates(), getUnverifiedDuplicates(), getFalsePositives());
+	}
+
+	// the MD5 of the record ID, which stands in for the ID in the filters and the exact set
+	private static Fingerprint fingerprint(ByteBuffer id) {
+		MessageDigest md5 = MD5.get();
+		md5.update(id.duplicate());
+		ByteBuffer digest = ByteBuffer.wrap(md5.digest());
+		return new Fingerprint(digest.getLong(), digest.getLong());
+	}
+
+	private static final class Fingerprint {
+		final long high;
+		final long low;
+
+		Fingerprint(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Fingerprint && ((Fingerprint) obj).high == high && ((Fingerprint) obj).low == low;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(high ^ low);
+		}
+	}
+
+	// one shard's filters, only used on that shard's worker thread
+	private class ShardFilter {
+		private final long window = windowMillis;
+		private final int maxExact = maxExactEntries;
+		private BloomFilter current = new BloomFilter(expectedRecordsPerWindow, falsePositiveRate);
+		private BloomFilter previous = new BloomFilter(expectedRecordsPerWindow, falsePositiveRate);
+		// arrival time current was started at, previous covers the window before
+		private long currentStart = Long.MIN_VALUE;
+		// recent fingerprints by arrival time, oldest first
+		private final LinkedHashMap<Fingerprint, Long> exact = new LinkedHashMap<>();
+		// arrival time of the newest fingerprint dropped from the exact set to keep it under its cap
+		private long evictedUpTo = Long.MIN_VALUE;
+
+		// false if the record is a duplicate
+		boolean add(Record record, ByteBuffer id) {
+			long arrival = record.getApproximateArrivalTimestamp() == null ? System.currentTimeMillis()
+					: record.getApproximateArrivalTimestamp().getTime();
+			rotate(arrival);
+			Fingerprint fingerprint = fingerprint(id);
+			if (current.mightContain(fingerprint) || previous.mightContain(fingerprint)) {
+				if (exact.containsKey(fingerprint)) {
+					droppedDuplicates.increment();
+					return false;
+				}
+				// the exact set holds every record of both windows unless its cap pushed some out,
+				// or there is none to check against
+				if (maxExact == 0 || evictedUpTo >= currentStart - window) {
+					unverifiedDuplicates.increment();
+					return false;
+				}
+				falsePositives.increment();
+			}
+			current.add(fingerprint);
+			if (maxExact > 0) {
+				exact.put(fingerprint, arrival);
+				if (exact.size() > maxExact) {
+					Iterator<Long> eldest = exact.values().iterator();
+					evictedUpTo = eldest.next();
+					eldest.remove();
+				}
+			}
+			return true;
+		}
+
+		// start a new window once arrivals pass the current one, forgetting the oldest
+		private void rotate(long arrival) {
+			if (currentStart == Long.MIN_VALUE) {
+				currentStart = arrival;
+			}
+			if (arrival < currentStart + window) {
+				return;
+			}
+			BloomFilter cleared = previous;
+			cleared.clear();
+			if (arrival < currentStart + 2 * window) {
+				previous = current;
+				currentStart += window;
+			}
+			else {
+				// nothing arrived for more than a window, both are out of date
+				current.clear();
+				previous = current;
+				currentStart = arrival;
+			}
+			current = cleared;
+			// fingerprints older than both windows can't be hit any more
+			long oldest = currentStart - window;
+			for (Iterator<Long> arrivals = exact.values().iterator(); arrivals.hasNext() && arrivals.next() < oldest; ) {
+				arrivals.remove();
+			}
+		}
+	}
+
+	// a fixed size Bloom filter probing k bits picked by double hashing the fingerprint
+	private static class BloomFilter {
+		private final long[] bits;
+		private final long bitCount;
+		private final int hashes;
+
+		BloomFilter(int expectedEntries, double falsePositiveRate) {
+			double ln2 = Math.log(2);
+			long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+			this.bits = new long[(int) Math.max(1, (m + 63) / 64)];
+			this.bitCount = bits.length * 64L;
+			this.hashes = (int) Math.max(1, Math.round((double) bitCount / expectedEntries * ln2));
+		}
+
+		void add(Fingerprint fingerprint) {
+			long hash = fingerprint.high;
+			for (int i = 0; i < hashes; i++, hash += fingerprint.low) {
+				long bit = Long.remainderUnsigned(hash, bitCount);
+				bits[(int) (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(Fingerprint fingerprint) {
+			long hash = fingerprint.high;
+			for (int i = 0; i < hashes; i++, hash += fingerprint.low) {
+				long bit = Long.remainderUnsigned(hash, bitCount);
+				if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void clear() {
+			Arrays.fill(bits, 0);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate from java.util.zip, the codec that is always available. Deflaters and
+ * inflaters hold native memory and are slow to create, so each thread keeps one of each.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+	public static final byte ID = 1;
+
+	private final int level;
+	// no zlib wrapper, the payload header already says what follows
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	// level 1 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION
+	public DeflateCodec(int level) {
+		this.level = level;
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+	}
+
+	@Override
+	public byte getId() {
+		return ID;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	// zlib's deflateBound: stored blocks cost 5 bytes per 16 KB in the worst case
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+	}
+
+	@Override
+	public void compress(ByteBuffer data, byte[] dictionary, ByteBuffer out) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data.duplicate());
+		deflater.finish();
+		while (!deflater.finished()) {
+			if (deflater.deflate(out) == 0 && !out.hasRemaining()) {
+				throw new IllegalArgumentException("compressed data doesn't fit into "+out.capacity()+" bytes");
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer decompress(ByteBuffer data, int uncompressedLength, byte[] dictionary) {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		if (dictionary != null) {
+			inflater.setDictionary(dictionary);
+		}
+		inflater.setInput(data.duplicate());
+		ByteBuffer out = ByteBuffer.allocate(uncompressedLength);
+		try {
+			while (!inflater.finished()) {
+				if (inflater.inflate(out) == 0 && !inflater.finished() && (inflater.needsInput() || !out.hasRemaining())) {
+					// ran out of input before the end of the stream, or the stream is longer than promised
+					throw new IllegalArgumentException("deflate data doesn't match its length of "+uncompressedLength);
+				}
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IllegalArgumentException("corrupt deflate data", e);
+		}
+		if (out.hasRemaining()) {
+			throw new IllegalArgumentException("deflate data is shorter than its length of "+uncompressedLength);
+		}
+		out.flip();
+		return out;
+	}
+}
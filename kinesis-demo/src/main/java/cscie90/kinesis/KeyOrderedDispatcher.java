@@ -0,0 +1,299 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Processes the records of a shard on several threads while keeping the records of each
+ * partition key in order. Every record goes to one of a fixed set of single threaded lanes
+ * picked by hashing its partition key, so one busy shard can keep all cores working without
+ * splitting it.
+ *
+ * Records finish out of order across keys, so the checkpoint only moves up to the last
+ * record before the oldest one still running. Give the dispatcher the consumer's checkpoint
+ * store and turn the consumer's auto checkpoint off; the consumer refuses to start with it on,
+ * since it would checkpoint each batch as soon as it has been handed over.
+ */
+public class KeyOrderedDispatcher implements RecordProcessor {
+
+	private static final Log LOG = LogFactory.getLog(KeyOrderedDispatcher.class);
+
+	private final String myStreamName;
+	private final BiConsumer<String, Record> handler;
+	private final ExecutorService[] lanes;
+
+	// settings - see the setters below
+	private volatile CheckpointStore checkpointStore;
+	private volatile int maxInFlightPerShard = 10000;
+
+	private final Map<String, ShardState> shards = new ConcurrentHashMap<>();
+	private volatile boolean closed = false;
+
+	// the handler is called with the shard ID and each record, on one of the given number of lanes
+	public KeyOrderedDispatcher(String myStreamName, int threads, BiConsumer<String, Record> handler) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.myStreamName = myStreamName;
+		this.handler = handler;
+		this.lanes = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			String name = "kinesis-dispatch-"+(i + 1);
+			lanes[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	// checkpoint each shard's low watermark here as it moves. Use the store the consumer resumes from
+	public void setCheckpointStore(CheckpointStore checkpointStore) {
+		this.checkpointStore = checkpointStore;
+	}
+
+	// records of one shard handed to the lanes but not finished before processRecords waits.
+	// Applies to shards that haven't been seen yet
+	public void setMaxInFlightPerShard(int maxInFlightPerShard) {
+		if (maxInFlightPerShard < 1) {
+			throw new IllegalArgumentException("maxInFlightPerShard must be at least 1");
+		}
+		this.maxInFlightPerShard = maxInFlightPerShard;
+	}
+
+	// the sequence number every record of the shard up to and including has been processed,
+	// null before the first one has
+	public String getLowWatermark(String shardId) {
+		ShardState shard = shards.get(shardId);
+		return shard == null ? null : shard.lowWatermark;
+	}
+
+	// hand the records to their lanes, waiting while the shard has too many in flight. Throws
+	// once a record of the shard has failed, which stops the consumer reading it. The failed
+	// shard is forgotten once its lanes are idle, so a worker reading it again from the
+	// checkpoint starts over
+	@Override
+	public void processRecords(String shardId, List<Record> records, long millisBehindLatest) {
+		if (closed) {
+			throw new IllegalStateException("dispatcher is closed");
+		}
+		ShardState shard = shards.computeIfAbsent(shardId, ShardState::new);
+		if (shard.failure != null) {
+			shard.awaitIdle();
+			shards.remove(shardId, shard);
+			shard.checkFailed();
+		}
+		// the whole batch is tracked before any of it runs, so the watermark can't pass a record
+		// of an aggregated Kinesis record whose siblings haven't been dispatched yet
+		List<Pending> batch = shard.track(records);
+		int dispatched = 0;
+		try {
+			for (Pending pending : batch) {
+				shard.acquire();
+				try {
+					lanes[lane(pending.record.getPartitionKey())].execute(() -> shard.run(pending));
+				}
+				catch (RuntimeException e) {
+					shard.inFlight.release();
+					throw e;
+				}
+				dispatched++;
+			}
+		}
+		catch (RuntimeException e) {
+			// interrupted (the consumer stopping) or rejected: the rest of the batch never runs
+			shard.untrack(batch.size() - dispatched);
+			throw e;
+		}
+	}
+
+	// the lanes finish the records after processRecords returns, the dispatcher checkpoints them itself
+	@Override
+	public boolean completesOnReturn() {
+		return false;
+	}
+
+	// wait until every record of the shard has finished before it is marked done
+	@Override
+	public void shardEnded(String shardId) {
+		ShardState shard = shards.remove(shardId);
+		if (shard != null) {
+			shard.awaitIdle();
+			shard.checkFailed();
+		}
+	}
+
+	// wait for the records in flight to finish and release the threads
+	public void close() {
+		closed = true;
+		for (ShardState shard : new ArrayList<>(shards.values())) {
+			shard.awaitIdle();
+		}
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+		try {
+			for (ExecutorService lane : lanes) {
+				lane.awaitTermination(30, TimeUnit.SECONDS);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// the same key always lands in the same lane
+	private int lane(String partitionKey) {
+		int h = partitionKey == null ? 0 : partitionKey.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), lanes.length);
+	}
+
+	// a record handed to a lane, and whether it has finished
+	private static class Pending {
+		final Record record;
+		boolean done;
+
+		Pending(Record record) {
+			this.record = record;
+		}
+	}
+
+	// the records of one shard from dispatch until the watermark has passed them
+	private class ShardState {
+		private final String shardId;
+		private final Semaphore inFlight = new Semaphore(maxInFlightPerShard);
+		// tracked records in sequence order, the oldest unfinished one at or near the head
+		private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+		// tracked records that haven't finished running
+		private int running = 0;
+		private volatile String lowWatermark;
+		private volatile RuntimeException failure;
+
+		ShardState(String shardId) {
+			this.shardId = shardId;
+		}
+
+		synchronized List<Pending> track(List<Record> records) {
+			List<Pending> batch = new ArrayList<>(records.size());
+			for (Record record : records) {
+				Pending p = new Pending(record);
+				pending.addLast(p);
+				batch.add(p);
+			}
+			running += batch.size();
+			return batch;
+		}
+
+		// forget the last records tracked, which were never handed to a lane
+		synchronized void untrack(int count) {
+			for (int i = 0; i < count; i++) {
+				pending.pollLast();
+			}
+			running -= count;
+			if (running == 0) {
+				notifyAll();
+			}
+		}
+
+		void acquire() {
+			try {
+				inFlight.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while handing records of shard "+shardId+" to the lanes");
+			}
+		}
+
+		// on a lane: process the record, unless an earlier one of the shard failed
+		void run(Pending p) {
+			boolean ok = false;
+			try {
+				if (failure == null) {
+					handler.accept(shardId, p.record);
+					ok = true;
+				}
+			}
+			catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+					LOG.error("Processing a record of shard "+shardId+" failed, its checkpoint stays at "+lowWatermark, e);
+				}
+			}
+			finally {
+				finished(p, ok);
+				inFlight.release();
+			}
+		}
+
+		// mark the record done and move the watermark over every finished record at the head.
+		// Records unpacked from one Kinesis record share its sequence number, which is only
+		// passed once the last of them is done
+		private synchronized void finished(Pending p, boolean ok) {
+			running--;
+			if (ok) {
+				p.done = true;
+				String watermark = null;
+				while (!pending.isEmpty() && pending.peekFirst().done) {
+					String sequenceNumber = pending.pollFirst().record.getSequenceNumber();
+					if (pending.isEmpty() || !sequenceNumber.equals(pending.peekFirst().record.getSequenceNumber())) {
+						watermark = sequenceNumber;
+					}
+				}
+				if (watermark != null) {
+					lowWatermark = watermark;
+					CheckpointStore store = checkpointStore;
+					if (store != null) {
+						store.checkpoint(myStreamName, shardId, watermark);
+					}
+				}
+			}
+			if (running == 0) {
+				notifyAll();
+			}
+		}
+
+		synchronized void awaitIdle() {
+			boolean interrupted = false;
+			while (running > 0) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void checkFailed() {
+			RuntimeException e = failure;
+			if (e != null) {
+				throw new IllegalStateException("processing shard "+shardId+" failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The per partition key totals of one window: count, sum, min and max of a long value.
+ * Keys live in an open addressing table and the totals in one flat long array next to it,
+ * or in a direct buffer outside the heap, so a key costs no objects beyond its String.
+ * Windows are reused once their sink has returned, so don't hold on to them.
+ */
+public class KeyedWindow {
+
+	// count, sum, min, max per slot
+	private static final int FIELDS = 4;
+	private static final int COUNT = 0;
+	private static final int SUM = 1;
+	private static final int MIN = 2;
+	private static final int MAX = 3;
+
+	// receives each key's totals without boxing them
+	public interface Visitor {
+		void visit(String partitionKey, long count, long sum, long min, long max);
+	}
+
+	private final boolean offHeap;
+	private long startMillis;
+	private long endMillis;
+
+	// capacity is a power of two and at most 60% full
+	private String[] keys;
+	private long[] heap;
+	private ByteBuffer direct;
+	private int size = 0;
+
+	KeyedWindow(int initialCapacity, boolean offHeap) {
+		this.offHeap = offHeap;
+		allocate(Math.max(16, Integer.highestOneBit(Math.max(initialCapacity, 1) * 2 - 1)));
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	// the end is exclusive
+	public long getEndMillis() {
+		return endMillis;
+	}
+
+	// the number of partition keys seen in the window
+	public int size() {
+		return size;
+	}
+
+	public void forEach(Visitor visitor) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != null) {
+				visitor.visit(keys[slot], get(slot, COUNT), get(slot, SUM), get(slot, MIN), get(slot, MAX));
+			}
+		}
+	}
+
+	public long getCount(String partitionKey) {
+		int slot = find(partitionKey);
+		return slot < 0 ? 0 : get(slot, COUNT);
+	}
+
+	public long getSum(String partitionKey) {
+		int slot = find(partitionKey);
+		return slot < 0 ? 0 : get(slot, SUM);
+	}
+
+	// start over as an empty window for the given range
+	void reset(long startMillis, long endMillis) {
+		this.startMillis = startMillis;
+		this.endMillis = endMillis;
+		Arrays.fill(keys, null);
+		size = 0;
+	}
+
+	void add(String partitionKey, long value) {
+		int slot = find(partitionKey);
+		if (slot >= 0) {
+			set(slot, COUNT, get(slot, COUNT) + 1);
+			set(slot, SUM, get(slot, SUM) + value);
+			set(slot, MIN, Math.min(get(slot, MIN), value));
+			set(slot, MAX, Math.max(get(slot, MAX), value));
+			return;
+		}
+		if ((size + 1) * 10 > keys.length * 6) {
+			grow();
+		}
+		slot = insert(partitionKey);
+		set(slot, COUNT, 1);
+		set(slot, SUM, value);
+		set(slot, MIN, value);
+		set(slot, MAX, value);
+	}
+
+	// the slot holding the key, or -1
+	private int find(String partitionKey) {
+		int mask = keys.length - 1;
+		for (int slot = hash(partitionKey) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot].equals(partitionKey)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	// the first free slot for a key that isn't in the table yet
+	private int insert(String partitionKey) {
+		int mask = keys.length - 1;
+		int slot = hash(partitionKey) & mask;
+		while (keys[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = partitionKey;
+		size++;
+		return slot;
+	}
+
+	private void grow() {
+		String[] oldKeys = keys;
+		long[] oldHeap = heap;
+		ByteBuffer oldDirect = direct;
+		allocate(oldKeys.length * 2);
+		size = 0;
+		for (int old = 0; old < oldKeys.length; old++) {
+			if (oldKeys[old] != null) {
+				int slot = insert(oldKeys[old]);
+				for (int field = 0; field < FIELDS; field++) {
+					long value = oldHeap != null ? oldHeap[old * FIELDS + field]
+							: oldDirect.getLong((old * FIELDS + field) * Long.BYTES);
+					set(slot, field, value);
+				}
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new String[capacity];
+		if (offHeap) {
+			direct = ByteBuffer.allocateDirect(capacity * FIELDS * Long.BYTES);
+		}
+		else {
+			heap = new long[capacity * FIELDS];
+		}
+	}
+
+	private long get(int slot, int field) {
+		return offHeap ? direct.getLong((slot * FIELDS + field) * Long.BYTES) : heap[slot * FIELDS + field];
+	}
+
+	private void set(int slot, int field, long value) {
+		if (offHeap) {
+			direct.putLong((slot * FIELDS + field) * Long.BYTES, value);
+		}
+		else {
+			heap[slot * FIELDS + field] = value;
+		}
+	}
+
+	// String caches its hash code; spread it so neighbouring keys don't share a run of slots
+	private static int hash(String partitionKey) {
+		int h = partitionKey.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Reads every shard of a stream continuously, each on its own virtual thread, and hands
+ * the records to a RecordProcessor as each batch arrives. The polling delay and the
+ * GetRecords limit adapt to how far behind the reader is and whether the last call
+ * returned anything. After a split or merge, children are started only once their
+ * parents have been read to SHARD_END, so records of a partition key stay in order.
+ */
+public class KinesisConsumer {
+
+	private static final Log LOG = LogFactory.getLog(KinesisConsumer.class);
+
+	// Kinesis allows 5 GetRecords calls per second per shard
+	public static final long MIN_POLL_INTERVAL_MILLIS = 200;
+	// and at most 10000 records per call
+	public static final int MAX_RECORDS_PER_CALL = 10000;
+
+	private final AmazonKinesis kinesis;
+	private final String myStreamName;
+	private final RecordProcessor processor;
+	private final KinesisUtils kus = new KinesisUtils();
+
+	// polling settings - see the setters below
+	private volatile String initialPosition = "TRIM_HORIZON";
+	private volatile long maxPollIntervalMillis = 1000;
+	private volatile int minRecordsPerCall = 100;
+	private volatile long catchUpThresholdMillis = 10000;
+	private volatile CheckpointStore checkpointStore;
+	private volatile boolean autoCheckpoint = true;
+	private volatile long shardSyncIntervalMillis = 10000;
+	private volatile KinesisMetrics metrics = KinesisMetrics.getDefault();
+	private volatile ShardRateLimiter rateLimiter;
+
+	// parent/child lineage, children are only started once their parents are done
+	private final ShardGraph shardGraph = new ShardGraph();
+
+	private final Map<String, ShardWorker> shardWorkers = new ConcurrentHashMap<>();
+	private ExecutorService workers;
+	private volatile boolean running = false;
+
+	public KinesisConsumer(AmazonKinesis kinesis, String myStreamName, RecordProcessor processor) {
+		this.kinesis = kinesis;
+		this.myStreamName = myStreamName;
+		this.processor = processor;
+	}
+
+	// where to start reading a shard: TRIM_HORIZON (oldest record) or LATEST (only new records)
+	public void setInitialPosition(String initialPosition) {
+		this.initialPosition = initialPosition;
+	}
+
+	// longest wait between two GetRecords calls while a shard is idle
+	public void setMaxPollIntervalMillis(long maxPollIntervalMillis) {
+		this.maxPollIntervalMillis = Math.max(maxPollIntervalMillis, MIN_POLL_INTERVAL_MILLIS);
+	}
+
+	// smallest GetRecords limit used while a shard is quiet
+	public void setMinRecordsPerCall(int minRecordsPerCall) {
+		this.minRecordsPerCall = Math.min(Math.max(minRecordsPerCall, 1), MAX_RECORDS_PER_CALL);
+	}
+
+	// a reader this far behind the tip of the stream polls flat out with the largest limit
+	public void setCatchUpThresholdMillis(long catchUpThresholdMillis) {
+		this.catchUpThresholdMillis = catchUpThresholdMillis;
+	}
+
+	// with a checkpoint store, shards resume after their last checkpointed record instead of
+	// starting at the initial position
+	public void setCheckpointStore(CheckpointStore checkpointStore) {
+		this.checkpointStore = checkpointStore;
+	}
+
+	// checkpoint each batch as soon as processRecords returns. Turn this off when the processor
+	// finishes records asynchronously and writes its own checkpoints
+	public void setAutoCheckpoint(boolean autoCheckpoint) {
+		this.autoCheckpoint = autoCheckpoint;
+	}
+
+	// how often the shard list is checked for children created by a split or merge
+	public void setShardSyncIntervalMillis(long shardSyncIntervalMillis) {
+		this.shardSyncIntervalMillis = shardSyncIntervalMillis;
+	}
+
+	// wait for each shard's read limits before calling GetRecords, instead of finding out from
+	// a ProvisionedThroughputExceededException
+	public void setRateLimiter(ShardRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	// where per-shard get latencies, throughput, throttles and MillisBehindLatest are reported
+	public void setMetrics(KinesisMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public String getStreamName() {
+		return myStreamName;
+	}
+
+	// start a worker for every shard that is ready to be read, and keep watching the shard
+	// list for children created by a split or merge
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		if (checkpointStore != null && autoCheckpoint && !processor.completesOnReturn()) {
+			throw new IllegalStateException(processor.getClass().getSimpleName()+" is still working on records"
+					+ " after processRecords returns, so checkpointing each batch as it is handed over could lose"
+					+ " records; call setAutoCheckpoint(false) and checkpoint once they are done");
+		}
+		running = true;
+		// one virtual thread per shard (they mostly sleep between polls, so thousands of shards
+		// cost next to nothing) plus the shard sync loop
+		workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kinesis-consumer-", 1).factory());
+		syncShards();
+		workers.execute(this::shardSyncLoop);
+	}
+
+	// stop all workers and wait for them to finish their current batch. The wait happens outside
+	// the lock, a worker finishing a shard needs it to look for the shard's children
+	public void stop() {
+		ExecutorService stopping;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			stopping = workers;
+			stopping.shutdownNow();
+			shardWorkers.clear();
+		}
+		try {
+			stopping.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	// fetch the shard list, add new shards to the graph and start every shard whose parents
+	// have been read to the end
+	private synchronized void syncShards() {
+		if (!running) {
+			return;
+		}
+		List<Shard> shards = kus.getMyShards(kinesis, myStreamName);
+		shardGraph.update(shards);
+		CheckpointStore store = checkpointStore;
+		// shards finished before a restart don't need to be read again
+		if (store != null) {
+			for (Shard shard : shards) {
+				if (CheckpointStore.SHARD_END.equals(store.getCheckpoint(myStreamName, shard.getShardId()))) {
+					shardGraph.markComplete(shard.getShardId());
+				}
+			}
+		}
+		// drop finished shards that have aged out of the stream, and their checkpoints with them
+		for (String shardId : shardGraph.pruneCompleted(shards)) {
+			if (store != null) {
+				store.remove(myStreamName, shardId);
+			}
+		}
+		for (Shard shard : shardGraph.getReadyShards()) {
+			ShardWorker worker = new ShardWorker(shard);
+			if (shardWorkers.putIfAbsent(shard.getShardId(), worker) == null) {
+				workers.execute(worker);
+			}
+		}
+	}
+
+	private void shardSyncLoop() {
+		try {
+			while (running) {
+				Thread.sleep(shardSyncIntervalMillis);
+				try {
+					syncShards();
+				}
+				catch (RuntimeException e) {
+					LOG.warn("Could not refresh the shards of "+myStreamName, e);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// stop() was called
+		}
+	}
+
+	// a shard has been read to SHARD_END: remember that and start its children
+	private void shardEnded(String shardId) {
+		processor.shardEnded(shardId);
+		CheckpointStore store = checkpointStore;
+		if (store != null) {
+			store.checkpoint(myStreamName, shardId, CheckpointStore.SHARD_END);
+		}
+		shardGraph.markComplete(shardId);
+		metrics.remove(myStreamName, shardId);
+		ShardRateLimiter limiter = rateLimiter;
+		if (limiter != null) {
+			limiter.removeShard(shardId);
+		}
+		// the shard ended because of a split or merge, so the cached shard list is out of date
+		kus.getMetadataCache().invalidate(kinesis, myStreamName);
+		syncShards();
+	}
+
+	// ask Kinesis for an iterator of the given type, the sequence number is only used by
+	// the AT_ and AFTER_SEQUENCE_NUMBER types
+	private String getIterator(String shardId, String iteratorType, String sequenceNumber) {
+		// build a configurable request object
+		GetShardIteratorRequest getShardIteratorRequest = new GetShardIteratorRequest();
+		getShardIteratorRequest.setStreamName(myStreamName);
+		getShardIteratorRequest.setShardId(shardId);
+		getShardIteratorRequest.setShardIteratorType(iteratorType);
+		getShardIteratorRequest.setStartingSequenceNumber(sequenceNumber);
+		return kinesis.getShardIterator(getShardIteratorRequest).getShardIterator();
+	}
+
+	// follows one shard's iterator until the shard ends or the consumer is stopped
+	private class ShardWorker implements Runnable {
+		private final Shard shard;
+		private final String shardId;
+		// the last record handed to the processor, used to pick up again after an expired iterator
+		private String lastSequenceNumber;
+		private int limit = minRecordsPerCall;
+		private long pollInterval = MIN_POLL_INTERVAL_MILLIS;
+
+		ShardWorker(Shard shard) {
+			this.shard = shard;
+			this.shardId = shard.getShardId();
+		}
+
+		@Override
+		public void run() {
+			try {
+				String shardIterator = startingIterator();
+				// a null iterator means the shard is closed and everything in it has been read
+				while (running && shardIterator != null) {
+					long callStart = System.currentTimeMillis();
+					shardIterator = poll(shardIterator);
+					// keep the calls at least pollInterval apart, counting the time the call took
+					long wait = pollInterval - (System.currentTimeMillis() - callStart);
+					if (wait > 0 && shardIterator != null) {
+						Thread.sleep(wait);
+					}
+				}
+				if (shardIterator == null) {
+					LOG.info("Reached the end of shard "+shardId);
+					shardWorkers.remove(shardId, this);
+					shardEnded(shardId);
+				}
+			}
+			catch (InterruptedException e) {
+				// stop() was called
+			}
+			catch (RuntimeException e) {
+				// a processor interrupted by stop() fails too, that isn't worth an error
+				if (running) {
+					LOG.error("Stopped reading shard "+shardId, e);
+				}
+			}
+			finally {
+				shardWorkers.remove(shardId, this);
+			}
+		}
+
+		// resume after the checkpoint if there is one, otherwise start at the initial position
+		private String startingIterator() {
+			CheckpointStore store = checkpointStore;
+			if (store != null) {
+				lastSequenceNumber = store.getCheckpoint(myStreamName, shardId);
+			}
+			if (lastSequenceNumber == null) {
+				// a child of a shard we have read must be read from its first record, otherwise
+				// records written between the reshard and now would be skipped
+				String parent = shard.getParentShardId();
+				String adjacentParent = shard.getAdjacentParentShardId();
+				boolean child = (parent != null && shardGraph.isComplete(parent))
+						|| (adjacentParent != null && shardGraph.isComplete(adjacentParent));
+				return getIterator(shardId, child ? "TRIM_HORIZON" : initialPosition, null);
+			}
+			return getIterator(shardId, "AFTER_SEQUENCE_NUMBER", lastSequenceNumber);
+		}
+
+		// one GetRecords call, returns the iterator to use next
+		private String poll(String shardIterator) throws InterruptedException {
+			// Create a new getRecordsRequest with an existing shardIterator
+			GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
+			getRecordsRequest.setShardIterator(shardIterator);
+			getRecordsRequest.setLimit(limit);
+
+			ShardRateLimiter limiter = rateLimiter;
+			if (limiter != null) {
+				ShardRateLimiter.pause(limiter.reserveRead(shardId));
+			}
+			ShardMetrics shardMetrics = metrics.shard(myStreamName, shardId);
+			long start = System.nanoTime();
+			GetRecordsResult result;
+			try {
+				result = kinesis.getRecords(getRecordsRequest);
+			}
+			catch (ExpiredIteratorException e) {
+				// iterators are only valid for 5 minutes, pick up again after the last record we saw
+				return lastSequenceNumber == null ? getIterator(shardId, initialPosition, null)
+						: getIterator(shardId, "AFTER_SEQUENCE_NUMBER", lastSequenceNumber);
+			}
+			catch (ProvisionedThroughputExceededException e) {
+				// the shard is over its read limit, back off and try the same iterator again
+				shardMetrics.recordGetThrottled();
+				pollInterval = Math.min(pollInterval * 2, maxPollIntervalMillis);
+				return shardIterator;
+			}
+
+			List<Record> records = result.getRecords();
+			long millisBehindLatest = result.getMillisBehindLatest() == null ? 0 : result.getMillisBehindLatest();
+			long bytes = KinesisUtils.payloadBytes(records);
+			shardMetrics.recordGet(System.nanoTime() - start, records.size(), bytes, millisBehindLatest);
+			if (limiter != null) {
+				limiter.recordRead(shardId, bytes);
+			}
+			if (!records.isEmpty()) {
+				lastSequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+				processor.processRecords(shardId, RecordDeaggregator.deaggregate(records), millisBehindLatest);
+				CheckpointStore store = checkpointStore;
+				if (store != null && autoCheckpoint && processor.completesOnReturn()) {
+					store.checkpoint(myStreamName, shardId, lastSequenceNumber);
+				}
+			}
+			adapt(records.size(), millisBehindLatest);
+			return result.getNextShardIterator();
+		}
+
+		// far behind: poll as fast as allowed with the largest limit. Idle: slow down and ask for
+		// less. Otherwise poll at full speed and grow the limit while batches come back full
+		private void adapt(int received, long millisBehindLatest) {
+			if (millisBehindLatest > catchUpThresholdMillis) {
+				limit = MAX_RECORDS_PER_CALL;
+				pollInterval = MIN_POLL_INTERVAL_MILLIS;
+			}
+			else if (received == 0) {
+				limit = Math.max(limit / 2, minRecordsPerCall);
+				pollInterval = Math.min(pollInterval * 2, maxPollIntervalMillis);
+			}
+			else {
+				if (received >= limit) {
+					limit = Math.min(limit * 2, MAX_RECORDS_PER_CALL);
+				}
+				pollInterval = MIN_POLL_INTERVAL_MILLIS;
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per-shard metrics of everything this process puts and gets. Each shard's ShardMetrics is
+ * registered as an MBean under cscie90.kinesis:type=ShardMetrics,stream=...,shard=...
+ * Once per interval the rates and latency percentiles are recomputed, and optionally
+ * logged, so monitoring can see consumer lag and hot shards without console output on
+ * the hot path.
+ */
+public class KinesisMetrics {
+
+	private static final Log LOG = LogFactory.getLog(KinesisMetrics.class);
+
+	// used when a failed put doesn't say which shard it was meant for
+	public static final String UNKNOWN_SHARD = "unknown";
+
+	private static final KinesisMetrics DEFAULT = new KinesisMetrics();
+
+	// settings - see the setters below
+	private volatile boolean jmxEnabled = true;
+	private volatile boolean snapshotLogging = false;
+	private long intervalMillis = 10 * 1000;
+
+	// shard metrics by stream name and shard ID
+	private final Map<String, Map<String, ShardMetrics>> streams = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "kinesis-metrics");
+		t.setDaemon(true);
+		return t;
+	});
+	private ScheduledFuture<?> ticker;
+
+	public KinesisMetrics() {
+		schedule();
+	}
+
+	// the registry KinesisUtils, the producer and the consumer report to unless given another
+	public static KinesisMetrics getDefault() {
+		return DEFAULT;
+	}
+
+	// register shards as MBeans. Only affects shards seen after the change
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	// log every shard's numbers at INFO at the end of each interval
+	public void setSnapshotLogging(boolean snapshotLogging) {
+		this.snapshotLogging = snapshotLogging;
+	}
+
+	// how often rates and percentiles are recomputed
+	public synchronized void setIntervalMillis(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+		schedule();
+	}
+
+	// the metrics of one shard, created (and registered) the first time they are asked for
+	public ShardMetrics shard(String myStreamName, String shardId) {
+		Map<String, ShardMetrics> shards = streams.computeIfAbsent(myStreamName, s -> new ConcurrentHashMap<>());
+		ShardMetrics metrics = shards.get(shardId);
+		if (metrics == null) {
+			metrics = shards.computeIfAbsent(shardId, id -> register(new ShardMetrics(myStreamName, id)));
+		}
+		return metrics;
+	}
+
+	// every shard of every stream seen so far
+	public List<ShardMetrics> getShards() {
+		List<ShardMetrics> all = new ArrayList<>();
+		for (Map<String, ShardMetrics> shards : streams.values()) {
+			all.addAll(shards.values());
+		}
+		return all;
+	}
+
+	// stop tracking a shard, e.g. once it has been read to SHARD_END
+	public void remove(String myStreamName, String shardId) {
+		Map<String, ShardMetrics> shards = streams.get(myStreamName);
+		ShardMetrics metrics = shards == null ? null : shards.remove(shardId);
+		if (metrics != null && jmxEnabled) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = objectName(metrics);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			}
+			catch (JMException e) {
+				LOG.warn("Could not unregister the metrics of "+myStreamName+"/"+shardId, e);
+			}
+		}
+	}
+
+	private ShardMetrics register(ShardMetrics metrics) {
+		if (jmxEnabled) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = objectName(metrics);
+				if (!server.isRegistered(name)) {
+					server.registerMBean(metrics, name);
+				}
+			}
+			catch (JMException e) {
+				// metrics are still collected, just not visible over JMX
+				LOG.warn("Could not register the metrics of "+metrics.getStreamName()+"/"+metrics.getShardId(), e);
+			}
+		}
+		return metrics;
+	}
+
+	private static ObjectName objectName(ShardMetrics metrics) throws JMException {
+		return new ObjectName("cscie90.kinesis:type=ShardMetrics,stream="+ObjectName.quote(metrics.getStreamName())
+				+",shard="+ObjectName.quote(metrics.getShardId()));
+	}
+
+	private synchronized void schedule() {
+		if (ticker != null) {
+			ticker.cancel(false);
+		}
+		ticker = scheduler.scheduleAtFixedRate(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		for (ShardMetrics metrics : getShards()) {
+			metrics.tick(now);
+			if (snapshotLogging) {
+				LOG.info(metrics);
+			}
+		}
+	}
+}
@@ -0,0 +1,730 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Buffers records in memory and sends them to a stream as PutRecords batches. A batch
+ * is sent as soon as it reaches the record or byte limit, or once the oldest buffered
+ * record has waited for the linger time. Several batches can be in flight at once, and
+ * only the entries that failed in a partially failed response are retried.
+ */
+public class KinesisProducer {
+
+	// PutRecords accepts at most 500 records and 5 MB (data plus partition keys) per request
+	public static final int MAX_RECORDS_PER_REQUEST = 500;
+	public static final long MAX_BYTES_PER_REQUEST = 5L * 1024 * 1024;
+	// a single record, data plus partition key, may not be larger than 1 MB
+	public static final int MAX_RECORD_BYTES = 1024 * 1024;
+	// aggregated records are kept well below that so they spread evenly over the shards
+	public static final int AGGREGATION_MAX_BYTES = 50 * 1024;
+
+	// Kinesis throttling errors the SDK doesn't count as throttling, worth retrying like those
+	private static final Set<String> THROTTLING_ERRORS = new HashSet<>(Arrays.asList(
+			"LimitExceededException", "KMSThrottlingException"));
+
+	private final AmazonKinesis kinesis;
+	private final String myStreamName;
+
+	// batching settings - see the setters below
+	private volatile int maxBatchRecords = MAX_RECORDS_PER_REQUEST;
+	private volatile long maxBatchBytes = MAX_BYTES_PER_REQUEST;
+	private volatile long lingerMillis = 100;
+	private volatile int maxInFlight = 8;
+	private volatile int maxBufferedRecords = 100000;
+	private volatile int maxRetries = 5;
+	private volatile long retryBackoffMillis = 100;
+	private volatile boolean aggregationEnabled = false;
+	private volatile ReshardPlanner reshardPlanner;
+	private volatile ShardMap shardMap;
+	private volatile boolean spreadEvenly = false;
+	private volatile BufferPool bufferPool = BufferPool.getDefault();
+	private volatile KinesisMetrics metrics = KinesisMetrics.getDefault();
+	private volatile ShardRateLimiter rateLimiter;
+	private volatile PayloadCompressor compressor;
+
+	// everything below the lock is guarded by it
+	private final Object lock = new Object();
+	private List<PendingRecord> buffer = new ArrayList<>();
+	private long bufferedBytes = 0;
+	private int bufferedRecords = 0;
+	private ScheduledFuture<?> lingerTask;
+	// small records are packed here first when aggregation is on, one aggregator per destination
+	// shard so every user record lands where its key says
+	private final Map<String, AggregationRoute> routes = new LinkedHashMap<>();
+	private int aggregatedRecords = 0;
+	private final List<List<PendingRecord>> readyBatches = new ArrayList<>();
+	private int batchesInFlight = 0;
+	private boolean closed = false;
+
+	// futures of every record that has been added but not completed yet, used by flush()
+	private final Set<CompletableFuture<PutRecordsResultEntry>> outstanding = ConcurrentHashMap.newKeySet();
+
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService senders;
+
+	public KinesisProducer(AmazonKinesis kinesis, String myStreamName) {
+		this.kinesis = kinesis;
+		this.myStreamName = myStreamName;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("kinesis-producer-timer"));
+		this.senders = Executors.newCachedThreadPool(daemonThreads("kinesis-producer-sender"));
+	}
+
+	// maximum number of records per PutRecords request, between 1 and 500
+	public void setMaxBatchRecords(int maxBatchRecords) {
+		if (maxBatchRecords < 1 || maxBatchRecords > MAX_RECORDS_PER_REQUEST) {
+			throw new IllegalArgumentException("maxBatchRecords must be between 1 and "+MAX_RECORDS_PER_REQUEST);
+		}
+		this.maxBatchRecords = maxBatchRecords;
+	}
+
+	// maximum size of a PutRecords request in bytes, at most 5 MB
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		if (maxBatchBytes < MAX_RECORD_BYTES || maxBatchBytes > MAX_BYTES_PER_REQUEST) {
+			throw new IllegalArgumentException("maxBatchBytes must be between "+MAX_RECORD_BYTES+" and "+MAX_BYTES_PER_REQUEST);
+		}
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	// how long a record may sit in the buffer before its batch is sent anyway
+	public void setLingerMillis(long lingerMillis) {
+		this.lingerMillis = lingerMillis;
+	}
+
+	// how many PutRecords requests may be running at the same time
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	// once this many records are waiting, addRecord blocks until some of them are sent
+	public void setMaxBufferedRecords(int maxBufferedRecords) {
+		this.maxBufferedRecords = maxBufferedRecords;
+	}
+
+	// how often a failed record is retried before its future completes exceptionally
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	// the first retry waits about this long, each further retry waits twice as long
+	public void setRetryBackoffMillis(long retryBackoffMillis) {
+		this.retryBackoffMillis = retryBackoffMillis;
+	}
+
+	// pack many small user records into each Kinesis record (see RecordAggregator). Consumers
+	// need to unpack them again, which getMyStreamData does. Records are only packed together
+	// with records bound for the same shard, so without a shard map the producer builds its own
+	public void setAggregationEnabled(boolean aggregationEnabled) {
+		this.aggregationEnabled = aggregationEnabled;
+	}
+
+	// report every record written to the planner, so it can tell which shards (and which parts
+	// of their hash key range) are hot
+	public void setReshardPlanner(ReshardPlanner reshardPlanner) {
+		this.reshardPlanner = reshardPlanner;
+	}
+
+	// with a shard map the producer knows which shard each record goes to: aggregated records
+	// are grouped per shard, and the map is refreshed when a put lands somewhere unexpected
+	public void setShardMap(ShardMap shardMap) {
+		this.shardMap = shardMap;
+	}
+
+	// give records without an explicit hash key one that takes the open shards in turn (needs a
+	// shard map). Spreads load evenly however few partition keys there are, at the cost of
+	// per-key ordering
+	public void setSpreadEvenly(boolean spreadEvenly) {
+		this.spreadEvenly = spreadEvenly;
+	}
+
+	// where addRecord with a codec gets its scratch buffers for encoding from
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	// hold batches back until every shard they write to has room for them, instead of sending
+	// them and having the records over the shard's limit throttled
+	public void setRateLimiter(ShardRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	// compress payloads before they are sent, either each user record or each Kinesis record
+	// depending on the compressor's mode. Readers decompress through RecordDeaggregator
+	public void setCompressor(PayloadCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	// where per-shard put latencies, throughput, throttles and retries are reported
+	public void setMetrics(KinesisMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public String getStreamName() {
+		return myStreamName;
+	}
+
+	// add a String to the buffer, encoded as UTF-8
+	public CompletableFuture<PutRecordsResultEntry> addRecord(String partitionKey, String data) {
+		return addRecord(partitionKey, null, ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	public CompletableFuture<PutRecordsResultEntry> addRecord(String partitionKey, ByteBuffer data) {
+		return addRecord(partitionKey, null, data);
+	}
+
+	// add a value encoded with the codec. The value is encoded into a buffer from the pool and
+	// copied out at its exact size, so the pool buffer goes back before this returns rather than
+	// being held by a record that may wait in the buffer (or in an aggregate) for a while
+	public <T> CompletableFuture<PutRecordsResultEntry> addRecord(String partitionKey, T value, RecordCodec<T> codec) {
+		BufferPool pool = bufferPool;
+		ByteBuffer scratch = pool.acquire();
+		ByteBuffer data;
+		try {
+			ByteBuffer encoded = codec.encode(value, scratch);
+			if (encoded == scratch) {
+				data = ByteBuffer.allocate(encoded.remaining());
+				data.put(encoded).flip();
+			}
+			else {
+				// the codec handed back a buffer of its own, nothing to copy out of the pool
+				data = encoded;
+			}
+		}
+		finally {
+			pool.release(scratch);
+		}
+		return addRecord(partitionKey, null, data);
+	}
+
+	// add a record to the buffer. The returned future completes with the shard ID and sequence
+	// number once Kinesis has accepted the record, or exceptionally if it could not be put.
+	// The data buffer must not be changed until the future completes.
+	public CompletableFuture<PutRecordsResultEntry> addRecord(String partitionKey, String explicitHashKey,
+			ByteBuffer data) {
+		if (partitionKey == null || partitionKey.isEmpty() || partitionKey.length() > 256) {
+			throw new IllegalArgumentException("partition key must be between 1 and 256 characters");
+		}
+		PendingRecord record = new PendingRecord(partitionKey, explicitHashKey, data);
+		CompletableFuture<PutRecordsResultEntry> future = record.future;
+		PayloadCompressor c = compressor;
+		if (c != null && c.getMode() == PayloadCompressor.Mode.RECORD) {
+			// on the caller's thread, before the record is aggregated
+			record.compress(c);
+		}
+		if (record.size > MAX_RECORD_BYTES) {
+			throw new IllegalArgumentException("record of "+record.size+" bytes is larger than "+MAX_RECORD_BYTES);
+		}
+		boolean aggregate = aggregationEnabled;
+		if (aggregate && shardMap == null) {
+			createShardMap();
+		}
+		synchronized (lock) {
+			// hold the caller back while too much is waiting to be sent
+			while (!closed && bufferedRecords >= maxBufferedRecords) {
+				try {
+					lock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			if (closed) {
+				throw new IllegalStateException("producer for "+myStreamName+" is closed");
+			}
+			outstanding.add(future);
+			future.whenComplete((r, t) -> outstanding.remove(future));
+			bufferedRecords++;
+
+			ShardMap map = shardMap;
+			boolean spread = spreadEvenly && map != null && explicitHashKey == null;
+			if (spread && !aggregate) {
+				record.explicitHashKey = map.nextExplicitHashKey();
+			}
+			if (map != null && !spread) {
+				record.shardId = map.shardIdFor(partitionKey, explicitHashKey);
+			}
+
+			if (aggregate) {
+				// spread records share one aggregator, the container is given its hash key when sealed.
+				// Everything else is routed by the shard its key maps to
+				String routeKey = record.shardId == null ? "" : record.shardId;
+				AggregationRoute route = routes.get(routeKey);
+				if (route == null) {
+					route = new AggregationRoute(record.shardId, spread);
+					routes.put(routeKey, route);
+				}
+				// a full aggregate is sealed and the record starts the next one
+				if (!route.aggregator.addUserRecord(partitionKey, explicitHashKey, record.data)) {
+					sealAggregate(route);
+					if (!route.aggregator.addUserRecord(partitionKey, explicitHashKey, record.data)) {
+						// too big to aggregate even on its own, send it as a plain record. It won't
+						// get the container's hash key, so a spread record takes the next one here
+						if (spread) {
+							record.explicitHashKey = map.nextExplicitHashKey();
+						}
+						enqueue(record);
+						record = null;
+					}
+				}
+				if (record != null) {
+					route.userRecords.add(record);
+					aggregatedRecords++;
+				}
+			}
+			else {
+				enqueue(record);
+			}
+
+			if (lingerTask == null && (!buffer.isEmpty() || aggregatedRecords > 0)) {
+				// first record of a new batch, make sure it won't wait longer than the linger time
+				lingerTask = scheduler.schedule(this::lingerExpired, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+			dispatch();
+		}
+		return future;
+	}
+
+	// the container of an aggregate is sent with its first user record's partition key, so the
+	// other user records only land where their keys say if they were grouped by shard first.
+	// Aggregating without a shard map set builds one from the stream's current shards
+	private synchronized void createShardMap() {
+		if (shardMap == null) {
+			shardMap = new ShardMap(kinesis, myStreamName);
+		}
+	}
+
+	// add a Kinesis record to the current batch (caller holds the lock)
+	private void enqueue(PendingRecord record) {
+		// a record that doesn't fit goes into the next batch
+		if (!buffer.isEmpty() && bufferedBytes + record.size > maxBatchBytes) {
+			drainBuffer();
+		}
+		buffer.add(record);
+		bufferedBytes += record.size;
+		if (buffer.size() >= maxBatchRecords) {
+			drainBuffer();
+		}
+	}
+
+	// turn the user records collected in a route's aggregator into one Kinesis record (caller holds the lock)
+	private void sealAggregate(AggregationRoute route) {
+		List<PendingRecord> userRecords = route.userRecords;
+		if (userRecords.isEmpty()) {
+			return;
+		}
+		PendingRecord container;
+		if (userRecords.size() == 1) {
+			// a lone record goes out as it is, aggregating it would only add overhead
+			container = userRecords.get(0);
+		}
+		else {
+			container = new PendingRecord(route.aggregator.getPartitionKey(), route.aggregator.getExplicitHashKey(),
+					route.aggregator.toByteBuffer(), new ArrayList<>(userRecords));
+			container.shardId = route.shardId;
+		}
+		ShardMap map = shardMap;
+		if (route.spread && map != null) {
+			container.explicitHashKey = map.nextExplicitHashKey();
+		}
+		aggregatedRecords -= userRecords.size();
+		route.aggregator.clear();
+		userRecords.clear();
+		enqueue(container);
+	}
+
+	// send whatever is buffered right away. The returned future completes once every record
+	// added before this call has completed, successfully or not.
+	public CompletableFuture<Void> flush() {
+		synchronized (lock) {
+			sendAll();
+			dispatch();
+		}
+		CompletableFuture<?>[] pending = outstanding.toArray(new CompletableFuture<?>[0]);
+		// a failed record shouldn't make flush fail, the caller sees it on the record's own future
+		return CompletableFuture.allOf(pending).handle((r, t) -> null);
+	}
+
+	// send everything that is buffered, wait for it, and release the producer threads
+	public void close() {
+		flush().join();
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		scheduler.shutdown();
+		senders.shutdown();
+	}
+
+	private void lingerExpired() {
+		synchronized (lock) {
+			lingerTask = null;
+			sendAll();
+			dispatch();
+		}
+	}
+
+	// seal every aggregate and make everything buffered ready to be sent (caller holds the lock)
+	private void sendAll() {
+		if (lingerTask != null) {
+			lingerTask.cancel(false);
+			lingerTask = null;
+		}
+		for (AggregationRoute route : routes.values()) {
+			sealAggregate(route);
+		}
+		// routes of shards that are gone would otherwise pile up after reshards
+		routes.clear();
+		drainBuffer();
+	}
+
+	// move the buffered records into a batch that is ready to be sent (caller holds the lock)
+	private void drainBuffer() {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		readyBatches.add(buffer);
+		buffer = new ArrayList<>();
+		bufferedBytes = 0;
+	}
+
+	// start sending ready batches while there is room for more requests (caller holds the lock)
+	private void dispatch() {
+		while (!readyBatches.isEmpty() && batchesInFlight < maxInFlight) {
+			List<PendingRecord> batch = readyBatches.remove(0);
+			batchesInFlight++;
+			senders.execute(() -> send(batch, 0));
+		}
+	}
+
+	// called once every record of a batch has completed
+	private void batchDone(int records) {
+		synchronized (lock) {
+			batchesInFlight--;
+			bufferedRecords -= records;
+			lock.notifyAll();
+			dispatch();
+		}
+	}
+
+	// reserve room on the batch's shards, and send it once there is
+	private void send(List<PendingRecord> batch, int attempt) {
+		PayloadCompressor c = compressor;
+		if (c != null && c.getMode() == PayloadCompressor.Mode.BATCH) {
+			// on the sender thread, so the producer lock isn't held while compressing
+			for (PendingRecord record : batch) {
+				if (!record.compressed) {
+					record.compress(c);
+				}
+			}
+		}
+		ShardRateLimiter limiter = rateLimiter;
+		long wait = 0;
+		if (limiter != null) {
+			for (PendingRecord record : batch) {
+				String shardId = record.shardId != null ? record.shardId
+						: limiter.shardIdFor(record.partitionKey, record.explicitHashKey);
+				wait = Math.max(wait, limiter.reserveWrite(shardId, record.size));
+			}
+		}
+		if (wait > 0) {
+			// the sender thread is free for other batches in the meantime
+			scheduler.schedule(() -> senders.execute(() -> putBatch(batch, attempt)), wait, TimeUnit.NANOSECONDS);
+		}
+		else {
+			putBatch(batch, attempt);
+		}
+	}
+
+	private void putBatch(List<PendingRecord> batch, int attempt) {
+		// build a configurable request object
+		PutRecordsRequest putRecordsRequest = new PutRecordsRequest();
+		putRecordsRequest.setStreamName(myStreamName);
+		List<PutRecordsRequestEntry> entries = new ArrayList<>(batch.size());
+		for (PendingRecord record : batch) {
+			PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+			entry.setPartitionKey(record.partitionKey);
+			entry.setExplicitHashKey(record.explicitHashKey);
+			// hand the SDK its own view so the caller's position and limit are left alone
+			entry.setData(record.data.duplicate());
+			entries.add(entry);
+		}
+		putRecordsRequest.setRecords(entries);
+
+		KinesisMetrics m = metrics;
+		long start = System.nanoTime();
+		PutRecordsResult result;
+		try {
+			result = kinesis.putRecords(putRecordsRequest);
+		}
+		catch (AmazonClientException e) {
+			// the whole request failed, so every record in it is retried
+			if (e instanceof ProvisionedThroughputExceededException) {
+				for (PendingRecord record : batch) {
+					m.shard(myStreamName, predictedShard(record)).recordPutThrottled();
+				}
+			}
+			retryOrFail(batch, attempt, e);
+			return;
+		}
+		catch (RuntimeException e) {
+			completeExceptionally(batch, e);
+			return;
+		}
+
+		// the result entries are in the same order as the request entries. An entry with an
+		// error code failed, the rest were written and carry their shard ID and sequence number
+		long latency = System.nanoTime() - start;
+		List<PutRecordsResultEntry> resultEntries = result.getRecords();
+		List<PendingRecord> failed = new ArrayList<>();
+		String lastError = null;
+		int succeeded = 0;
+		ReshardPlanner planner = reshardPlanner;
+		ShardMap map = shardMap;
+		// records and bytes written per shard, so the call's latency is counted once per shard
+		Map<String, long[]> written = new LinkedHashMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			PutRecordsResultEntry resultEntry = resultEntries.get(i);
+			PendingRecord record = batch.get(i);
+			if (resultEntry.getErrorCode() == null) {
+				// a record that didn't land where the shard map said means the map is out of date
+				if (map != null && record.shardId != null && !record.shardId.equals(resultEntry.getShardId())) {
+					map.refreshAsync();
+				}
+				if (planner != null) {
+					recordIngest(planner, resultEntry.getShardId(), record);
+				}
+				long[] totals = written.computeIfAbsent(resultEntry.getShardId(), k -> new long[2]);
+				totals[0]++;
+				totals[1] += record.size;
+				if (record.uncompressedBytes >= 0) {
+					m.shard(myStreamName, resultEntry.getShardId()).recordCompression(record.uncompressedBytes, record.compressedBytes);
+				}
+				record.complete(resultEntry);
+				succeeded += record.userRecordCount();
+			}
+			else {
+				if ("ProvisionedThroughputExceededException".equals(resultEntry.getErrorCode())) {
+					m.shard(myStreamName, predictedShard(record)).recordPutThrottled();
+				}
+				failed.add(record);
+				lastError = resultEntry.getErrorCode()+": "+resultEntry.getErrorMessage();
+			}
+		}
+		for (Map.Entry<String, long[]> shard : written.entrySet()) {
+			m.shard(myStreamName, shard.getKey()).recordPut(latency, (int) shard.getValue()[0], shard.getValue()[1]);
+		}
+		if (failed.isEmpty()) {
+			batchDone(succeeded);
+		}
+		else {
+			releaseRecords(succeeded);
+			retryOrFail(failed, attempt, new AmazonClientException(lastError));
+		}
+	}
+
+	// schedule another attempt for the records with exponential backoff and jitter, or give up
+	private void retryOrFail(List<PendingRecord> records, int attempt, AmazonClientException cause) {
+		if (attempt >= maxRetries || !isRetryable(cause)) {
+			completeExceptionally(records, cause);
+			return;
+		}
+		KinesisMetrics m = metrics;
+		for (PendingRecord record : records) {
+			m.shard(myStreamName, predictedShard(record)).recordRetry();
+		}
+		long backoff = retryBackoffMillis << Math.min(attempt, 10);
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		scheduler.schedule(() -> senders.execute(() -> send(records, attempt + 1)), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void completeExceptionally(List<PendingRecord> records, Throwable cause) {
+		int count = 0;
+		for (PendingRecord record : records) {
+			record.completeExceptionally(cause);
+			count += record.userRecordCount();
+		}
+		batchDone(count);
+	}
+
+	// some records of a batch are done while others are being retried
+	private void releaseRecords(int records) {
+		synchronized (lock) {
+			bufferedRecords -= records;
+			lock.notifyAll();
+		}
+	}
+
+	// client side failures (bad arguments, validation) are not worth retrying, unless the
+	// client was only throttled
+	static boolean isRetryable(AmazonClientException e) {
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException serviceException = (AmazonServiceException) e;
+			return serviceException.getErrorType() != AmazonServiceException.ErrorType.Client
+					|| RetryUtils.isThrottlingException(serviceException)
+					|| THROTTLING_ERRORS.contains(serviceException.getErrorCode());
+		}
+		return e.isRetryable();
+	}
+
+	// PutRecords errors only name the shard of successful entries, so failures are counted
+	// against the shard the shard map predicted, if there is one
+	private static String predictedShard(PendingRecord record) {
+		return record.shardId != null ? record.shardId : KinesisMetrics.UNKNOWN_SHARD;
+	}
+
+	// tell the planner about a written record. The user records of an aggregate are reported at
+	// their own hash keys, each with its share of the container, so the planner's split point
+	// follows the keys rather than whichever key happened to start each container. A container
+	// spread with a hash key of its own landed there as a whole
+	private static void recordIngest(ReshardPlanner planner, String shardId, PendingRecord record) {
+		List<PendingRecord> userRecords = record.userRecords;
+		if (userRecords == null || (record.explicitHashKey != null && userRecords.get(0).explicitHashKey == null)) {
+			planner.recordIngest(shardId, record.partitionKey, record.explicitHashKey, record.size);
+			return;
+		}
+		long userBytes = 0;
+		for (PendingRecord userRecord : userRecords) {
+			userBytes += userRecord.size;
+		}
+		double share = 1.0 / userRecords.size();
+		for (PendingRecord userRecord : userRecords) {
+			int bytes = (int) Math.round((double) record.size * userRecord.size / Math.max(userBytes, 1));
+			planner.recordIngest(shardId, userRecord.partitionKey, userRecord.explicitHashKey, bytes, share);
+		}
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	// the aggregator collecting user records for one destination shard
+	private static class AggregationRoute {
+		final String shardId;
+		final boolean spread;
+		final RecordAggregator aggregator = new RecordAggregator(AGGREGATION_MAX_BYTES);
+		final List<PendingRecord> userRecords = new ArrayList<>();
+
+		AggregationRoute(String shardId, boolean spread) {
+			this.shardId = shardId;
+			this.spread = spread;
+		}
+	}
+
+	// a Kinesis record waiting to be sent, together with the future handed back to the caller.
+	// An aggregated record completes the futures of all the user records packed into it
+	private static class PendingRecord {
+		final String partitionKey;
+		String explicitHashKey;
+		// the shard the shard map predicted, if there is one
+		String shardId;
+		ByteBuffer data;
+		int size;
+		// payload bytes before and after compression, -1 if no compressor saw the record
+		long uncompressedBytes = -1;
+		long compressedBytes = -1;
+		boolean compressed = false;
+		final CompletableFuture<PutRecordsResultEntry> future = new CompletableFuture<>();
+		final List<PendingRecord> userRecords;
+
+		PendingRecord(String partitionKey, String explicitHashKey, ByteBuffer data) {
+			this(partitionKey, explicitHashKey, data, null);
+		}
+
+		PendingRecord(String partitionKey, String explicitHashKey, ByteBuffer data, List<PendingRecord> userRecords) {
+			this.partitionKey = partitionKey;
+			this.explicitHashKey = explicitHashKey;
+			this.data = data;
+			this.size = data.remaining() + RecordAggregator.utf8Length(partitionKey);
+			this.userRecords = userRecords;
+			// an aggregate of compressed user records counts what they saved
+			if (userRecords != null) {
+				for (PendingRecord userRecord : userRecords) {
+					if (userRecord.uncompressedBytes >= 0) {
+						uncompressedBytes = Math.max(uncompressedBytes, 0) + userRecord.uncompressedBytes;
+						compressedBytes = Math.max(compressedBytes, 0) + userRecord.compressedBytes;
+					}
+				}
+			}
+		}
+
+		// replace the payload with its compressed form (the caller's buffer is left alone)
+		void compress(PayloadCompressor compressor) {
+			int before = data.remaining();
+			data = compressor.compress(data);
+			size = data.remaining() + RecordAggregator.utf8Length(partitionKey);
+			if (uncompressedBytes < 0) {
+				uncompressedBytes = before;
+			}
+			compressedBytes = data.remaining();
+			compressed = true;
+		}
+
+		int userRecordCount() {
+			return userRecords == null ? 1 : userRecords.size();
+		}
+
+		void complete(PutRecordsResultEntry entry) {
+			if (userRecords == null) {
+				future.complete(entry);
+				return;
+			}
+			for (PendingRecord userRecord : userRecords) {
+				userRecord.future.complete(entry);
+			}
+		}
+
+		void completeExceptionally(Throwable cause) {
+			if (userRecords == null) {
+				future.completeExceptionally(cause);
+				return;
+			}
+			for (PendingRecord userRecord : userRecords) {
+				userRecord.future.completeExceptionally(cause);
+			}
+		}
+	}
+}
@@ -6,8 +6,8 @@
  */
 
 
+package cscie90.kinesis;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -16,6 +16,7 @@ import org.apache.commons.logging.LogFactory;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.model.Record;
 import com.amazonaws.services.kinesis.model.Shard;
@@ -30,27 +31,21 @@ public class KinesisRunner {
 	private static final Log LOG = LogFactory.getLog(KinesisRunner.class);
 
     public static void main(String[] args) throws Exception {
-    	// fetch my access credentials from the credentials file stored locally
-	    AWSCredentials credentials = null;     
-        try {
-            credentials = new ProfileCredentialsProvider("default").getCredentials();
-        } catch (Exception e) {
-            throw new AmazonClientException(
-                    "Cannot load the credentials from the credential profiles file. " +
-                    "Please make sure that your credentials file is at the correct " +
-                    "location (/home/greg/.aws/credentials), and is in valid format.",
-                    e);
-        }
-        
-        // set up my access client using my account credentials
-        AmazonKinesisClient kinesis = new AmazonKinesisClient(credentials);
-        Region usEast1 = Region.getRegion(Regions.US_EAST_1);
-        kinesis.setEndpoint("kinesis.us-east-1.amazonaws.com");
-        kinesis.setRegion(usEast1);
+    	AmazonKinesis kinesis;
+    	// "local" runs the whole demo against an in-process stand-in instead of AWS
+    	if (args.length > 0 && "local".equals(args[0])) {
+    		LOG.info("Running against LocalKinesis, nothing is sent to AWS");
+    		kinesis = new LocalKinesis();
+    	}
+    	else {
+    		kinesis = createAwsClient();
+    	}
         
         
         // instantiate my utility class which contains methods for the basic Kinesis operations
         KinesisUtils kus = new KinesisUtils();
+        // the demo puts strings, so the records are read back as UTF-8
+        RecordCodec<String> utf8 = new Utf8StringCodec();
         
         // set a stream name to create in AWS
         String streamName = "helloGreg2";
@@ -64,13 +59,19 @@ public class KinesisRunner {
         List<String> myStreamsList = kus.listMyStreams(kinesis);
         System.out.println("All streams in my account: "+myStreamsList+"\n");
         
-        // put some String data up on the stream
+        // put some String data up on the stream. The producer buffers the records and sends
+        // them together in PutRecords batches instead of one request per record
+        KinesisProducer producer = kus.createMyProducer(kinesis, streamName);
+        // our records are tiny, so pack many of them into each Kinesis record
+        producer.setAggregationEnabled(true);
         String hello = "hello";
         String session = "session";
         for (int x=0; x<10; x++) {
         	hello = "hello"+x;
-        	kus.putMyData (kinesis, hello, session, streamName);
+        	producer.addRecord(session+x, hello, utf8);
         }
+        // wait until every record has been accepted by Kinesis
+        producer.flush().join();
        
         // get details about a particular stream, and all of the shards in it
         System.out.println("Stream details for "+streamName+":");
@@ -82,24 +83,11 @@ public class KinesisRunner {
         
         // now to print out the data from each shard. In a real application we
         // would be doing more with the data than just printing it out, but understanding
-        // how to access your data in the first place is the biggest challenge
-        List<Record> streamData;
-        // iterate through all shards
-        for (int i=0; i< shardsCount; i++) {
-        	// get the records from the stream
-        	streamData = kus.getMyStreamData(kinesis, myShards.get(i) ,streamName);
-        	// display the raw data info, but you won't be able to see the actual data objects
-        	System.out.println("My data from shard "+i+" is: "+streamData+"\n");
-        	
-        	// data objects are all stored as ByteBuffers. In this demo they were simple
-        	// strings, so lets convert them back to strings and display
-        	for (int j=0; j<streamData.size(); j++){
-        		Record r = streamData.get(j);
-        		ByteBuffer b = r.getData();
-        		String v = new String(b.array());
-        		System.out.println(j+" Data value = "+v);
-        	}
-        }
+        // how to access your data in the first place is the biggest challenge.
+        // Data objects are all stored as ByteBuffers. In this demo they were simple strings,
+        // so the pipeline decodes them back to strings before they are displayed
+        RecordPipeline<String> values = RecordPipeline.decode(utf8);
+        printMyData(kus, kinesis, streamName, myShards, values);
         
         System.out.println("");
         
@@ -126,61 +114,36 @@ public class KinesisRunner {
         // put some String data up on the stream to populate the one shard
         for (int x=0; x<50; x++) {
         	hello = "stream2data"+x;
-        	kus.putMyData (kinesis, hello, session, streamName);
+        	producer.addRecord(session+x, hello, utf8);
         }
+        producer.flush().join();
         
         System.out.println("Trying to split a shard...");
-        kus.splitMyShard(kinesis, myShards.get(2), streamName);
+        // after the merge the list also holds the two closed parents, so ask the shard graph
+        // for the shard that is still open rather than relying on its position in the list
+        Shard openShard = new ShardGraph(myShards).getOpenShards().get(0);
+        kus.splitMyShard(kinesis, openShard, streamName);
         
         // update shard info again
         myShards = kus.getMyShards(kinesis, streamName);
-        shardsCount = myShards.size();
         
         // since we split the shard with data into two and had it divide up the partition
         // keys, we'd expect to see the data divided between the two ACTIVE remaining shards
-        for (int i=0; i< shardsCount; i++) {
-        	// get the records from the stream
-        	streamData = kus.getMyStreamData(kinesis, myShards.get(i) ,streamName);
-        	// display the raw data info, but you won't be able to see the actual data objects
-        	System.out.println("My data from shard "+i+" is: "+streamData+"\n");
-        	
-        	// data objects are all stored as ByteBuffers. In this demo they were simple
-        	// strings, so lets convert them back to strings and display
-        	for (int j=0; j<streamData.size(); j++){
-        		Record r = streamData.get(j);
-        		ByteBuffer b = r.getData();
-        		String v = new String(b.array());
-        		System.out.println(j+" Data value = "+v);
-        	}
-        }
+        printMyData(kus, kinesis, streamName, myShards, values);
         
         // put some String data up on the stream to populate the one shard
         for (int x=0; x<100; x++) {
         	hello = "stream3data"+x;
-        	kus.putMyData (kinesis, hello, session, streamName);
+        	producer.addRecord(session+x, hello, utf8);
         }
+        producer.close();
         
         // update shard info again
         myShards = kus.getMyShards(kinesis, streamName);
-        shardsCount = myShards.size();
         
         // since we split the shard with data into two and had it divide up the partition
         // keys, we'd expect to see the data divided between the two ACTIVE remaining shards
-        for (int i=0; i< shardsCount; i++) {
-        	// get the records from the stream
-        	streamData = kus.getMyStreamData(kinesis, myShards.get(i) ,streamName);
-        	// display the raw data info, but you won't be able to see the actual data objects
-        	System.out.println("My data from shard "+i+" is: "+streamData+"\n");
-        	
-        	// data objects are all stored as ByteBuffers. In this demo they were simple
-        	// strings, so lets convert them back to strings and display
-        	for (int j=0; j<streamData.size(); j++){
-        		Record r = streamData.get(j);
-        		ByteBuffer b = r.getData();
-        		String v = new String(b.array());
-        		System.out.println(j+" Data value = "+v);
-        	}
-        }
+        printMyData(kus, kinesis, streamName, myShards, values);
         
         // delete the stream we created for this sample (streams cost money...)
         kus.deleteMyStream(kinesis, streamName);
@@ -188,5 +151,41 @@ public class KinesisRunner {
         System.out.println("done");
     }
     
-
+    // read one bunch of records from each shard and run them through the pipeline, which
+    // prints every value along with the shard it came from
+    private static void printMyData(KinesisUtils kus, AmazonKinesis kinesis, String streamName,
+    		List<Shard> myShards, RecordPipeline<String> values) {
+    	PipelineProcessor printer = values.sink((shardId, value) -> 
+    			System.out.println(shardId+" data value = "+value));
+    	for (Shard shard : myShards) {
+    		// get the records from the stream
+    		List<Record> streamData = kus.getMyStreamData(kinesis, shard, streamName);
+    		System.out.println("Read "+streamData.size()+" records from shard "+shard.getShardId());
+    		printer.processRecords(shard.getShardId(), streamData, 0);
+    	}
+    	// wait until every value has been printed
+    	printer.close();
+    	System.out.println("");
+    }
+    
+    // set up my access client using my account credentials
+    private static AmazonKinesis createAwsClient() {
+    	// fetch my access credentials from the credentials file stored locally
+	    AWSCredentials credentials = null;     
+        try {
+            credentials = new ProfileCredentialsProvider("default").getCredentials();
+        } catch (Exception e) {
+            throw new AmazonClientException(
+                    "Cannot load the credentials from the credential profiles file. " +
+                    "Please make sure that your credentials file is at the correct " +
+                    "location (/home/greg/.aws/credentials), and is in valid format.",
+                    e);
+        }
+        
+        AmazonKinesisClient kinesis = new AmazonKinesisClient(credentials);
+        Region usEast1 = Region.getRegion(Regions.US_EAST_1);
+        kinesis.setEndpoint("kinesis.us-east-1.amazonaws.com");
+        kinesis.setRegion(usEast1);
+        return kinesis;
+    }
 }
@@ -0,0 +1,552 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing 
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.CreateStreamRequest;
+import com.amazonaws.services.kinesis.model.DeleteStreamRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.GetShardIteratorResult;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+import com.amazonaws.services.kinesis.model.MergeShardsRequest;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.ResourceInUseException;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.SplitShardRequest;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+
+public class KinesisUtils {
+	
+	// shared by all instances, so every wait on the same stream uses one describeStream loop
+	private static final StreamStateWaiter WAITER = new StreamStateWaiter();
+	private static final Log LOG = LogFactory.getLog(KinesisUtils.class);
+	// put and get latencies, throughput and throttling per shard, published over JMX
+	private static final KinesisMetrics METRICS = KinesisMetrics.getDefault();
+	// stream status, shard lists and stream names, shared so callers don't repeat describeStream
+	private static final StreamMetadataCache METADATA = new StreamMetadataCache();
+	// encoding buffers for putMyData, returned as soon as the put has been sent
+	private static final BufferPool BUFFERS = BufferPool.getDefault();
+	private static final RecordCodec<String> UTF8 = new Utf8StringCodec();
+	
+	// per-shard limits putMyData and getMyStreamData wait for, only used for the limiter's stream
+	private volatile ShardRateLimiter rateLimiter;
+	// compresses every payload putMyData sends, if set
+	private volatile PayloadCompressor compressor;
+	// where putMyData keeps records Kinesis couldn't take, if set
+	private volatile SpillBuffer spillBuffer;
+	
+	public KinesisUtils(){
+	}
+	
+	// keep putMyData and getMyStreamData under the shard limits of the limiter's stream by
+	// waiting before each call, rather than being throttled
+	public void setRateLimiter(ShardRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	// compress each record putMyData sends. getMyStreamData decompresses whatever it reads
+	public void setCompressor(PayloadCompressor compressor) {
+		this.compressor = compressor;
+	}
+	
+	// keep records putMyData couldn't put because of throttling or a failed connection in the
+	// spill buffer, which puts them again once the stream accepts writes, instead of throwing.
+	// Once the buffer is at its disk cap, putMyData throws again
+	public void setSpillBuffer(SpillBuffer spillBuffer) {
+		this.spillBuffer = spillBuffer;
+	}
+	
+	// the limiter for this stream, or null
+	private ShardRateLimiter rateLimiterFor(String myStreamName) {
+		ShardRateLimiter limiter = rateLimiter;
+		return limiter != null && limiter.getStreamName().equals(myStreamName) ? limiter : null;
+	}
+	
+	// wait for a reservation, failing the same way getMyStreamData's sleep does when interrupted
+	private static void pause(long nanos) {
+		try {
+			ShardRateLimiter.pause(nanos);
+		}
+		catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(exception);
+		}
+	}
+	
+	// block until the waiter's future completes, failing the same way the old polling loops did
+	private static StreamDescription awaitStream(CompletableFuture<StreamDescription> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+	
+	// the waiter behind createMyStream, mergeMyShards and splitMyShard, for callers that would
+	// rather not block
+	public StreamStateWaiter getStreamStateWaiter() {
+		return WAITER;
+	}
+	
+	// the cache behind getMyShards and listMyStreams
+	public StreamMetadataCache getMetadataCache() {
+		return METADATA;
+	}
+	
+	// Create a stream with a specific name and specified number of starting shards
+	public void createMyStream(AmazonKinesis kinesis, String myStreamName, int streamSize) {
+		System.out.println("Creating a stream named "+myStreamName+" (this will take a few moments)");
+		// build a configurable request object
+		CreateStreamRequest createStreamRequest = new CreateStreamRequest();
+		// name of the stream you wish to create, this will need to be known when putting data into kinesis
+		createStreamRequest.setStreamName( myStreamName );
+		// stream size could also be called shard count
+		createStreamRequest.setShardCount( streamSize );
+		// send the request to AWS
+		try {
+			kinesis.createStream(createStreamRequest);
+		}
+		// if a stream already exists with this name, you cannot create it
+		catch (ResourceInUseException re) {
+			System.out.println("**Stream not created: "+myStreamName+" is already in use\n");
+		}
+		
+		// wait for the stream to become ACTIVE. The waiter checks back soon after the request
+		// and then less and less often, instead of on a fixed timer
+		awaitStream(WAITER.awaitActive(kinesis, myStreamName));
+		METADATA.evict(kinesis, myStreamName);
+		System.out.println(myStreamName+" is ACTIVE\n");
+	}
+	
+	// List all of the streams in your account. The names are cached for a few seconds, so
+	// asking again doesn't walk every listStreams page again
+	public List<String> listMyStreams(AmazonKinesis kinesis) {
+		return new ArrayList<>(METADATA.getStreamNames(kinesis));
+	}
+	
+	// put data onto the specified stream, Kinesis will determine which shard to use
+    public void putMyData (AmazonKinesis kinesis, String fileContent, String session, 
+    		String myStreamName) throws Exception {	
+    	putMyData(kinesis, fileContent, session, myStreamName, null);
+    }
+    
+    // same as above, but with a shard map the record gets an explicit hash key that takes the open
+    // shards in turn. The partition key only has five values, so on its own it can reach at most
+    // five shards however many the stream has
+    public void putMyData (AmazonKinesis kinesis, String fileContent, String session, 
+    		String myStreamName, ShardMap shardMap) throws Exception {	
+    	// set a random number range. We'll use these numbers for our partition keys
+    	// so that not all data goes to a single shard
+    	int max=5;
+    	int min=1;
+    	// the shared per-thread generator saves building a new Random for every record
+    	int randomNum = ThreadLocalRandom.current().nextInt(min, max + 1);
+    	
+    	// the data streams only take raw bytes, so your workers will need to know how to decode
+    	// what you've put up. UTF-8 always, never the platform's default charset
+    	ByteBuffer scratch = BUFFERS.acquire();
+    	try {
+    		ByteBuffer data = UTF8.encode(fileContent, scratch);
+    		PutRecordResult putRecordResult = putMyData(kinesis, data, session+randomNum, myStreamName, shardMap);
+    		
+    		// per-record detail only when asked for, the console is far too slow for every record
+    		if (LOG.isDebugEnabled() && putRecordResult == null) {
+    			LOG.debug("Spilled record with partition key "+session+randomNum+" for "+myStreamName);
+    		}
+    		else if (LOG.isDebugEnabled()) {
+    			LOG.debug("Put record with partition key "+session+randomNum+" to "+myStreamName+" shard "
+    					+putRecordResult.getShardId()+", sequence number "+putRecordResult.getSequenceNumber());
+    		}
+    	}
+    	finally {
+    		BUFFERS.release(scratch);
+    	}
+    }
+    
+    // put the bytes between the buffer's position and limit as they are - nothing is copied or
+    // re-encoded unless there is a compressor. The buffer's position is left alone. With a spill
+    // buffer, a record that couldn't be put is kept there and null is returned
+    public PutRecordResult putMyData (AmazonKinesis kinesis, ByteBuffer data, String partitionKey,
+    		String myStreamName, ShardMap shardMap) {
+    	// the compressed copy is sent instead, the caller's buffer stays as it was
+    	PayloadCompressor c = compressor;
+    	int uncompressedBytes = data.remaining();
+    	if (c != null) {
+    		data = c.compress(data);
+    	}
+    	// build a configurable request object
+    	PutRecordRequest putRecordRequest = new PutRecordRequest();
+    	// identify the stream name in the request object
+    	putRecordRequest.setStreamName(myStreamName);
+    	// ordering is not necessary for this data, so we don't need to set a sequence number
+    	putRecordRequest.setSequenceNumberForOrdering(null);
+    	// a view of the caller's buffer, so sending it doesn't move their position
+    	putRecordRequest.setData(data.duplicate());
+    	putRecordRequest.setPartitionKey(partitionKey);
+    	if (shardMap != null) {
+    		putRecordRequest.setExplicitHashKey(shardMap.nextExplicitHashKey());
+    	}
+    	// while earlier records wait in the spill buffer, later ones queue behind them so each
+    	// partition key stays in order
+    	SpillBuffer spill = spillBuffer;
+    	if (spill != null && !spill.isEmpty()) {
+    		spill.add(myStreamName, partitionKey, putRecordRequest.getExplicitHashKey(), data);
+    		return null;
+    	}
+    	// wait until the shard the record goes to has room for it
+    	ShardRateLimiter limiter = rateLimiterFor(myStreamName);
+    	if (limiter != null) {
+    		String shardId = limiter.shardIdFor(partitionKey, putRecordRequest.getExplicitHashKey());
+    		pause(limiter.reserveWrite(shardId, data.remaining() + RecordAggregator.utf8Length(partitionKey)));
+    	}
+    	// send the request to AWS, timing it for the shard's metrics
+    	long start = System.nanoTime();
+    	PutRecordResult putRecordResult;
+    	try {
+    		putRecordResult = kinesis.putRecord(putRecordRequest);
+    	}
+    	catch (AmazonClientException e) {
+    		if (e instanceof ProvisionedThroughputExceededException) {
+    			METRICS.shard(myStreamName, KinesisMetrics.UNKNOWN_SHARD).recordPutThrottled();
+    		}
+    		if (spill(e, putRecordRequest)) {
+    			return null;
+    		}
+    		throw e;
+    	}
+    	ShardMetrics shardMetrics = METRICS.shard(myStreamName, putRecordResult.getShardId());
+    	shardMetrics.recordPut(System.nanoTime() - start, 1, data.remaining());
+    	if (c != null) {
+    		shardMetrics.recordCompression(uncompressedBytes, data.remaining());
+    	}
+    	return putRecordResult;
+    }
+    
+    // hand a record that failed for a reason worth retrying to the spill buffer, if there is one.
+    // Returns false if the caller should see the failure after all
+    private boolean spill(AmazonClientException e, PutRecordRequest putRecordRequest) {
+    	SpillBuffer spill = spillBuffer;
+    	if (spill == null || !KinesisProducer.isRetryable(e)) {
+    		return false;
+    	}
+    	try {
+    		spill.add(putRecordRequest.getStreamName(), putRecordRequest.getPartitionKey(),
+    				putRecordRequest.getExplicitHashKey(), putRecordRequest.getData());
+    	}
+    	catch (IllegalStateException full) {
+    		e.addSuppressed(full);
+    		return false;
+    	}
+    	return true;
+    }
+    
+    public PutRecordResult putMyData (AmazonKinesis kinesis, byte[] data, String partitionKey,
+    		String myStreamName) {
+    	return putMyData(kinesis, ByteBuffer.wrap(data), partitionKey, myStreamName, null);
+    }
+    
+    // put a value encoded by the codec, using a pooled buffer for the encoding
+    public <T> PutRecordResult putMyData (AmazonKinesis kinesis, T value, RecordCodec<T> codec,
+    		String partitionKey, String myStreamName) {
+    	ByteBuffer scratch = BUFFERS.acquire();
+    	try {
+    		return putMyData(kinesis, codec.encode(value, scratch), partitionKey, myStreamName, null);
+    	}
+    	finally {
+    		BUFFERS.release(scratch);
+    	}
+    }
+    
+    // buffered alternative to putMyData - records added to the producer are sent in PutRecords
+    // batches, so many records share one network round trip. Close the producer when done.
+    public KinesisProducer createMyProducer(AmazonKinesis kinesis, String myStreamName) {
+    	return new KinesisProducer(kinesis, myStreamName);
+    }
+    
+    public void deleteMyStream(AmazonKinesis kinesis, String myStreamName) {
+    	// build a configurable request object
+    	DeleteStreamRequest deleteStreamRequest = new DeleteStreamRequest();
+    	// identify the name of the stream to be deleted
+    	deleteStreamRequest.setStreamName(myStreamName);
+    	
+    	// try to delete the identified stream
+    	try {
+    		System.out.println("Deleting the stream named "+myStreamName+"\n");
+    		kinesis.deleteStream(deleteStreamRequest);
+    		METADATA.evict(kinesis, myStreamName);
+    	}
+    	// if it doesn't exist, announce that the request failed
+    	catch (ResourceNotFoundException rnfe) {
+    		System.out.println("**Stream not deleted: "+myStreamName+" not found in your account\n");
+    	}
+    	
+    }
+    
+    public List<Record> getMyStreamData (AmazonKinesis kinesis, Shard shard, String myStreamName) {
+    	return getMyStreamData(kinesis, shard, myStreamName, null, null);
+    }
+    
+    // same as above, but hands the batch to the processor and resumes after the shard's last
+    // checkpoint, so repeated calls (and restarts) walk forward through the shard instead of
+    // replaying it from the beginning each time. The batch is only checkpointed once
+    // processRecords has returned, so a crash while it runs reads the batch again instead of
+    // skipping it. A shard read to its end is checkpointed as SHARD_END after shardEnded
+    public List<Record> getMyStreamData (AmazonKinesis kinesis, Shard shard, String myStreamName,
+    		CheckpointStore checkpointStore, RecordProcessor processor) {
+    	if (checkpointStore != null && processor == null) {
+    		throw new IllegalArgumentException("checkpointing needs a processor, a batch is only checkpointed once it has been processed");
+    	}
+    	if (checkpointStore != null && !processor.completesOnReturn()) {
+    		throw new IllegalArgumentException(processor.getClass().getSimpleName()+" is still working on records after"
+    				+ " processRecords returns, checkpointing the batch then could lose records");
+    	}
+    	String shardIterator;
+    	// build a configurable request object
+    	GetShardIteratorRequest getShardIteratorRequest = new GetShardIteratorRequest();
+    	// make an iterator for the identified stream
+    	getShardIteratorRequest.setStreamName(myStreamName);
+    	// now identify which shard to iterate over
+    	getShardIteratorRequest.setShardId(shard.getShardId());
+    	// there are four iterator types, and 'horizon' indicates that we start with the first record
+    	getShardIteratorRequest.setShardIteratorType("TRIM_HORIZON");
+    	// if we've been here before, pick up right after the last record we processed
+    	String checkpoint = checkpointStore == null ? null 
+    			: checkpointStore.getCheckpoint(myStreamName, shard.getShardId());
+    	// a shard a consumer has read to the end has nothing left, and SHARD_END is no sequence number
+    	if (CheckpointStore.SHARD_END.equals(checkpoint)) {
+    		return new ArrayList<>();
+    	}
+    	if (checkpoint != null) {
+    		getShardIteratorRequest.setShardIteratorType("AFTER_SEQUENCE_NUMBER");
+    		getShardIteratorRequest.setStartingSequenceNumber(checkpoint);
+    	}
+
+    	GetShardIteratorResult getShardIteratorResult = kinesis.getShardIterator(getShardIteratorRequest);
+    	shardIterator = getShardIteratorResult.getShardIterator();
+    	
+    	// Record is a Kinesis data type
+    	List<Record> records = null;
+    	    
+    	// normally you'd run this part indefinitely and let the worker to continue
+    	// processing incoming data. In the case of this simple demo, we'll just 
+    	// grab one bunch of records
+//    	while (true) {
+    	   
+    	  // Create a new getRecordsRequest with an existing shardIterator 
+    	  GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
+    	  getRecordsRequest.setShardIterator(shardIterator);
+    	  // set the maximum records to return to 25
+    	  getRecordsRequest.setLimit(25); 
+
+    	  // stay under the shard's read limits
+    	  ShardRateLimiter limiter = rateLimiterFor(myStreamName);
+    	  if (limiter != null) {
+    		  pause(limiter.reserveRead(shard.getShardId()));
+    	  }
+    	  long start = System.nanoTime();
+    	  GetRecordsResult result;
+    	  try {
+    		  result = kinesis.getRecords(getRecordsRequest);
+    	  }
+    	  catch (ProvisionedThroughputExceededException e) {
+    		  METRICS.shard(myStreamName, shard.getShardId()).recordGetThrottled();
+    		  throw e;
+    	  }
+    	  long millisBehindLatest = result.getMillisBehindLatest() == null ? 0 : result.getMillisBehindLatest();
+    	  METRICS.shard(myStreamName, shard.getShardId()).recordGet(System.nanoTime() - start, 
+    			  result.getRecords().size(), payloadBytes(result.getRecords()), millisBehindLatest);
+    	  if (limiter != null) {
+    		  limiter.recordRead(shard.getShardId(), payloadBytes(result.getRecords()));
+    	  }
+    	  
+    	  // Put the result into record list. The result can be empty. Aggregated records
+    	  // are unpacked so the caller sees the individual user records
+    	  records = RecordDeaggregator.deaggregate(result.getRecords());
+    	  if (processor != null && !records.isEmpty()) {
+    		  processor.processRecords(shard.getShardId(), records, millisBehindLatest);
+    	  }
+    	  // remember how far we got for the next call, now that the processor is done with the batch
+    	  if (checkpointStore != null && !result.getRecords().isEmpty()) {
+    		  List<Record> raw = result.getRecords();
+    		  checkpointStore.checkpoint(myStreamName, shard.getShardId(), raw.get(raw.size() - 1).getSequenceNumber());
+    	  }
+    	  
+    	  try {
+    	    Thread.sleep(1000);
+    	  } 
+    	  catch (InterruptedException exception) {
+    	    throw new RuntimeException(exception);
+    	  }
+    	  
+    	  shardIterator = result.getNextShardIterator();
+    	  // a closed shard has no next iterator once it has been read to the end
+    	  if (shardIterator == null && processor != null) {
+    		  processor.shardEnded(shard.getShardId());
+    		  if (checkpointStore != null) {
+    			  checkpointStore.checkpoint(myStreamName, shard.getShardId(), CheckpointStore.SHARD_END);
+    		  }
+    	  }
+//    	}  
+    	  return records;
+    }
+    
+    // decode the records' payloads with the codec. Only the bytes between each buffer's position
+    // and limit are read, so aggregated user records (views into their container) decode correctly
+    public <T> List<T> decodeMyData (List<Record> records, RecordCodec<T> codec) {
+    	List<T> values = new ArrayList<>(records.size());
+    	for (Record r : records) {
+    		values.add(codec.decode(r.getData()));
+    	}
+    	return values;
+    }
+    
+    // the registry putMyData and getMyStreamData report their per-shard metrics to
+    public KinesisMetrics getMetrics() {
+    	return METRICS;
+    }
+    
+    // payload bytes of a GetRecords batch, for the metrics
+    static long payloadBytes(List<Record> records) {
+    	long bytes = 0;
+    	for (Record r : records) {
+    		bytes += r.getData().remaining();
+    	}
+    	return bytes;
+    }
+    
+    // a client-side copy of the stream's shard hash key ranges, for routing records to shards
+    public ShardMap createMyShardMap(AmazonKinesis kinesis, String myStreamName) {
+    	return new ShardMap(kinesis, myStreamName);
+    }
+    
+    // per-shard token buckets for the stream of the shard map, to share between this class,
+    // producers and consumers of the stream
+    public ShardRateLimiter createMyRateLimiter(ShardMap shardMap) {
+    	return new ShardRateLimiter(shardMap);
+    }
+    
+    // continuous alternative to getMyStreamData - the consumer reads all shards in parallel and
+    // keeps following them, handing each batch to the processor. Call start() and later stop()
+    public KinesisConsumer createMyConsumer(AmazonKinesis kinesis, String myStreamName,
+    		RecordProcessor processor) {
+    	return new KinesisConsumer(kinesis, myStreamName, processor);
+    }
+    
+    // reads the records between two times from every shard at once, for backfills - see
+    // TimeRangeReplay.replay
+    public TimeRangeReplay createMyReplay(AmazonKinesis kinesis, String myStreamName) {
+    	return new TimeRangeReplay(kinesis, myStreamName);
+    }
+    
+    // the details of a stream will contain information about the shards it contains. They come
+    // from the metadata cache, which only asks describeStream again once its copy has expired or
+    // this client has split or merged the stream's shards, and then only for the shards after
+    // the last one it knows. The list is the caller's own, but the shards in it are the cache's
+    // and must not be modified
+    public List<Shard> getMyShards (AmazonKinesis kinesis, String myStreamName) {
+    	return new ArrayList<>(METADATA.getShards(kinesis, myStreamName));
+    }
+    
+    // this method won't analyze the shards, it will simply take two identified shards and attempt to merge them
+    public void mergeMyShards (AmazonKinesis kinesis, String myStreamName, Shard shard1, Shard shard2) {
+    	// build a configurable request object
+    	MergeShardsRequest mergeShardsRequest = new MergeShardsRequest();
+    	// identify the stream these shards are in
+    	mergeShardsRequest.setStreamName(myStreamName);
+    	// identify shard1 and shard2 - remember they must be adjacent
+    	mergeShardsRequest.setShardToMerge(shard1.getShardId());
+    	mergeShardsRequest.setAdjacentShardToMerge(shard2.getShardId());
+    	// execute the request to merge the two shards
+    	boolean merged = false;
+    	try {
+    		kinesis.mergeShards(mergeShardsRequest);
+    		merged = true;
+    	}
+    	// the resources can not be merged - this would occur if at least one of the
+    	// shards was no longer ACTIVE
+    	catch (ResourceInUseException re){
+    		System.out.println("Merge failed: shards in use"); 
+    		
+    	}
+    	catch (ResourceNotFoundException rnfe) {
+    		System.out.println("Merge failed: resource not found");
+    	}
+    	
+    	// similar to the create stream method, we'll now monitor the merging of these shards
+    	// until both are closed and the stream is ACTIVE again. If the merge was refused, there
+    	// is nothing to wait for beyond the stream being ACTIVE
+    	if (merged) {
+    		awaitStream(WAITER.awaitReshard(kinesis, myStreamName, shard1.getShardId(), shard2.getShardId()));
+    		METADATA.invalidate(kinesis, myStreamName);
+    		System.out.println("Merged shard is now ACTIVE\n");
+    	}
+    	else {
+    		awaitStream(WAITER.awaitActive(kinesis, myStreamName));
+    	}
+    }
+    
+    // split a single shard into two
+    public void splitMyShard (AmazonKinesis kinesis, Shard shard, String myStreamName) {
+    	splitMyShard(kinesis, shard, myStreamName, midpointHashKey(shard));
+    }
+    
+    // partition keys are set as Hash Keys per shard. To divide this particular shard, we'll
+    // divide up the partition keys from the middle
+    public static String midpointHashKey(Shard shard) {
+    	BigInteger startingHashKey = new BigInteger(shard.getHashKeyRange().getStartingHashKey());
+    	BigInteger endingHashKey   = new BigInteger(shard.getHashKeyRange().getEndingHashKey());
+    	return startingHashKey.add(endingHashKey).divide(new BigInteger("2")).toString();
+    }
+    
+    // split a shard at a chosen hash key - the second child starts at newStartingHashKey. The
+    // ReshardPlanner uses this to split where the traffic divides rather than in the middle
+    public void splitMyShard (AmazonKinesis kinesis, Shard shard, String myStreamName, 
+    		String newStartingHashKey) {
+    	// build a configurable request object
+    	SplitShardRequest splitShardRequest = new SplitShardRequest();
+    	splitShardRequest.setStreamName(myStreamName);
+    	splitShardRequest.setShardToSplit(shard.getShardId());
+    	splitShardRequest.setNewStartingHashKey(newStartingHashKey);
+    	try {
+    		kinesis.splitShard(splitShardRequest);
+    		
+    		// wait until the parent is closed and its two children are ready, however long that takes
+    		awaitStream(WAITER.awaitReshard(kinesis, myStreamName, shard.getShardId()));
+    		METADATA.invalidate(kinesis, myStreamName);
+    		
+    		System.out.println("Successfully split one shard into two");
+    	}
+    	catch (InvalidArgumentException e) {
+    		// this exception will be thrown if the shard is already in CLOSED state
+    		System.out.println(e);
+    	}
+    	
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in microseconds. Buckets are log-linear (8 per power of
+ * two), so percentiles are within about 12% of the true value from a microsecond up to
+ * days, in a fixed 4 KB of counters. Recording is a couple of atomic adds.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalMicros = new LongAdder();
+
+	public void recordNanos(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucketOf(micros));
+		totalMicros.add(micros);
+	}
+
+	// the counts so far. Subtract an earlier snapshot to get the latencies in between
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, totalMicros.sum());
+	}
+
+	static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// the largest value that falls into the bucket
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	// an immutable copy of the counters
+	public static class Snapshot {
+		private final long[] counts;
+		private final long totalMicros;
+		private final long count;
+
+		Snapshot(long[] counts, long totalMicros) {
+			this.counts = counts;
+			this.totalMicros = totalMicros;
+			long n = 0;
+			for (long c : counts) {
+				n += c;
+			}
+			this.count = n;
+		}
+
+		// the latencies recorded after the earlier snapshot was taken
+		public Snapshot minus(Snapshot earlier) {
+			long[] delta = new long[counts.length];
+			for (int i = 0; i < delta.length; i++) {
+				delta[i] = counts[i] - earlier.counts[i];
+			}
+			return new Snapshot(delta, totalMicros - earlier.totalMicros);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMillis() {
+			return count == 0 ? 0 : totalMicros / 1000.0 / count;
+		}
+
+		// the latency at or below which the given fraction (e.g. 0.99) of the calls finished
+		public double getPercentileMillis(double fraction) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return upperBound(i) / 1000.0;
+				}
+			}
+			return upperBound(counts.length - 1) / 1000.0;
+		}
+
+		public double getMaxMillis() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] > 0) {
+					return upperBound(i) / 1000.0;
+				}
+			}
+			return 0;
+		}
+	}
+}
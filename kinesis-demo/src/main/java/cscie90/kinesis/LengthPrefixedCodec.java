@@ -0,0 +1,58 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several binary frames in one payload, each written as a 4 byte big-endian length followed
+ * by its bytes. Decoding returns read-only slices of the record's buffer, nothing is copied.
+ */
+public class LengthPrefixedCodec implements RecordCodec<List<ByteBuffer>> {
+
+	@Override
+	public ByteBuffer encode(List<ByteBuffer> frames, ByteBuffer target) {
+		int size = 0;
+		for (ByteBuffer frame : frames) {
+			size += 4 + frame.remaining();
+		}
+		if (target == null || target.capacity() < size) {
+			target = ByteBuffer.allocate(size);
+		}
+		target.clear();
+		for (ByteBuffer frame : frames) {
+			target.putInt(frame.remaining());
+			target.put(frame.duplicate());
+		}
+		target.flip();
+		return target;
+	}
+
+	@Override
+	public List<ByteBuffer> decode(ByteBuffer data) {
+		List<ByteBuffer> frames = new ArrayList<>();
+		ByteBuffer in = data.duplicate();
+		while (in.hasRemaining()) {
+			if (in.remaining() < 4) {
+				throw new IllegalArgumentException("truncated frame length at byte "+(in.position() - data.position()));
+			}
+			int length = in.getInt();
+			if (length < 0 || length > in.remaining()) {
+				throw new IllegalArgumentException("frame of "+length+" bytes runs past the end of the record");
+			}
+			ByteBuffer frame = in.slice();
+			frame.limit(length);
+			frames.add(frame.asReadOnlyBuffer());
+			in.position(in.position() + length);
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Puts a configurable load on a stream and reports throughput plus put and end-to-end
+ * latency percentiles, for sizing a stream before changing its shard count. Producers
+ * write at a target rate with record sizes and partition keys drawn from the chosen
+ * distributions; consumers in the same process read the records back, and each record
+ * carries the time it was put so the consumers can tell how long it took to arrive.
+ *
+ *   java cscie90.kinesis.LoadGenerator --endpoint local --shards 4 --rate 5000 --duration 60
+ *
+ * Run without arguments for a short test against LocalKinesis, or with --help for the options.
+ */
+public class LoadGenerator {
+
+	private static final Log LOG = LogFactory.getLog(LoadGenerator.class);
+
+	// every payload starts with the run ID and the time it was put
+	private static final int HEADER_BYTES = 16;
+	// payload bytes after the header are copied from here
+	private static final byte[] FILLER = new byte[KinesisProducer.MAX_RECORD_BYTES];
+
+	static {
+		new Random(42).nextBytes(FILLER);
+	}
+
+	// settings - see usage()
+	private String endpoint = "local";
+	private String region = "us-east-1";
+	private String streamName = "loadtest";
+	private int shards = 2;
+	private long durationSeconds = 30;
+	private double targetRate = 1000;
+	private String recordSize = "100";
+	private int keyCount = 1000;
+	private String keyDistribution = "uniform";
+	private int producers = 1;
+	private int consumers = 1;
+	private boolean batched = true;
+	private boolean deleteStream = false;
+	private long reportIntervalSeconds = 5;
+
+	// results
+	private final long runId = ThreadLocalRandom.current().nextLong();
+	private final LatencyHistogram putLatency = new LatencyHistogram();
+	private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder acked = new LongAdder();
+	private final LongAdder ackedBytes = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder consumed = new LongAdder();
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse(args);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage();
+			System.exit(1);
+		}
+		generator.run();
+	}
+
+	private static void usage() {
+		System.err.println(String.join("\n",
+				"Options (defaults in brackets):",
+				"  --endpoint local|aws|URL     LocalKinesis, AWS in --region, or a Kinesis compatible endpoint [local]",
+				"  --region NAME                region for aws or an endpoint URL [us-east-1]",
+				"  --stream NAME                stream to use, created if it doesn't exist [loadtest]",
+				"  --shards N                   shards of a newly created stream [2]",
+				"  --duration SECONDS           how long the producers run [30]",
+				"  --rate N                     records per second over all producers, 0 for as fast as possible [1000]",
+				"  --record-size SPEC           N, MIN-MAX (uniform) or exp:MEAN (exponential), in bytes [100]",
+				"  --keys N                     number of distinct partition keys [1000]",
+				"  --key-distribution SPEC      uniform or zipf:EXPONENT, e.g. zipf:1.1 [uniform]",
+				"  --producers N                producer threads [1]",
+				"  --consumers N                consumers, each reading every shard [1]",
+				"  --batched true|false         KinesisProducer batches, or one putMyData call per record [true]",
+				"  --delete-stream true|false   delete the stream at the end [false]",
+				"  --report-interval SECONDS    progress line interval [5]"));
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if ("--help".equals(option)) {
+				usage();
+				System.exit(0);
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("missing value for "+option);
+			}
+			String value = args[++i];
+			try {
+				switch (option) {
+					case "--endpoint": endpoint = value; break;
+					case "--region": region = value; break;
+					case "--stream": streamName = value; break;
+					case "--shards": shards = Integer.parseInt(value); break;
+					case "--duration": durationSeconds = Long.parseLong(value); break;
+					case "--rate": targetRate = Double.parseDouble(value); break;
+					case "--record-size": recordSize = value; break;
+					case "--keys": keyCount = Integer.parseInt(value); break;
+					case "--key-distribution": keyDistribution = value; break;
+					case "--producers": producers = Integer.parseInt(value); break;
+					case "--consumers": consumers = Integer.parseInt(value); break;
+					case "--batched": batched = Boolean.parseBoolean(value); break;
+					case "--delete-stream": deleteStream = Boolean.parseBoolean(value); break;
+					case "--report-interval": reportIntervalSeconds = Long.parseLong(value); break;
+					default: throw new IllegalArgumentException("unknown option "+option);
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad value for "+option+": "+value);
+			}
+		}
+		// fail on a bad distribution before anything is created
+		sizes();
+		keys();
+	}
+
+	private AmazonKinesis createClient() {
+		if ("local".equals(endpoint)) {
+			return new LocalKinesis();
+		}
+		AmazonKinesisClientBuilder builder = AmazonKinesisClientBuilder.standard();
+		if ("aws".equals(endpoint)) {
+			builder.setRegion(region);
+		}
+		else {
+			builder.setEndpointConfiguration(new EndpointConfiguration(endpoint, region));
+		}
+		return builder.build();
+	}
+
+	private void run() throws Exception {
+		AmazonKinesis kinesis = createClient();
+		KinesisUtils kus = new KinesisUtils();
+		if (!kus.listMyStreams(kinesis).contains(streamName)) {
+			kus.createMyStream(kinesis, streamName, shards);
+		}
+		int openShards = new ShardGraph(kus.getMyShards(kinesis, streamName)).getOpenShards().size();
+		System.out.println("Load on "+streamName+" ("+openShards+" open shards) for "+durationSeconds+" s: "
+				+(targetRate > 0 ? targetRate+" rec/s" : "unthrottled")+", record size "+recordSize+", "
+				+keyCount+" keys "+keyDistribution+", "+producers+" producers, "+consumers+" consumers, "
+				+(batched ? "batched" : "single puts"));
+
+		// consumers first, so they are reading by the time the first records arrive
+		List<KinesisConsumer> readers = new ArrayList<>();
+		for (int i = 0; i < consumers; i++) {
+			KinesisConsumer consumer = kus.createMyConsumer(kinesis, streamName, this::consume);
+			consumer.start();
+			readers.add(consumer);
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + durationSeconds * 1000000000L;
+		List<Thread> writers = new ArrayList<>();
+		for (int i = 0; i < producers; i++) {
+			Thread writer = new Thread(() -> produce(kinesis, kus, deadline), "load-producer-"+(i + 1));
+			writer.start();
+			writers.add(writer);
+		}
+
+		// progress lines while the producers run
+		Progress progress = new Progress(start);
+		long reportNanos = Math.max(1, reportIntervalSeconds) * 1000000000L;
+		for (long next = start + reportNanos; next < deadline; next += reportNanos) {
+			LockSupport.parkNanos(next - System.nanoTime());
+			progress.print();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		long produceNanos = System.nanoTime() - start;
+
+		// give the consumers time to read what is left, as long as they are getting somewhere
+		long lastConsumed = -1;
+		for (long idleSince = System.nanoTime(); consumed.sum() < acked.sum() * consumers
+				&& System.nanoTime() - idleSince < 10000000000L; Thread.sleep(200)) {
+			if (consumed.sum() != lastConsumed) {
+				lastConsumed = consumed.sum();
+				idleSince = System.nanoTime();
+			}
+		}
+		for (KinesisConsumer consumer : readers) {
+			consumer.stop();
+		}
+		summary(produceNanos);
+		if (deleteStream) {
+			kus.deleteMyStream(kinesis, streamName);
+		}
+	}
+
+	// one producer thread: put records at this thread's share of the target rate until the deadline
+	private void produce(AmazonKinesis kinesis, KinesisUtils kus, long deadline) {
+		SizeDistribution sizes = sizes();
+		KeyDistribution keys = keys();
+		KinesisProducer producer = batched ? kus.createMyProducer(kinesis, streamName) : null;
+		long interval = targetRate > 0 ? (long) (1e9 * producers / targetRate) : 0;
+		long next = System.nanoTime();
+		Random random = ThreadLocalRandom.current();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				if (now >= deadline) {
+					break;
+				}
+				if (interval > 0) {
+					// a producer that fell behind catches up by at most a second's worth
+					next = Math.max(next + interval, now - 1000000000L);
+					if (next > now) {
+						LockSupport.parkNanos(next - now);
+					}
+				}
+				String partitionKey = keys.next(random);
+				int size = sizes.next(random);
+				ByteBuffer data = ByteBuffer.allocate(size);
+				long putStart = System.nanoTime();
+				data.putLong(runId).putLong(putStart).put(FILLER, 0, size - HEADER_BYTES).flip();
+				sent.increment();
+				if (producer != null) {
+					producer.addRecord(partitionKey, data).whenComplete((entry, error) -> done(putStart, size, error));
+				}
+				else {
+					try {
+						kus.putMyData(kinesis, data, partitionKey, streamName, null);
+						done(putStart, size, null);
+					}
+					catch (RuntimeException e) {
+						done(putStart, size, e);
+					}
+				}
+			}
+		}
+		finally {
+			if (producer != null) {
+				producer.close();
+			}
+		}
+	}
+
+	private void done(long putStart, int size, Throwable error) {
+		if (error != null) {
+			failed.increment();
+			LOG.debug("Put failed", error);
+			return;
+		}
+		putLatency.recordNanos(System.nanoTime() - putStart);
+		acked.increment();
+		ackedBytes.add(size);
+	}
+
+	// the consumers' processor: time the records of this run, ignore anything else in the stream
+	private void consume(String shardId, List<Record> records, long millisBehindLatest) {
+		long now = System.nanoTime();
+		for (Record record : records) {
+			ByteBuffer data = record.getData();
+			if (data.remaining() >= HEADER_BYTES && data.getLong(data.position()) == runId) {
+				endToEndLatency.recordNanos(now - data.getLong(data.position() + 8));
+				consumed.increment();
+			}
+		}
+	}
+
+	private void summary(long produceNanos) {
+		double seconds = produceNanos / 1e9;
+		LatencyHistogram.Snapshot put = putLatency.snapshot();
+		LatencyHistogram.Snapshot endToEnd = endToEndLatency.snapshot();
+		System.out.println();
+		System.out.println(String.format("Sent %d records, %d acknowledged, %d failed, %d of %d consumed",
+				sent.sum(), acked.sum(), failed.sum(), consumed.sum(), acked.sum() * consumers));
+		System.out.println(String.format("Throughput %.0f rec/s, %.2f MB/s", acked.sum() / seconds,
+				ackedBytes.sum() / seconds / (1024 * 1024)));
+		System.out.println("Put latency        "+percentiles(put));
+		System.out.println("End-to-end latency "+percentiles(endToEnd));
+	}
+
+	private static String percentiles(LatencyHistogram.Snapshot snapshot) {
+		return String.format("p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, mean %.1f ms, max %.1f ms",
+				snapshot.getPercentileMillis(0.5), snapshot.getPercentileMillis(0.99),
+				snapshot.getPercentileMillis(0.999), snapshot.getMeanMillis(), snapshot.getMaxMillis());
+	}
+
+	private SizeDistribution sizes() {
+		String spec = recordSize;
+		try {
+			if (spec.startsWith("exp:")) {
+				double mean = Double.parseDouble(spec.substring(4));
+				return random -> clampSize((int) (-mean * Math.log(1 - random.nextDouble())));
+			}
+			int dash = spec.indexOf('-');
+			if (dash > 0) {
+				int low = Integer.parseInt(spec.substring(0, dash));
+				int high = Integer.parseInt(spec.substring(dash + 1));
+				if (high < low) {
+					throw new IllegalArgumentException("record size range "+spec+" is empty");
+				}
+				int min = clampSize(low);
+				int max = clampSize(high);
+				return random -> min + random.nextInt(max - min + 1);
+			}
+			int size = clampSize(Integer.parseInt(spec));
+			return random -> size;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad record size "+spec);
+		}
+	}
+
+	// room for the header, and no more than a record may hold next to a short partition key
+	private static int clampSize(int size) {
+		return Math.max(HEADER_BYTES, Math.min(size, KinesisProducer.MAX_RECORD_BYTES - 256));
+	}
+
+	private KeyDistribution keys() {
+		if (keyCount < 1) {
+			throw new IllegalArgumentException("need at least one partition key");
+		}
+		String[] names = new String[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			names[i] = "key"+i;
+		}
+		String spec = keyDistribution;
+		if ("uniform".equals(spec)) {
+			return random -> names[random.nextInt(names.length)];
+		}
+		if (spec.startsWith("zipf:")) {
+			double exponent;
+			try {
+				exponent = Double.parseDouble(spec.substring(5));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad zipf exponent in "+spec);
+			}
+			// the i-th key is picked with weight 1 / i^exponent
+			double[] cumulative = new double[keyCount];
+			double total = 0;
+			for (int i = 0; i < keyCount; i++) {
+				total += 1 / Math.pow(i + 1, exponent);
+				cumulative[i] = total;
+			}
+			double sum = total;
+			return random -> {
+				int i = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+				return names[Math.min(i < 0 ? -i - 1 : i, names.length - 1)];
+			};
+		}
+		throw new IllegalArgumentException("bad key distribution "+spec);
+	}
+
+	private interface SizeDistribution {
+		int next(Random random);
+	}
+
+	private interface KeyDistribution {
+		String next(Random random);
+	}
+
+	// prints what happened since the last progress line
+	private class Progress {
+		private final long start;
+		private long lastNanos;
+		private long lastAcked = 0;
+		private long lastConsumed = 0;
+		private LatencyHistogram.Snapshot lastPut = putLatency.snapshot();
+		private LatencyHistogram.Snapshot lastEndToEnd = endToEndLatency.snapshot();
+
+		Progress(long start) {
+			this.start = start;
+			this.lastNanos = start;
+		}
+
+		void print() {
+			long now = System.nanoTime();
+			double seconds = (now - lastNanos) / 1e9;
+			long ackedNow = acked.sum();
+			long consumedNow = consumed.sum();
+			LatencyHistogram.Snapshot put = putLatency.snapshot();
+			LatencyHistogram.Snapshot endToEnd = endToEndLatency.snapshot();
+			LatencyHistogram.Snapshot putInterval = put.minus(lastPut);
+			LatencyHistogram.Snapshot endToEndInterval = endToEnd.minus(lastEndToEnd);
+			System.out.println(String.format("%4.0f s: put %.0f rec/s p50 %.1f ms p99 %.1f ms, consumed %.0f rec/s"
+					+ " end-to-end p50 %.1f ms p99 %.1f ms, %d failed",
+					(now - start) / 1e9, (ackedNow - lastAcked) / seconds,
+					putInterval.getPercentileMillis(0.5), putInterval.getPercentileMillis(0.99),
+					(consumedNow - lastConsumed) / seconds,
+					endToEndInterval.getPercentileMillis(0.5), endToEndInterval.getPercentileMillis(0.99), failed.sum()));
+			lastNanos = now;
+			lastAcked = ackedNow;
+			lastConsumed = consumedNow;
+			lastPut = put;
+			lastEndToEnd = endToEnd;
+		}
+	}
+}
@@ -0,0 +1,659 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kinesis.AbstractAmazonKinesis;
+import com.amazonaws.services.kinesis.model.CreateStreamRequest;
+import com.amazonaws.services.kinesis.model.CreateStreamResult;
+import com.amazonaws.services.kinesis.model.DeleteStreamRequest;
+import com.amazonaws.services.kinesis.model.DeleteStreamResult;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.GetShardIteratorResult;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+import com.amazonaws.services.kinesis.model.ListStreamsRequest;
+import com.amazonaws.services.kinesis.model.ListStreamsResult;
+import com.amazonaws.services.kinesis.model.MergeShardsRequest;
+import com.amazonaws.services.kinesis.model.MergeShardsResult;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.ResourceInUseException;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.SplitShardRequest;
+import com.amazonaws.services.kinesis.model.SplitShardResult;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * An in-process stand-in for Kinesis, usable anywhere an AmazonKinesis client is expected.
+ * Streams, shards and records live in memory. Hash key routing, splits and merges behave
+ * like the real service, and so do the per-shard limits: 1 MB/s and 1000 records/s of
+ * writes and 2 MB/s and 5 calls/s of reads, enforced with ProvisionedThroughputExceeded.
+ * Retention is not modelled, records stay until the stream is deleted.
+ */
+public class LocalKinesis extends AbstractAmazonKinesis {
+
+	// per-shard limits of the real service
+	public static final long WRITE_BYTES_PER_SECOND = 1024 * 1024;
+	public static final long WRITE_RECORDS_PER_SECOND = 1000;
+	public static final long READ_BYTES_PER_SECOND = 2 * 1024 * 1024;
+	public static final long READ_CALLS_PER_SECOND = 5;
+
+	public static final int MAX_RECORD_BYTES = 1024 * 1024;
+	public static final int MAX_RECORDS_PER_PUT = 500;
+	public static final int MAX_BYTES_PER_PUT = 5 * 1024 * 1024;
+	public static final int MAX_RECORDS_PER_GET = 10000;
+	public static final int MAX_BYTES_PER_GET = 10 * 1024 * 1024;
+	public static final int MAX_SHARDS_PER_DESCRIBE = 100;
+	public static final long ITERATOR_LIFETIME_MILLIS = 5 * 60 * 1000;
+
+	private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+	// settings - see the setters below
+	private volatile long transitionMillis = 0;
+	private volatile boolean throttlingEnabled = true;
+
+	// by stream name, sorted like listStreams returns them
+	private final Map<String, LocalStream> streams = new TreeMap<>();
+	// sequence numbers increase across all streams, like the real ones they only need to be ordered
+	private final AtomicLong sequence = new AtomicLong();
+
+	// how long a stream stays CREATING or UPDATING after createStream, splitShard or mergeShards.
+	// 0 (the default) makes it ACTIVE again straight away
+	public void setTransitionMillis(long transitionMillis) {
+		this.transitionMillis = transitionMillis;
+	}
+
+	// turn the per-shard throughput limits off, e.g. to measure client overhead alone
+	public void setThrottlingEnabled(boolean throttlingEnabled) {
+		this.throttlingEnabled = throttlingEnabled;
+	}
+
+	@Override
+	public CreateStreamResult createStream(CreateStreamRequest request) {
+		int shardCount = request.getShardCount() == null ? 1 : request.getShardCount();
+		if (shardCount < 1) {
+			throw error(new InvalidArgumentException("ShardCount must be at least 1"));
+		}
+		synchronized (streams) {
+			if (streams.containsKey(request.getStreamName())) {
+				throw error(new ResourceInUseException("Stream "+request.getStreamName()+" already exists"));
+			}
+			LocalStream stream = new LocalStream(request.getStreamName());
+			// the hash key space divided evenly, the last shard takes the remainder
+			BigInteger width = MAX_HASH_KEY.add(BigInteger.ONE).divide(BigInteger.valueOf(shardCount));
+			for (int i = 0; i < shardCount; i++) {
+				BigInteger start = width.multiply(BigInteger.valueOf(i));
+				BigInteger end = i == shardCount - 1 ? MAX_HASH_KEY : start.add(width).subtract(BigInteger.ONE);
+				stream.addShard(start, end, null, null);
+			}
+			stream.transition("CREATING");
+			streams.put(stream.name, stream);
+		}
+		return new CreateStreamResult();
+	}
+
+	@Override
+	public CreateStreamResult createStream(String streamName, Integer shardCount) {
+		return createStream(new CreateStreamRequest().withStreamName(streamName).withShardCount(shardCount));
+	}
+
+	@Override
+	public DeleteStreamResult deleteStream(DeleteStreamRequest request) {
+		synchronized (streams) {
+			if (streams.remove(request.getStreamName()) == null) {
+				throw notFound(request.getStreamName());
+			}
+		}
+		return new DeleteStreamResult();
+	}
+
+	@Override
+	public DeleteStreamResult deleteStream(String streamName) {
+		return deleteStream(new DeleteStreamRequest().withStreamName(streamName));
+	}
+
+	@Override
+	public ListStreamsResult listStreams(ListStreamsRequest request) {
+		int limit = request.getLimit() == null ? 10 : request.getLimit();
+		List<String> names = new ArrayList<>();
+		boolean more = false;
+		synchronized (streams) {
+			for (String name : streams.keySet()) {
+				if (request.getExclusiveStartStreamName() != null && name.compareTo(request.getExclusiveStartStreamName()) <= 0) {
+					continue;
+				}
+				if (names.size() == limit) {
+					more = true;
+					break;
+				}
+				names.add(name);
+			}
+		}
+		return new ListStreamsResult().withStreamNames(names).withHasMoreStreams(more);
+	}
+
+	@Override
+	public ListStreamsResult listStreams() {
+		return listStreams(new ListStreamsRequest());
+	}
+
+	@Override
+	public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+		LocalStream stream = stream(request.getStreamName());
+		int limit = request.getLimit() == null ? MAX_SHARDS_PER_DESCRIBE : Math.min(request.getLimit(), MAX_SHARDS_PER_DESCRIBE);
+		synchronized (stream) {
+			List<Shard> shards = new ArrayList<>();
+			boolean more = false;
+			// shard IDs sort in creation order, which is the order describeStream lists them
+			for (LocalShard shard : stream.shards.values()) {
+				if (request.getExclusiveStartShardId() != null && shard.id.compareTo(request.getExclusiveStartShardId()) <= 0) {
+					continue;
+				}
+				if (shards.size() == limit) {
+					more = true;
+					break;
+				}
+				shards.add(shard.describe());
+			}
+			StreamDescription description = new StreamDescription()
+					.withStreamName(stream.name)
+					.withStreamARN("arn:aws:kinesis:local:000000000000:stream/"+stream.name)
+					.withStreamStatus(stream.status())
+					.withShards(shards)
+					.withHasMoreShards(more)
+					.withRetentionPeriodHours(24)
+					.withStreamCreationTimestamp(new Date(stream.createdMillis));
+			return new DescribeStreamResult().withStreamDescription(description);
+		}
+	}
+
+	@Override
+	public DescribeStreamResult describeStream(String streamName) {
+		return describeStream(new DescribeStreamRequest().withStreamName(streamName));
+	}
+
+	@Override
+	public PutRecordResult putRecord(PutRecordRequest request) {
+		LocalStream stream = stream(request.getStreamName());
+		synchronized (stream) {
+			requireWritable(stream);
+			LocalShard shard = stream.route(request.getPartitionKey(), request.getExplicitHashKey());
+			int size = recordSize(request.getPartitionKey(), request.getData());
+			if (!shard.tryWrite(size)) {
+				throw throttled("Rate exceeded for shard "+shard.id+" in stream "+stream.name);
+			}
+			String sequenceNumber = shard.append(request.getPartitionKey(), request.getData());
+			return new PutRecordResult().withShardId(shard.id).withSequenceNumber(sequenceNumber);
+		}
+	}
+
+	@Override
+	public PutRecordResult putRecord(String streamName, ByteBuffer data, String partitionKey) {
+		return putRecord(new PutRecordRequest().withStreamName(streamName).withData(data).withPartitionKey(partitionKey));
+	}
+
+	// each entry is accepted or throttled on its own, like the real service, so one hot shard
+	// fails only its own records
+	@Override
+	public PutRecordsResult putRecords(PutRecordsRequest request) {
+		List<PutRecordsRequestEntry> entries = request.getRecords();
+		if (entries == null || entries.isEmpty() || entries.size() > MAX_RECORDS_PER_PUT) {
+			throw error(new InvalidArgumentException("Records must contain between 1 and "+MAX_RECORDS_PER_PUT+" entries"));
+		}
+		long totalBytes = 0;
+		for (PutRecordsRequestEntry entry : entries) {
+			totalBytes += recordSize(entry.getPartitionKey(), entry.getData());
+		}
+		if (totalBytes > MAX_BYTES_PER_PUT) {
+			throw error(new InvalidArgumentException("Request of "+totalBytes+" bytes exceeds "+MAX_BYTES_PER_PUT));
+		}
+		LocalStream stream = stream(request.getStreamName());
+		synchronized (stream) {
+			requireWritable(stream);
+			List<PutRecordsResultEntry> results = new ArrayList<>(entries.size());
+			int failed = 0;
+			for (PutRecordsRequestEntry entry : entries) {
+				LocalShard shard = stream.route(entry.getPartitionKey(), entry.getExplicitHashKey());
+				if (!shard.tryWrite(recordSize(entry.getPartitionKey(), entry.getData()))) {
+					failed++;
+					results.add(new PutRecordsResultEntry()
+							.withErrorCode("ProvisionedThroughputExceededException")
+							.withErrorMessage("Rate exceeded for shard "+shard.id+" in stream "+stream.name));
+					continue;
+				}
+				String sequenceNumber = shard.append(entry.getPartitionKey(), entry.getData());
+				results.add(new PutRecordsResultEntry().withShardId(shard.id).withSequenceNumber(sequenceNumber));
+			}
+			return new PutRecordsResult().withRecords(results).withFailedRecordCount(failed);
+		}
+	}
+
+	@Override
+	public GetShardIteratorResult getShardIterator(GetShardIteratorRequest request) {
+		LocalStream stream = stream(request.getStreamName());
+		synchronized (stream) {
+			LocalShard shard = stream.shard(request.getShardId());
+			String type = request.getShardIteratorType();
+			int position;
+			if ("TRIM_HORIZON".equals(type)) {
+				position = 0;
+			}
+			else if ("LATEST".equals(type)) {
+				position = shard.records.size();
+			}
+			else if ("AT_SEQUENCE_NUMBER".equals(type) || "AFTER_SEQUENCE_NUMBER".equals(type)) {
+				if (request.getStartingSequenceNumber() == null) {
+					throw error(new InvalidArgumentException(type+" needs a StartingSequenceNumber"));
+				}
+				BigInteger target = new BigInteger(request.getStartingSequenceNumber());
+				position = shard.positionOf(target, "AFTER_SEQUENCE_NUMBER".equals(type));
+			}
+			else if ("AT_TIMESTAMP".equals(type)) {
+				if (request.getTimestamp() == null) {
+					throw error(new InvalidArgumentException("AT_TIMESTAMP needs a Timestamp"));
+				}
+				position = shard.positionAt(request.getTimestamp().getTime());
+			}
+			else {
+				throw error(new InvalidArgumentException("Unknown ShardIteratorType "+type));
+			}
+			return new GetShardIteratorResult().withShardIterator(iterator(stream.name, shard.id, position));
+		}
+	}
+
+	@Override
+	public GetShardIteratorResult getShardIterator(String streamName, String shardId, String shardIteratorType) {
+		return getShardIterator(new GetShardIteratorRequest().withStreamName(streamName).withShardId(shardId)
+				.withShardIteratorType(shardIteratorType));
+	}
+
+	@Override
+	public GetShardIteratorResult getShardIterator(String streamName, String shardId, String shardIteratorType,
+			String startingSequenceNumber) {
+		return getShardIterator(new GetShardIteratorRequest().withStreamName(streamName).withShardId(shardId)
+				.withShardIteratorType(shardIteratorType).withStartingSequenceNumber(startingSequenceNumber));
+	}
+
+	@Override
+	public GetRecordsResult getRecords(GetRecordsRequest request) {
+		// stream|shard|position|issued
+		String[] parts = request.getShardIterator() == null ? new String[0] : request.getShardIterator().split("\\|");
+		if (parts.length != 4) {
+			throw error(new InvalidArgumentException("Invalid ShardIterator"));
+		}
+		long now = System.currentTimeMillis();
+		if (now - Long.parseLong(parts[3]) > ITERATOR_LIFETIME_MILLIS) {
+			throw error(new ExpiredIteratorException("Iterator expired"));
+		}
+		int limit = request.getLimit() == null ? MAX_RECORDS_PER_GET : Math.min(request.getLimit(), MAX_RECORDS_PER_GET);
+		LocalStream stream = stream(parts[0]);
+		synchronized (stream) {
+			LocalShard shard = stream.shard(parts[1]);
+			if (!shard.tryReadCall()) {
+				throw throttled("Rate exceeded for shard "+shard.id+" in stream "+stream.name);
+			}
+			int position = Integer.parseInt(parts[2]);
+			List<Record> records = new ArrayList<>();
+			long bytes = 0;
+			while (position < shard.records.size() && records.size() < limit) {
+				StoredRecord stored = shard.records.get(position);
+				if (!records.isEmpty() && bytes + stored.size > MAX_BYTES_PER_GET) {
+					break;
+				}
+				records.add(stored.toRecord());
+				bytes += stored.size;
+				position++;
+			}
+			// a big read is allowed, the following calls pay for it
+			shard.chargeRead(bytes);
+			long behind = position < shard.records.size() ? now - shard.records.get(position).arrivalMillis : 0;
+			// a closed shard that has been read to the end has no next iterator
+			String next = shard.closed && position >= shard.records.size() ? null : iterator(stream.name, shard.id, position);
+			return new GetRecordsResult().withRecords(records).withNextShardIterator(next)
+					.withMillisBehindLatest(Math.max(0, behind));
+		}
+	}
+
+	@Override
+	public SplitShardResult splitShard(SplitShardRequest request) {
+		LocalStream stream = stream(request.getStreamName());
+		synchronized (stream) {
+			requireActive(stream);
+			LocalShard parent = stream.openShard(request.getShardToSplit());
+			BigInteger newStart = new BigInteger(request.getNewStartingHashKey());
+			if (newStart.compareTo(parent.start) <= 0 || newStart.compareTo(parent.end) > 0) {
+				throw error(new InvalidArgumentException("NewStartingHashKey "+newStart+" is not inside the range of "+parent.id));
+			}
+			stream.close(parent);
+			stream.addShard(parent.start, newStart.subtract(BigInteger.ONE), parent.id, null);
+			stream.addShard(newStart, parent.end, parent.id, null);
+			stream.transition("UPDATING");
+		}
+		return new SplitShardResult();
+	}
+
+	@Override
+	public SplitShardResult splitShard(String streamName, String shardToSplit, String newStartingHashKey) {
+		return splitShard(new SplitShardRequest().withStreamName(streamName).withShardToSplit(shardToSplit)
+				.withNewStartingHashKey(newStartingHashKey));
+	}
+
+	@Override
+	public MergeShardsResult mergeShards(MergeShardsRequest request) {
+		LocalStream stream = stream(request.getStreamName());
+		synchronized (stream) {
+			requireActive(stream);
+			LocalShard shard = stream.openShard(request.getShardToMerge());
+			LocalShard adjacent = stream.openShard(request.getAdjacentShardToMerge());
+			LocalShard low = shard.start.compareTo(adjacent.start) < 0 ? shard : adjacent;
+			LocalShard high = low == shard ? adjacent : shard;
+			if (!low.end.add(BigInteger.ONE).equals(high.start)) {
+				throw error(new InvalidArgumentException("Shards "+shard.id+" and "+adjacent.id+" are not adjacent"));
+			}
+			stream.close(shard);
+			stream.close(adjacent);
+			stream.addShard(low.start, high.end, shard.id, adjacent.id);
+			stream.transition("UPDATING");
+		}
+		return new MergeShardsResult();
+	}
+
+	@Override
+	public MergeShardsResult mergeShards(String streamName, String shardToMerge, String adjacentShardToMerge) {
+		return mergeShards(new MergeShardsRequest().withStreamName(streamName).withShardToMerge(shardToMerge)
+				.withAdjacentShardToMerge(adjacentShardToMerge));
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	private LocalStream stream(String name) {
+		synchronized (streams) {
+			LocalStream stream = streams.get(name);
+			if (stream == null) {
+				throw notFound(name);
+			}
+			return stream;
+		}
+	}
+
+	private static void requireActive(LocalStream stream) {
+		if (!"ACTIVE".equals(stream.status())) {
+			throw error(new ResourceInUseException("Stream "+stream.name+" is "+stream.status()));
+		}
+	}
+
+	// writes are accepted while a reshard is in progress, not while the stream is being created
+	private static void requireWritable(LocalStream stream) {
+		if ("CREATING".equals(stream.status())) {
+			throw notFound(stream.name);
+		}
+	}
+
+	private static int recordSize(String partitionKey, ByteBuffer data) {
+		if (partitionKey == null || partitionKey.isEmpty() || partitionKey.length() > 256) {
+			throw error(new InvalidArgumentException("PartitionKey must be between 1 and 256 characters"));
+		}
+		int size = (data == null ? 0 : data.remaining()) + partitionKey.length();
+		if (size > MAX_RECORD_BYTES) {
+			throw error(new InvalidArgumentException("Record of "+size+" bytes exceeds "+MAX_RECORD_BYTES));
+		}
+		return size;
+	}
+
+	private static String iterator(String streamName, String shardId, int position) {
+		return streamName+"|"+shardId+"|"+position+"|"+System.currentTimeMillis();
+	}
+
+	private static ResourceNotFoundException notFound(String streamName) {
+		return error(new ResourceNotFoundException("Stream "+streamName+" not found"));
+	}
+
+	private static ProvisionedThroughputExceededException throttled(String message) {
+		return error(new ProvisionedThroughputExceededException(message));
+	}
+
+	// fill in what the SDK would have unmarshalled from the service's error response
+	private static <E extends AmazonServiceException> E error(E e) {
+		e.setServiceName("AmazonKinesis");
+		e.setStatusCode(400);
+		e.setErrorType(AmazonServiceException.ErrorType.Client);
+		e.setErrorCode(e.getClass().getSimpleName());
+		return e;
+	}
+
+	// one stream and its shards, guarded by its own monitor
+	private class LocalStream {
+		final String name;
+		final long createdMillis = System.currentTimeMillis();
+		// by shard ID, in creation order
+		final Map<String, LocalShard> shards = new TreeMap<>();
+		// open shards sorted by starting hash key, for routing
+		final TreeMap<BigInteger, LocalShard> open = new TreeMap<>();
+		String pendingStatus;
+		long readyAtMillis;
+
+		LocalStream(String name) {
+			this.name = name;
+		}
+
+		// stay in the given status for transitionMillis, then become ACTIVE
+		void transition(String status) {
+			pendingStatus = status;
+			readyAtMillis = System.currentTimeMillis() + transitionMillis;
+		}
+
+		String status() {
+			return pendingStatus != null && System.currentTimeMillis() < readyAtMillis ? pendingStatus : "ACTIVE";
+		}
+
+		void addShard(BigInteger start, BigInteger end, String parentId, String adjacentParentId) {
+			String id = String.format("shardId-%012d", shards.size());
+			LocalShard shard = new LocalShard(id, start, end, parentId, adjacentParentId);
+			shards.put(id, shard);
+			open.put(start, shard);
+		}
+
+		void close(LocalShard shard) {
+			shard.close();
+			open.remove(shard.start, shard);
+		}
+
+		LocalShard shard(String shardId) {
+			LocalShard shard = shards.get(shardId);
+			if (shard == null) {
+				throw error(new ResourceNotFoundException("Shard "+shardId+" in stream "+name+" not found"));
+			}
+			return shard;
+		}
+
+		LocalShard openShard(String shardId) {
+			LocalShard shard = shard(shardId);
+			if (shard.closed) {
+				throw error(new ResourceInUseException("Shard "+shardId+" in stream "+name+" is closed"));
+			}
+			return shard;
+		}
+
+		// the open shard owning the record's hash key - explicit if given, else the MD5 of the partition key
+		LocalShard route(String partitionKey, String explicitHashKey) {
+			BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey) : ShardMap.hashKey(partitionKey);
+			if (hashKey.signum() < 0 || hashKey.compareTo(MAX_HASH_KEY) > 0) {
+				throw error(new InvalidArgumentException("ExplicitHashKey "+explicitHashKey+" is out of range"));
+			}
+			return open.floorEntry(hashKey).getValue();
+		}
+	}
+
+	private class LocalShard {
+		final String id;
+		final BigInteger start;
+		final BigInteger end;
+		final String parentId;
+		final String adjacentParentId;
+		final String startingSequenceNumber;
+		String endingSequenceNumber;
+		boolean closed = false;
+		final List<StoredRecord> records = new ArrayList<>();
+
+		final TokenBucket writeBytes = new TokenBucket(WRITE_BYTES_PER_SECOND);
+		final TokenBucket writeRecords = new TokenBucket(WRITE_RECORDS_PER_SECOND);
+		final TokenBucket readBytes = new TokenBucket(READ_BYTES_PER_SECOND);
+		final TokenBucket readCalls = new TokenBucket(READ_CALLS_PER_SECOND);
+
+		LocalShard(String id, BigInteger start, BigInteger end, String parentId, String adjacentParentId) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.parentId = parentId;
+			this.adjacentParentId = adjacentParentId;
+			this.startingSequenceNumber = sequenceNumber(sequence.incrementAndGet());
+		}
+
+		Shard describe() {
+			SequenceNumberRange range = new SequenceNumberRange()
+					.withStartingSequenceNumber(startingSequenceNumber)
+					.withEndingSequenceNumber(endingSequenceNumber);
+			return new Shard().withShardId(id)
+					.withParentShardId(parentId)
+					.withAdjacentParentShardId(adjacentParentId)
+					.withHashKeyRange(new HashKeyRange().withStartingHashKey(start.toString()).withEndingHashKey(end.toString()))
+					.withSequenceNumberRange(range);
+		}
+
+		// stop taking writes, readers get the remaining records and then SHARD_END
+		void close() {
+			closed = true;
+			endingSequenceNumber = sequenceNumber(sequence.incrementAndGet());
+		}
+
+		boolean tryWrite(int bytes) {
+			if (!throttlingEnabled) {
+				return true;
+			}
+			// both limits have to allow the record (the caller holds the stream lock)
+			if (writeRecords.nanosUntilAvailable(1) > 0 || writeBytes.nanosUntilAvailable(bytes) > 0) {
+				return false;
+			}
+			writeRecords.charge(1);
+			writeBytes.charge(bytes);
+			return true;
+		}
+
+		boolean tryReadCall() {
+			if (!throttlingEnabled) {
+				return true;
+			}
+			// a shard that returned more than its read budget stays throttled until it is paid off
+			if (readBytes.nanosUntilAvailable(1) > 0) {
+				return false;
+			}
+			return readCalls.tryAcquire(1);
+		}
+
+		void chargeRead(long bytes) {
+			if (throttlingEnabled) {
+				readBytes.charge(bytes);
+			}
+		}
+
+		String append(String partitionKey, ByteBuffer data) {
+			// copy the payload, the caller may reuse its buffer as soon as the put returns
+			byte[] bytes = new byte[data == null ? 0 : data.remaining()];
+			if (data != null) {
+				data.duplicate().get(bytes);
+			}
+			String sequenceNumber = sequenceNumber(sequence.incrementAndGet());
+			records.add(new StoredRecord(new BigInteger(sequenceNumber), sequenceNumber, partitionKey, bytes,
+					System.currentTimeMillis()));
+			return sequenceNumber;
+		}
+
+		// index of the first record at (or after) the sequence number
+		int positionOf(BigInteger target, boolean after) {
+			int low = 0;
+			int high = records.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int c = records.get(mid).sequence.compareTo(target);
+				if (c < 0 || (after && c == 0)) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		int positionAt(long timestampMillis) {
+			int position = 0;
+			while (position < records.size() && records.get(position).arrivalMillis < timestampMillis) {
+				position++;
+			}
+			return position;
+		}
+	}
+
+	private static class StoredRecord {
+		final BigInteger sequence;
+		final String sequenceNumber;
+		final String partitionKey;
+		final byte[] data;
+		final long arrivalMillis;
+		final int size;
+
+		StoredRecord(BigInteger sequence, String sequenceNumber, String partitionKey, byte[] data, long arrivalMillis) {
+			this.sequence = sequence;
+			this.sequenceNumber = sequenceNumber;
+			this.partitionKey = partitionKey;
+			this.data = data;
+			this.arrivalMillis = arrivalMillis;
+			this.size = data.length + partitionKey.length();
+		}
+
+		// a fresh Record per read, like the SDK unmarshalling a response. The buffer is a read-only
+		// view of the stored bytes rather than a copy, so one reader can't change what later reads see
+		Record toRecord() {
+			return new Record().withSequenceNumber(sequenceNumber)
+					.withPartitionKey(partitionKey)
+					.withData(ByteBuffer.wrap(data).asReadOnlyBuffer())
+					.withApproximateArrivalTimestamp(new Date(arrivalMillis));
+		}
+	}
+
+	// sequence numbers are decimal strings, padded so they also sort as text
+	private static String sequenceNumber(long n) {
+		return String.format("49%030d", n);
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compresses record payloads on the put path, so more data fits through each shard's write
+ * and read limits. A compressed payload starts with a small header:
+ *
+ *   4 magic bytes | codec ID | dictionary ID (0 for none) | varint original length | data
+ *
+ * The magic bytes are never valid UTF-8, so text payloads can't be mistaken for compressed
+ * ones. Payloads that don't get smaller are sent as they are. RecordDeaggregator spots the
+ * header and decompresses on the read path, using the codecs and dictionaries registered here.
+ */
+public class PayloadCompressor {
+
+	// next to the aggregated record magic, and just as impossible in UTF-8 text
+	static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC5 };
+	// deflate's window, a longer dictionary is never looked at
+	public static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+	// the length of the substrings trainDictionary counts
+	private static final int GRAM_BYTES = 8;
+
+	// what the producer compresses
+	public enum Mode {
+		// each user record on its own, before it is aggregated. Needs a dictionary to do much for
+		// small records
+		RECORD,
+		// each Kinesis record as it is sent, so an aggregated record is compressed as a whole
+		BATCH
+	}
+
+	// codecs and dictionaries readers know, by the ID written into the header
+	private static final Map<Byte, CompressionCodec> CODECS = new ConcurrentHashMap<>();
+	private static final Map<Integer, byte[]> DICTIONARIES = new ConcurrentHashMap<>();
+
+	static {
+		registerCodec(new DeflateCodec());
+	}
+
+	private final CompressionCodec codec;
+	private final Mode mode;
+
+	// settings - see the setters below
+	private volatile int minBytes = 32;
+	private volatile int dictionaryId = 0;
+	private volatile byte[] dictionary;
+
+	public PayloadCompressor(Mode mode) {
+		this(new DeflateCodec(), mode);
+	}
+
+	public PayloadCompressor(CompressionCodec codec, Mode mode) {
+		this.codec = codec;
+		this.mode = mode;
+		registerCodec(codec);
+	}
+
+	// make a codec known to the read path. Codec IDs must be unique
+	public static void registerCodec(CompressionCodec codec) {
+		if (codec.getId() == 0) {
+			throw new IllegalArgumentException("codec ID 0 is reserved");
+		}
+		CompressionCodec previous = CODECS.putIfAbsent(codec.getId(), codec);
+		if (previous != null && !previous.getClass().equals(codec.getClass())) {
+			throw new IllegalArgumentException("codec ID "+codec.getId()+" is already used by "+previous.getName());
+		}
+	}
+
+	// make a dictionary known to the read path. Readers in other processes have to register the
+	// same bytes under the same ID before they read records compressed with it
+	public static void registerDictionary(int dictionaryId, byte[] dictionary) {
+		if (dictionaryId < 1 || dictionaryId > 255) {
+			throw new IllegalArgumentException("dictionary ID must be between 1 and 255");
+		}
+		DICTIONARIES.put(dictionaryId, dictionary.clone());
+	}
+
+	public CompressionCodec getCodec() {
+		return codec;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	// payloads shorter than this aren't worth the header
+	public void setMinBytes(int minBytes) {
+		this.minBytes = minBytes;
+	}
+
+	// compress with a dictionary of the data's common substrings (see trainDictionary). Small
+	// records have too little history of their own to compress, with a dictionary they can refer
+	// to what similar records looked like. The dictionary is registered for reading too
+	public void setDictionary(int dictionaryId, byte[] dictionary) {
+		registerDictionary(dictionaryId, dictionary);
+		this.dictionary = DICTIONARIES.get(dictionaryId);
+		this.dictionaryId = dictionaryId;
+	}
+
+	// stop using the dictionary. It stays registered, since records compressed with it may still be read
+	public void clearDictionary() {
+		this.dictionaryId = 0;
+		this.dictionary = null;
+	}
+
+	// the compressed payload with its header, or data itself (not a copy) if compressing
+	// doesn't make it smaller. The data's position is left alone
+	public ByteBuffer compress(ByteBuffer data) {
+		int length = data.remaining();
+		if (length < minBytes) {
+			return data;
+		}
+		int id = dictionaryId;
+		byte[] dict = id == 0 ? null : dictionary;
+		int headerBytes = MAGIC.length + 2 + RecordAggregator.varintSize(length);
+		if (headerBytes >= length) {
+			return data;
+		}
+		ByteBuffer out = ByteBuffer.allocate(headerBytes + codec.maxCompressedLength(length));
+		out.put(MAGIC);
+		out.put(codec.getId());
+		out.put((byte) (dict == null ? 0 : id));
+		RecordAggregator.writeVarint(out, length);
+		codec.compress(data, dict, out);
+		out.flip();
+		return out.remaining() < length ? out : data;
+	}
+
+	// true if the payload starts with the compression header
+	public static boolean isCompressed(ByteBuffer data) {
+		if (data.remaining() < MAGIC.length + 3) {
+			return false;
+		}
+		int start = data.position();
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data.get(start + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the original payload of a compressed one. Throws IllegalArgumentException if the payload
+	// is corrupt, and IllegalStateException if its codec or dictionary hasn't been registered
+	public static ByteBuffer decompress(ByteBuffer data) {
+		if (!isCompressed(data)) {
+			throw new IllegalArgumentException("payload has no compression header");
+		}
+		ByteBuffer in = data.duplicate();
+		in.position(data.position() + MAGIC.length);
+		byte codecId = in.get();
+		int id = in.get() & 0xFF;
+		long length;
+		try {
+			length = RecordDeaggregator.readVarint(in);
+		}
+		catch (RuntimeException e) {
+			throw new IllegalArgumentException("malformed compression header", e);
+		}
+		if (length < 0 || length > KinesisProducer.MAX_RECORD_BYTES) {
+			throw new IllegalArgumentException("compressed payload claims "+length+" bytes");
+		}
+		CompressionCodec codec = CODECS.get(codecId);
+		if (codec == null) {
+			throw new IllegalStateException("no compression codec registered with ID "+codecId);
+		}
+		byte[] dict = null;
+		if (id != 0) {
+			dict = DICTIONARIES.get(id);
+			if (dict == null) {
+				throw new IllegalStateException("no compression dictionary registered with ID "+id);
+			}
+		}
+		return codec.decompress(in, (int) length, dict);
+	}
+
+	// build a dictionary of up to maxBytes from sample payloads: the substrings found in the
+	// most samples come first, overlapping substrings are chained so they are stored only once
+	public static byte[] trainDictionary(List<ByteBuffer> samples, int maxBytes) {
+		maxBytes = Math.min(maxBytes, MAX_DICTIONARY_BYTES);
+		// how many samples each substring occurs in, in the order they were first seen. Latin-1
+		// maps every byte to one char, so the strings are just the bytes
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		for (ByteBuffer sample : samples) {
+			ByteBuffer in = sample.duplicate();
+			byte[] bytes = new byte[in.remaining()];
+			in.get(bytes);
+			String s = new String(bytes, StandardCharsets.ISO_8859_1);
+			Set<String> seen = new HashSet<>();
+			for (int i = 0; i + GRAM_BYTES <= s.length(); i++) {
+				String gram = s.substring(i, i + GRAM_BYTES);
+				if (seen.add(gram)) {
+					counts.merge(gram, 1, Integer::sum);
+				}
+			}
+		}
+		// a stable sort keeps substrings that are equally common in sample order, so neighbours chain
+		List<Map.Entry<String, Integer>> common = new ArrayList<>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() > 1) {
+				common.add(entry);
+			}
+		}
+		common.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+		StringBuilder dict = new StringBuilder();
+		Set<String> covered = new HashSet<>();
+		for (Map.Entry<String, Integer> entry : common) {
+			if (dict.length() >= maxBytes) {
+				break;
+			}
+			String gram = entry.getKey();
+			if (covered.contains(gram)) {
+				continue;
+			}
+			// skip whatever part of the gram the dictionary already ends with
+			int overlap = GRAM_BYTES - 1;
+			while (overlap > 0 && !endsWith(dict, gram, overlap)) {
+				overlap--;
+			}
+			int from = dict.length();
+			dict.append(gram, overlap, GRAM_BYTES);
+			for (int i = Math.max(0, from - GRAM_BYTES + 1); i + GRAM_BYTES <= dict.length(); i++) {
+				covered.add(dict.substring(i, i + GRAM_BYTES));
+			}
+		}
+		if (dict.length() > maxBytes) {
+			dict.setLength(maxBytes);
+		}
+		return dict.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	// true if the dictionary ends with the first length chars of the gram
+	private static boolean endsWith(StringBuilder dict, String gram, int length) {
+		if (dict.length() < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (dict.charAt(dict.length() - length + i) != gram.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Runs a RecordPipeline for every shard it is given records for. Each shard gets its own
+ * publisher and chain of stages, with a bounded buffer between every two of them.
+ * processRecords returns once the records are in the shard's first buffer and blocks
+ * while that is full, so a KinesisConsumer feeding it polls only as fast as the sink keeps
+ * up, and memory stays bounded however far behind the sink is.
+ *
+ * Records are still in flight when processRecords returns, so a KinesisConsumer with a
+ * checkpoint store needs auto checkpointing turned off; it refuses to start otherwise.
+ * Give the processor the store instead: a barrier follows each batch through the stages,
+ * and once the sink is past it the batch's last sequence number is checkpointed. That
+ * needs every stage to be a PipelineStage, with other Flow.Processors only SHARD_END is
+ * checkpointed, after shardEnded has drained the shard.
+ *
+ * A shard whose pipeline failed is dropped once processRecords has reported the failure,
+ * so a restarted worker gets a fresh pipeline and reads on from the last checkpoint.
+ */
+public class PipelineProcessor implements RecordProcessor {
+
+	private static final Log LOG = LogFactory.getLog(PipelineProcessor.class);
+
+	// how often a blocked processRecords looks for a failed pipeline or an interrupt
+	private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+	private final RecordPipeline<?> pipeline;
+	private final BiConsumer<String, Object> sink;
+
+	// settings - see the setters below
+	private volatile int bufferCapacity = Flow.defaultBufferSize();
+	private volatile String myStreamName;
+	private volatile CheckpointStore checkpointStore;
+
+	private final Map<String, ShardPipeline> shards = new ConcurrentHashMap<>();
+	private final ExecutorService executor;
+	private volatile boolean closed = false;
+
+	PipelineProcessor(RecordPipeline<?> pipeline, BiConsumer<String, Object> sink) {
+		this.pipeline = pipeline;
+		this.sink = sink;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "kinesis-pipeline-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// items each stage buffers for the next one (rounded up to a power of two). Applies to
+	// shards that haven't been seen yet
+	public void setBufferCapacity(int bufferCapacity) {
+		if (bufferCapacity < 1) {
+			throw new IllegalArgumentException("bufferCapacity must be at least 1");
+		}
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	// checkpoint each shard's batches here once the sink is past them. Use the store the
+	// consumer resumes from
+	public void setCheckpointStore(String myStreamName, CheckpointStore checkpointStore) {
+		this.myStreamName = myStreamName;
+		this.checkpointStore = checkpointStore;
+	}
+
+	// the sequence number every record of the shard up to and including has gone through the
+	// sink, null before the first batch has
+	public String getLowWatermark(String shardId) {
+		ShardPipeline shard = shards.get(shardId);
+		return shard == null ? null : shard.lowWatermark;
+	}
+
+	// hand the records to the shard's pipeline, waiting while its first buffer is full. Throws
+	// once the shard's pipeline has failed, which stops the consumer reading it
+	@Override
+	public void processRecords(String shardId, List<Record> records, long millisBehindLatest) {
+		if (closed) {
+			throw new IllegalStateException("pipeline is closed");
+		}
+		ShardPipeline shard = shards.computeIfAbsent(shardId, ShardPipeline::new);
+		try {
+			for (Record record : records) {
+				shard.offer(record);
+			}
+			if (shard.barriers && !records.isEmpty()) {
+				shard.offer(new PipelineStage.Barrier(records.get(records.size() - 1).getSequenceNumber()));
+			}
+		}
+		catch (RuntimeException e) {
+			// the failure has been reported, the next records of the shard start a fresh pipeline
+			if (shard.done.isCompletedExceptionally()) {
+				shards.remove(shardId, shard);
+			}
+			throw e;
+		}
+	}
+
+	// the sink sees the records some time after processRecords returns
+	@Override
+	public boolean completesOnReturn() {
+		return false;
+	}
+
+	// wait until everything of the shard has gone through the sink before it is marked done
+	@Override
+	public void shardEnded(String shardId) {
+		ShardPipeline shard = shards.remove(shardId);
+		if (shard != null) {
+			shard.finish();
+		}
+	}
+
+	// finish every shard's pipeline, wait for the sinks to see everything, and release the threads
+	public void close() {
+		closed = true;
+		RuntimeException failure = null;
+		for (String shardId : new ArrayList<>(shards.keySet())) {
+			try {
+				shardEnded(shardId);
+			}
+			catch (RuntimeException e) {
+				LOG.error("Pipeline for shard "+shardId+" failed", e);
+				failure = e;
+			}
+		}
+		executor.shutdown();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// the source, stages and sink of one shard
+	private class ShardPipeline implements Flow.Subscriber<Object> {
+		private final String shardId;
+		private final SubmissionPublisher<Object> source;
+		// false if a stage of the caller's own would get the barriers as items
+		private final boolean barriers;
+		// completes once the sink has seen the end of the shard, or something failed
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		private volatile String lowWatermark;
+		private Flow.Subscription subscription;
+
+		ShardPipeline(String shardId) {
+			this.shardId = shardId;
+			this.source = new SubmissionPublisher<>(executor, bufferCapacity);
+			List<Flow.Processor<?, ?>> stages = pipeline.assemble(source, executor, bufferCapacity);
+			boolean barriers = true;
+			for (Flow.Processor<?, ?> stage : stages) {
+				barriers &= stage instanceof PipelineStage;
+			}
+			this.barriers = barriers;
+			Flow.Publisher<?> last = stages.isEmpty() ? source : stages.get(stages.size() - 1);
+			last.subscribe(this);
+		}
+
+		void offer(Object item) {
+			// the source has one subscriber, so a timed out offer can be retried without duplicates
+			while (true) {
+				int lag;
+				try {
+					lag = source.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, null);
+				}
+				catch (IllegalStateException e) {
+					// a failed pipeline closes its source
+					checkFailed();
+					throw e;
+				}
+				if (lag >= 0) {
+					return;
+				}
+				checkFailed();
+				if (Thread.currentThread().isInterrupted()) {
+					throw new IllegalStateException("interrupted while handing records to the pipeline of shard "+shardId);
+				}
+			}
+		}
+
+		void finish() {
+			source.close();
+			try {
+				done.join();
+			}
+			catch (CompletionException e) {
+				checkFailed();
+			}
+		}
+
+		private void checkFailed() {
+			if (done.isCompletedExceptionally()) {
+				Throwable cause = done.handle((r, t) -> t).join();
+				if (cause instanceof CompletionException && cause.getCause() != null) {
+					cause = cause.getCause();
+				}
+				throw new IllegalStateException("pipeline of shard "+shardId+" failed", cause);
+			}
+		}
+
+		private void fail(Throwable throwable) {
+			done.completeExceptionally(throwable);
+			// stop taking records, processRecords reports the failure
+			source.closeExceptionally(throwable);
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(Object item) {
+			try {
+				if (item instanceof PipelineStage.Barrier) {
+					drained(((PipelineStage.Barrier) item).sequenceNumber);
+				}
+				else {
+					sink.accept(shardId, item);
+				}
+			}
+			catch (RuntimeException e) {
+				subscription.cancel();
+				fail(e);
+				return;
+			}
+			subscription.request(1);
+		}
+
+		// every record up to the barrier's has gone through the sink
+		private void drained(String sequenceNumber) {
+			lowWatermark = sequenceNumber;
+			CheckpointStore store = checkpointStore;
+			if (store != null) {
+				store.checkpoint(myStreamName, shardId, sequenceNumber);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			fail(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			done.complete(null);
+		}
+	}
+}
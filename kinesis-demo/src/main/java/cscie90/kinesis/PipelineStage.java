@@ -0,0 +1,104 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * One step of a RecordPipeline, turning items of one type into items of another. It asks
+ * upstream for one item at a time and only for the next once the last has been handed on.
+ * Handing on blocks while the downstream buffer is full, so a slow stage holds back every
+ * stage before it, and in the end the shard's GetRecords calls. Extend it for your own
+ * transforms: implement process() and emit results with submit().
+ *
+ * Between the items, PipelineProcessor sends a Barrier after each batch of records. It
+ * never reaches process(); the stage hands it on, and the sink receiving it means every
+ * record before it is done. A stage that holds items back (like batch()) overrides
+ * barrier() to hold the barrier back with them.
+ */
+public abstract class PipelineStage<T, R> extends SubmissionPublisher<R> implements Flow.Processor<T, R> {
+
+	// marks the end of a batch of records in a shard's pipeline
+	public static final class Barrier {
+		final String sequenceNumber;
+
+		Barrier(String sequenceNumber) {
+			this.sequenceNumber = sequenceNumber;
+		}
+	}
+
+	private Flow.Subscription subscription;
+
+	protected PipelineStage(Executor executor, int bufferCapacity) {
+		super(executor, bufferCapacity);
+	}
+
+	// handle one item, calling submit() for each result - none, one or several
+	protected abstract void process(T item);
+
+	// upstream has completed, emit anything still held back
+	protected void finish() {
+	}
+
+	// every item before the barrier has been processed. Hand it on with forward() once
+	// everything they were turned into has been submitted
+	protected void barrier(Barrier barrier) {
+		forward(barrier);
+	}
+
+	// the barrier travels among the items, it is only ever seen by stages and the processor
+	@SuppressWarnings("unchecked")
+	protected final void forward(Barrier barrier) {
+		submit((R) barrier);
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(T item) {
+		try {
+			if (item instanceof Barrier) {
+				barrier((Barrier) item);
+			}
+			else {
+				process(item);
+			}
+		}
+		catch (RuntimeException e) {
+			// the rest of the pipeline sees the failure, nothing more is taken from upstream
+			subscription.cancel();
+			closeExceptionally(e);
+			return;
+		}
+		subscription.request(1);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		closeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		try {
+			finish();
+		}
+		catch (RuntimeException e) {
+			closeExceptionally(e);
+			return;
+		}
+		close();
+	}
+}
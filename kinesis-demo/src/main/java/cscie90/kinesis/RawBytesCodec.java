@@ -0,0 +1,30 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte arrays as they are. Encoding wraps the array without copying, so it must not be
+ * changed until the record has been sent; decoding copies exactly the record's bytes.
+ */
+public class RawBytesCodec implements RecordCodec<byte[]> {
+
+	@Override
+	public ByteBuffer encode(byte[] value, ByteBuffer target) {
+		return ByteBuffer.wrap(value);
+	}
+
+	@Override
+	public byte[] decode(ByteBuffer data) {
+		byte[] bytes = new byte[data.remaining()];
+		data.get(data.position(), bytes);
+		return bytes;
+	}
+}
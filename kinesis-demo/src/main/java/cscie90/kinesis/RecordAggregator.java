@@ -0,0 +1,250 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs many small user records, each with its own partition key, into a single Kinesis
+ * record. The layout is the one used by the Kinesis Producer Library so that KPL/KCL
+ * consumers can read it as well:
+ *
+ *   4 magic bytes | protobuf AggregatedRecord | 16 byte MD5 of the protobuf bytes
+ *
+ * RecordDeaggregator does the unpacking on the consumer side.
+ */
+public class RecordAggregator {
+
+	// marks the start of an aggregated record
+	static final byte[] MAGIC = { (byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2 };
+	static final int DIGEST_LENGTH = 16;
+
+	// protobuf field tags (field number << 3 | wire type)
+	static final int TAG_PARTITION_KEY_TABLE = (1 << 3) | 2;
+	static final int TAG_EXPLICIT_HASH_KEY_TABLE = (2 << 3) | 2;
+	static final int TAG_RECORD = (3 << 3) | 2;
+	static final int TAG_PARTITION_KEY_INDEX = (1 << 3);
+	static final int TAG_EXPLICIT_HASH_KEY_INDEX = (2 << 3);
+	static final int TAG_DATA = (3 << 3) | 2;
+
+	// the container has to fit in one Kinesis record, data plus partition key
+	private final int maxBytes;
+
+	// user records are kept as references until toByteBuffer() copies them into place
+	private final List<String> partitionKeys = new ArrayList<>();
+	private final Map<String, Integer> partitionKeyIndex = new HashMap<>();
+	private final List<String> explicitHashKeys = new ArrayList<>();
+	private final Map<String, Integer> explicitHashKeyIndex = new HashMap<>();
+	private final List<Entry> entries = new ArrayList<>();
+
+	// size of the protobuf message built so far
+	private int messageBytes = 0;
+
+	public RecordAggregator() {
+		this(KinesisProducer.MAX_RECORD_BYTES);
+	}
+
+	public RecordAggregator(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public int getNumUserRecords() {
+		return entries.size();
+	}
+
+	// size of the Kinesis record this aggregator would produce right now, partition key included
+	public int getSizeBytes() {
+		if (entries.isEmpty()) {
+			return 0;
+		}
+		return MAGIC.length + messageBytes + DIGEST_LENGTH + utf8Length(getPartitionKey());
+	}
+
+	// the aggregated record is routed like its first user record
+	public String getPartitionKey() {
+		return entries.isEmpty() ? null : partitionKeys.get(entries.get(0).partitionKeyIndex);
+	}
+
+	public String getExplicitHashKey() {
+		if (entries.isEmpty() || entries.get(0).explicitHashKeyIndex < 0) {
+			return null;
+		}
+		return explicitHashKeys.get(entries.get(0).explicitHashKeyIndex);
+	}
+
+	// add a user record if it still fits, returns false (and leaves the aggregator
+	// unchanged) when it would push the aggregated record over the size limit
+	public boolean addUserRecord(String partitionKey, String explicitHashKey, ByteBuffer data) {
+		int growth = 0;
+		Integer pkIndex = partitionKeyIndex.get(partitionKey);
+		if (pkIndex == null) {
+			growth += fieldSize(TAG_PARTITION_KEY_TABLE, utf8Length(partitionKey));
+		}
+		Integer ehkIndex = null;
+		if (explicitHashKey != null) {
+			ehkIndex = explicitHashKeyIndex.get(explicitHashKey);
+			if (ehkIndex == null) {
+				growth += fieldSize(TAG_EXPLICIT_HASH_KEY_TABLE, utf8Length(explicitHashKey));
+			}
+		}
+		int newPkIndex = pkIndex != null ? pkIndex : partitionKeys.size();
+		int newEhkIndex = explicitHashKey == null ? -1 : (ehkIndex != null ? ehkIndex : explicitHashKeys.size());
+		int recordBytes = recordMessageSize(newPkIndex, newEhkIndex, data.remaining());
+		growth += fieldSize(TAG_RECORD, recordBytes);
+
+		// the first record decides the container's partition key
+		String containerKey = entries.isEmpty() ? partitionKey : getPartitionKey();
+		int newSize = MAGIC.length + messageBytes + growth + DIGEST_LENGTH + utf8Length(containerKey);
+		if (newSize > maxBytes) {
+			return false;
+		}
+
+		if (pkIndex == null) {
+			partitionKeyIndex.put(partitionKey, newPkIndex);
+			partitionKeys.add(partitionKey);
+		}
+		if (explicitHashKey != null && ehkIndex == null) {
+			explicitHashKeyIndex.put(explicitHashKey, newEhkIndex);
+			explicitHashKeys.add(explicitHashKey);
+		}
+		entries.add(new Entry(newPkIndex, newEhkIndex, data.duplicate(), recordBytes));
+		messageBytes += growth;
+		return true;
+	}
+
+	// write out the aggregated record: magic, protobuf message, MD5 of the message
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer out = ByteBuffer.allocate(MAGIC.length + messageBytes + DIGEST_LENGTH);
+		out.put(MAGIC);
+		int messageStart = out.position();
+		for (String partitionKey : partitionKeys) {
+			writeBytesField(out, TAG_PARTITION_KEY_TABLE, partitionKey.getBytes(StandardCharsets.UTF_8));
+		}
+		for (String explicitHashKey : explicitHashKeys) {
+			writeBytesField(out, TAG_EXPLICIT_HASH_KEY_TABLE, explicitHashKey.getBytes(StandardCharsets.UTF_8));
+		}
+		for (Entry entry : entries) {
+			writeVarint(out, TAG_RECORD);
+			writeVarint(out, entry.messageBytes);
+			writeVarint(out, TAG_PARTITION_KEY_INDEX);
+			writeVarint(out, entry.partitionKeyIndex);
+			if (entry.explicitHashKeyIndex >= 0) {
+				writeVarint(out, TAG_EXPLICIT_HASH_KEY_INDEX);
+				writeVarint(out, entry.explicitHashKeyIndex);
+			}
+			writeVarint(out, TAG_DATA);
+			writeVarint(out, entry.data.remaining());
+			out.put(entry.data.duplicate());
+		}
+		MessageDigest md5 = md5();
+		md5.update(out.array(), messageStart, out.position() - messageStart);
+		out.put(md5.digest());
+		out.flip();
+		return out;
+	}
+
+	// forget everything so the aggregator can be used for the next container
+	public void clear() {
+		partitionKeys.clear();
+		partitionKeyIndex.clear();
+		explicitHashKeys.clear();
+		explicitHashKeyIndex.clear();
+		entries.clear();
+		messageBytes = 0;
+	}
+
+	private static int recordMessageSize(int pkIndex, int ehkIndex, int dataLength) {
+		int size = 1 + varintSize(pkIndex);
+		if (ehkIndex >= 0) {
+			size += 1 + varintSize(ehkIndex);
+		}
+		return size + fieldSize(TAG_DATA, dataLength);
+	}
+
+	// a length-delimited field: tag, length, payload
+	private static int fieldSize(int tag, int length) {
+		return varintSize(tag) + varintSize(length) + length;
+	}
+
+	static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void writeVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private static void writeBytesField(ByteBuffer out, int tag, byte[] bytes) {
+		writeVarint(out, tag);
+		writeVarint(out, bytes.length);
+		out.put(bytes);
+	}
+
+	static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			}
+			else if (c < 0x800) {
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(c)) {
+				length += 4;
+				i++;
+			}
+			else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every Java runtime is required to ship MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// one packed user record
+	private static class Entry {
+		final int partitionKeyIndex;
+		final int explicitHashKeyIndex;
+		final ByteBuffer data;
+		final int messageBytes;
+
+		Entry(int partitionKeyIndex, int explicitHashKeyIndex, ByteBuffer data, int messageBytes) {
+			this.partitionKeyIndex = partitionKeyIndex;
+			this.explicitHashKeyIndex = explicitHashKeyIndex;
+			this.data = data;
+			this.messageBytes = messageBytes;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns values into record payloads and back. Kinesis only stores raw bytes, so producer
+ * and consumer have to agree on a codec.
+ */
+public interface RecordCodec<T> {
+
+	// write the value into target (cleared first) and return it flipped, ready to be read. A codec
+	// may return a different buffer instead, when target is too small or the value already is
+	// bytes that can be wrapped; the caller still owns target either way
+	ByteBuffer encode(T value, ByteBuffer target);
+
+	// read a value from the bytes between the buffer's position and limit. The buffer's position
+	// is left alone, and it may be read-only, direct, or a slice of a larger array
+	T decode(ByteBuffer data);
+}
@@ -0,0 +1,223 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Unpacks records written by RecordAggregator (or by the Kinesis Producer Library) into
+ * the user records they contain. Records that aren't aggregated are passed through.
+ * The user records share the container's data buffer, nothing is copied. Payloads
+ * compressed by PayloadCompressor, whole records or user records, are decompressed.
+ */
+public class RecordDeaggregator {
+
+	private RecordDeaggregator() {
+	}
+
+	// unpack every aggregated record in the list, keeping the order of the records
+	public static List<Record> deaggregate(List<Record> records) {
+		List<Record> userRecords = new ArrayList<>(records.size());
+		for (Record record : records) {
+			deaggregate(record, userRecords);
+		}
+		return userRecords;
+	}
+
+	// add the user records contained in this record to the list
+	public static void deaggregate(Record record, List<Record> userRecords) {
+		// a record compressed as a whole may turn out to be an aggregated one
+		record = decompress(record);
+		ByteBuffer data = record.getData();
+		if (!isAggregated(data)) {
+			userRecords.add(record);
+			return;
+		}
+		int start = userRecords.size();
+		try {
+			parse(record, userRecords);
+		}
+		catch (RuntimeException e) {
+			// a payload that only looks aggregated is handed through as it is
+			while (userRecords.size() > start) {
+				userRecords.remove(userRecords.size() - 1);
+			}
+			userRecords.add(record);
+			return;
+		}
+		// user records compressed one by one before they were packed
+		for (int i = start; i < userRecords.size(); i++) {
+			userRecords.set(i, decompress(userRecords.get(i)));
+		}
+	}
+
+	// the record with its payload decompressed, or the record itself if it isn't compressed or
+	// only looks like it is. A missing codec or dictionary is a setup mistake and is thrown
+	private static Record decompress(Record record) {
+		ByteBuffer data = record.getData();
+		if (!PayloadCompressor.isCompressed(data)) {
+			return record;
+		}
+		ByteBuffer original;
+		try {
+			original = PayloadCompressor.decompress(data);
+		}
+		catch (IllegalArgumentException e) {
+			return record;
+		}
+		// user records are our own, anything else is copied rather than changed under the caller
+		UserRecord decompressed = record instanceof UserRecord ? (UserRecord) record : new UserRecord(record, 0, false);
+		decompressed.setData(original);
+		return decompressed;
+	}
+
+	// checks the magic bytes and the MD5 checksum at the end of the record
+	public static boolean isAggregated(ByteBuffer data) {
+		int length = data.remaining();
+		if (length < RecordAggregator.MAGIC.length + RecordAggregator.DIGEST_LENGTH) {
+			return false;
+		}
+		int start = data.position();
+		for (int i = 0; i < RecordAggregator.MAGIC.length; i++) {
+			if (data.get(start + i) != RecordAggregator.MAGIC[i]) {
+				return false;
+			}
+		}
+		ByteBuffer message = data.duplicate();
+		message.position(start + RecordAggregator.MAGIC.length);
+		message.limit(data.limit() - RecordAggregator.DIGEST_LENGTH);
+		MessageDigest md5 = RecordAggregator.md5();
+		md5.update(message);
+		byte[] digest = md5.digest();
+		for (int i = 0; i < digest.length; i++) {
+			if (data.get(data.limit() - RecordAggregator.DIGEST_LENGTH + i) != digest[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void parse(Record container, List<Record> userRecords) {
+		ByteBuffer data = container.getData();
+		ByteBuffer in = data.duplicate();
+		in.position(data.position() + RecordAggregator.MAGIC.length);
+		in.limit(data.limit() - RecordAggregator.DIGEST_LENGTH);
+
+		List<String> partitionKeys = new ArrayList<>();
+		List<String> explicitHashKeys = new ArrayList<>();
+		// the key tables come before the records, but protobuf doesn't promise that, so the
+		// records are collected first and their keys are looked up at the end
+		List<long[]> keyIndexes = new ArrayList<>();
+		List<ByteBuffer> payloads = new ArrayList<>();
+
+		while (in.hasRemaining()) {
+			int tag = (int) readVarint(in);
+			switch (tag) {
+				case RecordAggregator.TAG_PARTITION_KEY_TABLE:
+					partitionKeys.add(readString(in));
+					break;
+				case RecordAggregator.TAG_EXPLICIT_HASH_KEY_TABLE:
+					explicitHashKeys.add(readString(in));
+					break;
+				case RecordAggregator.TAG_RECORD:
+					ByteBuffer message = readBytes(in);
+					long[] indexes = { -1, -1 };
+					ByteBuffer payload = null;
+					while (message.hasRemaining()) {
+						int field = (int) readVarint(message);
+						if (field == RecordAggregator.TAG_PARTITION_KEY_INDEX) {
+							indexes[0] = readVarint(message);
+						}
+						else if (field == RecordAggregator.TAG_EXPLICIT_HASH_KEY_INDEX) {
+							indexes[1] = readVarint(message);
+						}
+						else if (field == RecordAggregator.TAG_DATA) {
+							payload = readBytes(message);
+						}
+						else {
+							// tags and anything newer are skipped
+							skipField(message, field);
+						}
+					}
+					if (indexes[0] < 0 || payload == null) {
+						throw new IllegalArgumentException("aggregated record entry without key or data");
+					}
+					keyIndexes.add(indexes);
+					payloads.add(payload);
+					break;
+				default:
+					skipField(in, tag);
+			}
+		}
+
+		for (int i = 0; i < payloads.size(); i++) {
+			long[] indexes = keyIndexes.get(i);
+			UserRecord userRecord = new UserRecord(container, i, true);
+			userRecord.setPartitionKey(partitionKeys.get((int) indexes[0]));
+			if (indexes[1] >= 0) {
+				userRecord.setExplicitHashKey(explicitHashKeys.get((int) indexes[1]));
+			}
+			userRecord.setData(payloads.get(i));
+			userRecords.add(userRecord);
+		}
+	}
+
+	static long readVarint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	// a view of the next length-delimited field, without copying
+	private static ByteBuffer readBytes(ByteBuffer in) {
+		int length = (int) readVarint(in);
+		if (length < 0 || length > in.remaining()) {
+			throw new IllegalArgumentException("field length "+length+" runs past the end of the record");
+		}
+		ByteBuffer field = in.slice();
+		field.limit(length);
+		in.position(in.position() + length);
+		return field;
+	}
+
+	private static String readString(ByteBuffer in) {
+		return StandardCharsets.UTF_8.decode(readBytes(in)).toString();
+	}
+
+	private static void skipField(ByteBuffer in, int tag) {
+		switch (tag & 0x7) {
+			case 0:
+				readVarint(in);
+				break;
+			case 1:
+				in.position(in.position() + 8);
+				break;
+			case 2:
+				readBytes(in);
+				break;
+			case 5:
+				in.position(in.position() + 4);
+				break;
+			default:
+				throw new IllegalArgumentException("unsupported wire type in tag "+tag);
+		}
+	}
+}
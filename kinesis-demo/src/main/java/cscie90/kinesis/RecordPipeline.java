@@ -0,0 +1,195 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Describes what happens to the records read from a shard: decode, filter, map, batch,
+ * or any Flow.Processor of your own, ending in a sink. Each step returns a new pipeline
+ * and leaves this one alone. sink() turns the description into a PipelineProcessor, which
+ * builds a separate chain of stages for every shard, so records of one shard are handled
+ * in order while shards run in parallel.
+ */
+public class RecordPipeline<T> {
+
+	// makes a fresh stage for a shard, using the processor's threads and buffer size
+	interface StageFactory {
+		Flow.Processor<?, ?> create(Executor executor, int bufferCapacity);
+	}
+
+	private final List<StageFactory> stages;
+
+	private RecordPipeline(List<StageFactory> stages) {
+		this.stages = stages;
+	}
+
+	// the records as the consumer read them, aggregated records already unpacked
+	public static RecordPipeline<Record> records() {
+		return new RecordPipeline<>(Collections.emptyList());
+	}
+
+	// the records' payloads decoded with the codec
+	public static <T> RecordPipeline<T> decode(RecordCodec<T> codec) {
+		return records().map(record -> codec.decode(record.getData()));
+	}
+
+	public <R> RecordPipeline<R> map(Function<? super T, ? extends R> function) {
+		return then((executor, bufferCapacity) -> new TransformStage<T, R>(executor, bufferCapacity, function));
+	}
+
+	// only the items the predicate accepts go on
+	public RecordPipeline<T> filter(Predicate<? super T> predicate) {
+		return then((executor, bufferCapacity) -> new TransformStage<T, T>(executor, bufferCapacity,
+				item -> predicate.test(item) ? item : null));
+	}
+
+	// lists of up to size items. A partial list goes on once its first item has waited
+	// maxWaitMillis (0 waits until the list is full or the shard's pipeline is finished)
+	public RecordPipeline<List<T>> batch(int size, long maxWaitMillis) {
+		if (size < 1) {
+			throw new IllegalArgumentException("batch size must be at least 1");
+		}
+		return then((executor, bufferCapacity) -> new BatchStage<T>(executor, bufferCapacity, size, maxWaitMillis));
+	}
+
+	// a transform of your own, usually a PipelineStage. The supplier is called once per shard
+	public <R> RecordPipeline<R> via(Supplier<? extends Flow.Processor<? super T, ? extends R>> stage) {
+		return then((executor, bufferCapacity) -> stage.get());
+	}
+
+	// end the pipeline in a sink that is called with every item, one at a time per shard
+	public PipelineProcessor sink(Consumer<? super T> sink) {
+		return sink((shardId, item) -> sink.accept(item));
+	}
+
+	// same, the sink also gets the ID of the shard the item came from
+	@SuppressWarnings("unchecked")
+	public PipelineProcessor sink(BiConsumer<String, ? super T> sink) {
+		return new PipelineProcessor(this, (BiConsumer<String, Object>) sink);
+	}
+
+	private <R> RecordPipeline<R> then(StageFactory stage) {
+		List<StageFactory> next = new ArrayList<>(stages);
+		next.add(stage);
+		return new RecordPipeline<>(next);
+	}
+
+	// a new chain of stages subscribed to the shard's source, in order, the last one is the
+	// one to subscribe the sink to
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	List<Flow.Processor<?, ?>> assemble(Flow.Publisher<?> source, Executor executor, int bufferCapacity) {
+		List<Flow.Processor<?, ?>> chain = new ArrayList<>(stages.size());
+		Flow.Publisher publisher = source;
+		for (StageFactory factory : stages) {
+			Flow.Processor stage = factory.create(executor, bufferCapacity);
+			publisher.subscribe(stage);
+			publisher = stage;
+			chain.add(stage);
+		}
+		return chain;
+	}
+
+	// map and filter: a null result is dropped
+	private static class TransformStage<T, R> extends PipelineStage<T, R> {
+		private final Function<? super T, ? extends R> function;
+
+		TransformStage(Executor executor, int bufferCapacity, Function<? super T, ? extends R> function) {
+			super(executor, bufferCapacity);
+			this.function = function;
+		}
+
+		@Override
+		protected void process(T item) {
+			R result = function.apply(item);
+			if (result != null) {
+				submit(result);
+			}
+		}
+	}
+
+	private static class BatchStage<T> extends PipelineStage<T, List<T>> {
+		private final int size;
+		private final long maxWaitMillis;
+		private final Executor timer;
+
+		// guarded by this, the timer and the upstream deliver on different threads
+		private List<T> batch = new ArrayList<>();
+		// the latest barrier that arrived while the batch held items, it goes on after them
+		private Barrier heldBarrier;
+		// bumped whenever a batch goes on, so a timer for an earlier batch does nothing
+		private long generation = 0;
+
+		BatchStage(Executor executor, int bufferCapacity, int size, long maxWaitMillis) {
+			super(executor, bufferCapacity);
+			this.size = size;
+			this.maxWaitMillis = maxWaitMillis;
+			this.timer = CompletableFuture.delayedExecutor(maxWaitMillis, TimeUnit.MILLISECONDS, executor);
+		}
+
+		@Override
+		protected synchronized void process(T item) {
+			batch.add(item);
+			if (batch.size() >= size) {
+				emit();
+			}
+			else if (batch.size() == 1 && maxWaitMillis > 0) {
+				long started = generation;
+				timer.execute(() -> expired(started));
+			}
+		}
+
+		private synchronized void expired(long started) {
+			if (started == generation && !batch.isEmpty() && !isClosed()) {
+				emit();
+			}
+		}
+
+		@Override
+		protected synchronized void finish() {
+			if (!batch.isEmpty()) {
+				emit();
+			}
+		}
+
+		@Override
+		protected synchronized void barrier(Barrier barrier) {
+			if (batch.isEmpty()) {
+				forward(barrier);
+			}
+			else {
+				heldBarrier = barrier;
+			}
+		}
+
+		private void emit() {
+			List<T> full = batch;
+			batch = new ArrayList<>();
+			generation++;
+			submit(full);
+			if (heldBarrier != null) {
+				forward(heldBarrier);
+				heldBarrier = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Receives the records a KinesisConsumer reads from a shard. Each shard has its own worker
+ * thread, so calls for one shard arrive in order and never overlap, while different shards
+ * call in concurrently.
+ */
+public interface RecordProcessor {
+
+	// called with each non-empty batch as it arrives. Aggregated records have already been
+	// unpacked. millisBehindLatest says how far this shard's reader is behind the tip of the stream
+	void processRecords(String shardId, List<Record> records, long millisBehindLatest);
+
+	// called once a shard has been read to the end, before that is checkpointed and its
+	// children are started. Processors that work in the background finish the shard here
+	default void shardEnded(String shardId) {
+	}
+
+	// false for processors that are still working on the records after processRecords returns.
+	// A consumer checkpointing each batch as it is handed over would mark those records done
+	// before they are, so it refuses to start with auto checkpointing and such a processor
+	default boolean completesOnReturn() {
+		return true;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Writes replayed payloads to a file, each behind its 4 byte length, so the file reads back
+ * with LengthPrefixedCodec.
+ */
+public class ReplayFileSink implements ReplaySink, Closeable {
+
+	private final DataOutputStream out;
+	private long records = 0;
+
+	// creates the file, or empties it if it exists
+	public ReplayFileSink(Path file) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+	}
+
+	@Override
+	public void replayed(String shardId, Record record) throws IOException {
+		ByteBuffer data = record.getData().duplicate();
+		out.writeInt(data.remaining());
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+		else {
+			byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			out.write(bytes);
+		}
+		records++;
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.io.IOException;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Receives the records of a TimeRangeReplay, merged across shards in order of their
+ * approximate arrival time.
+ */
+public interface ReplaySink {
+
+	// called once per record on the thread that called replay(). Records of the same shard
+	// arrive in sequence order; records with the same arrival time in order of their shard ID
+	void replayed(String shardId, Record record) throws IOException;
+}
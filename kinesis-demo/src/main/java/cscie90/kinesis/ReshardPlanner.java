@@ -0,0 +1,362 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Watches how much the producer writes to each shard, and to each slice of a shard's hash
+ * key range, and proposes reshards from it: a hot shard is split at the hash key that
+ * divides its observed traffic in half (not at the middle of its range, which does
+ * nothing for skewed keys), and two adjacent cold shards are merged. Plans are rate
+ * limited so a burst of traffic can't set off a storm of reshards.
+ */
+public class ReshardPlanner {
+
+	// write capacity of one shard
+	public static final long SHARD_RECORDS_PER_SECOND = 1000;
+	public static final long SHARD_BYTES_PER_SECOND = 1024 * 1024;
+
+	// slices per shard used to find the traffic median
+	private static final int BUCKETS = 64;
+	// record counters count in these units, so a user record can count for its share of the
+	// aggregated Kinesis record it was packed in
+	private static final long RECORD_UNITS = 1000;
+
+	private final String myStreamName;
+
+	// planning settings - see the setters below
+	private volatile double hotThreshold = 0.8;
+	private volatile double coldThreshold = 0.25;
+	private volatile long windowMillis = 60 * 1000;
+	private volatile long minReshardIntervalMillis = 5 * 60 * 1000;
+	private volatile int maxActionsPerPlan = 2;
+
+	// load of every open shard, by shard ID
+	private final Map<String, ShardLoad> loads = new ConcurrentHashMap<>();
+	private long lastReshardMillis = 0;
+
+	public ReshardPlanner(String myStreamName) {
+		this.myStreamName = myStreamName;
+	}
+
+	// a shard using more than this fraction of its write capacity is split
+	public void setHotThreshold(double hotThreshold) {
+		this.hotThreshold = hotThreshold;
+	}
+
+	// two adjacent shards using less than this fraction of one shard's capacity together are merged
+	public void setColdThreshold(double coldThreshold) {
+		this.coldThreshold = coldThreshold;
+	}
+
+	// rates are measured over the last one to two windows, and a shard is only judged once
+	// it has been observed for a full window
+	public void setWindowMillis(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	// no new plan is made until this long after the last executed one
+	public void setMinReshardIntervalMillis(long minReshardIntervalMillis) {
+		this.minReshardIntervalMillis = minReshardIntervalMillis;
+	}
+
+	public void setMaxActionsPerPlan(int maxActionsPerPlan) {
+		this.maxActionsPerPlan = maxActionsPerPlan;
+	}
+
+	public String getStreamName() {
+		return myStreamName;
+	}
+
+	// start tracking the open shards in the list and stop tracking the ones that are gone
+	public synchronized void updateShards(List<Shard> shards) {
+		Set<String> open = new HashSet<>();
+		for (Shard shard : shards) {
+			if (ShardGraph.isClosed(shard)) {
+				continue;
+			}
+			open.add(shard.getShardId());
+			loads.computeIfAbsent(shard.getShardId(), id -> new ShardLoad(shard));
+		}
+		loads.keySet().retainAll(open);
+	}
+
+	// count a record the producer has written. The shard ID comes from the put result; the hash
+	// key is the explicit one if the record had one, otherwise the MD5 of its partition key
+	public void recordIngest(String shardId, String partitionKey, String explicitHashKey, int bytes) {
+		recordIngest(shardId, partitionKey, explicitHashKey, bytes, 1);
+	}
+
+	// count part of a Kinesis record: one of the user records of an aggregated record, with its
+	// share of the container's bytes and of the one record it counts for against the record limit.
+	// Reporting the user records at their own hash keys keeps the split point where the traffic is
+	public void recordIngest(String shardId, String partitionKey, String explicitHashKey, int bytes,
+			double records) {
+		ShardLoad load = loads.get(shardId);
+		if (load == null) {
+			// a shard we don't know yet, picked up with the next updateShards
+			return;
+		}
+		BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey) : ShardMap.hashKey(partitionKey);
+		load.add(hashKey, Math.round(records * RECORD_UNITS), bytes);
+	}
+
+	// the splits and merges the observed load calls for, empty while the last reshard is too recent
+	public synchronized List<Action> plan() {
+		List<Action> actions = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		if (now - lastReshardMillis < minReshardIntervalMillis) {
+			return actions;
+		}
+
+		List<ShardLoad> measured = new ArrayList<>();
+		for (ShardLoad load : loads.values()) {
+			if (now - load.trackedSince >= windowMillis) {
+				measured.add(load);
+			}
+		}
+		measured.sort(Comparator.comparing(load -> load.start));
+
+		// hottest shards first
+		List<ShardLoad> byLoad = new ArrayList<>(measured);
+		byLoad.sort(Comparator.comparingDouble((ShardLoad load) -> load.utilization(now)).reversed());
+		Set<String> planned = new HashSet<>();
+		for (ShardLoad load : byLoad) {
+			if (actions.size() >= maxActionsPerPlan || load.utilization(now) < hotThreshold) {
+				break;
+			}
+			BigInteger splitKey = load.medianHashKey(now);
+			if (splitKey != null) {
+				actions.add(Action.split(load.shard, splitKey, load.utilization(now)));
+				planned.add(load.shard.getShardId());
+			}
+		}
+
+		// then neighbours that would still be cold as one shard
+		for (int i = 0; i + 1 < measured.size() && actions.size() < maxActionsPerPlan; i++) {
+			ShardLoad left = measured.get(i);
+			ShardLoad right = measured.get(i + 1);
+			if (planned.contains(left.shard.getShardId()) || planned.contains(right.shard.getShardId())
+					|| !left.end.add(BigInteger.ONE).equals(right.start)) {
+				continue;
+			}
+			// the limits apply to the merged shard's totals, not to each half's busier limit
+			double combined = utilization(left.recordsPerSecond(now) + right.recordsPerSecond(now),
+					left.bytesPerSecond(now) + right.bytesPerSecond(now));
+			if (combined < coldThreshold) {
+				actions.add(Action.merge(left.shard, right.shard, combined));
+				planned.add(left.shard.getShardId());
+				planned.add(right.shard.getShardId());
+				i++;
+			}
+		}
+		return actions;
+	}
+
+	// make a plan and carry it out, then start tracking the new shards. Returns what was done.
+	// Blocks until the reshards have finished
+	public synchronized List<Action> execute(AmazonKinesis kinesis, KinesisUtils kus) {
+		List<Action> actions = plan();
+		if (actions.isEmpty()) {
+			return actions;
+		}
+		for (Action action : actions) {
+			if (action.type == Action.Type.SPLIT) {
+				kus.splitMyShard(kinesis, action.shard, myStreamName, action.newStartingHashKey.toString());
+			}
+			else {
+				kus.mergeMyShards(kinesis, myStreamName, action.shard, action.adjacentShard);
+			}
+		}
+		lastReshardMillis = System.currentTimeMillis();
+		updateShards(kus.getMyShards(kinesis, myStreamName));
+		return actions;
+	}
+
+	// the fraction of one shard's capacity these rates use, by whichever limit is closer
+	private static double utilization(double recordsPerSecond, double bytesPerSecond) {
+		return Math.max(recordsPerSecond / SHARD_RECORDS_PER_SECOND, bytesPerSecond / SHARD_BYTES_PER_SECOND);
+	}
+
+	// one proposed reshard
+	public static class Action {
+		public enum Type { SPLIT, MERGE }
+
+		public final Type type;
+		public final Shard shard;
+		// only for merges
+		public final Shard adjacentShard;
+		// only for splits
+		public final BigInteger newStartingHashKey;
+		// the fraction of one shard's capacity the shard(s) used
+		public final double utilization;
+
+		private Action(Type type, Shard shard, Shard adjacentShard, BigInteger newStartingHashKey, double utilization) {
+			this.type = type;
+			this.shard = shard;
+			this.adjacentShard = adjacentShard;
+			this.newStartingHashKey = newStartingHashKey;
+			this.utilization = utilization;
+		}
+
+		static Action split(Shard shard, BigInteger newStartingHashKey, double utilization) {
+			return new Action(Type.SPLIT, shard, null, newStartingHashKey, utilization);
+		}
+
+		static Action merge(Shard shard, Shard adjacentShard, double utilization) {
+			return new Action(Type.MERGE, shard, adjacentShard, null, utilization);
+		}
+
+		@Override
+		public String toString() {
+			String target = type == Type.SPLIT ? shard.getShardId()+" at "+newStartingHashKey
+					: shard.getShardId()+" + "+adjacentShard.getShardId();
+			return type+" "+target+String.format(" (%.0f%% of a shard)", utilization * 100);
+		}
+	}
+
+	// traffic counters of one shard, for the current and the previous window
+	private class ShardLoad {
+		final Shard shard;
+		final BigInteger start;
+		final BigInteger end;
+		final BigDecimal bucketWidth;
+		final long trackedSince = System.currentTimeMillis();
+
+		long windowStart = trackedSince;
+		// swapped by rotate() while producer threads keep adding
+		volatile AtomicLongArray records = new AtomicLongArray(BUCKETS);
+		volatile AtomicLongArray bytes = new AtomicLongArray(BUCKETS);
+		long previousWindowStart = trackedSince;
+		long[] previousRecords = new long[BUCKETS];
+		long[] previousBytes = new long[BUCKETS];
+
+		ShardLoad(Shard shard) {
+			this.shard = shard;
+			this.start = ShardGraph.startingHashKey(shard);
+			this.end = ShardGraph.endingHashKey(shard);
+			this.bucketWidth = new BigDecimal(end.subtract(start).add(BigInteger.ONE))
+					.divide(BigDecimal.valueOf(BUCKETS), 10, RoundingMode.HALF_UP);
+		}
+
+		void add(BigInteger hashKey, long recordUnits, int size) {
+			int bucket = new BigDecimal(hashKey.subtract(start)).divide(bucketWidth, 0, RoundingMode.FLOOR).intValue();
+			bucket = Math.max(0, Math.min(BUCKETS - 1, bucket));
+			AtomicLongArray r = records;
+			AtomicLongArray b = bytes;
+			r.addAndGet(bucket, recordUnits);
+			b.addAndGet(bucket, size);
+		}
+
+		// move on to a new window once the current one is full (caller holds the planner lock)
+		void rotate(long now) {
+			if (now - windowStart < windowMillis) {
+				return;
+			}
+			AtomicLongArray r = records;
+			AtomicLongArray b = bytes;
+			records = new AtomicLongArray(BUCKETS);
+			bytes = new AtomicLongArray(BUCKETS);
+			for (int i = 0; i < BUCKETS; i++) {
+				previousRecords[i] = r.get(i);
+				previousBytes[i] = b.get(i);
+			}
+			previousWindowStart = windowStart;
+			windowStart = now;
+		}
+
+		// each bucket's share of the shard's capacity, averaged over both windows. Only good for
+		// weighing the buckets against each other, see utilization() for the shard as a whole
+		double[] bucketUtilization(long now) {
+			rotate(now);
+			double seconds = seconds(now);
+			double[] utilization = new double[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				double recordRate = (previousRecords[i] + records.get(i)) / (double) RECORD_UNITS / seconds;
+				double byteRate = (previousBytes[i] + bytes.get(i)) / seconds;
+				utilization[i] = ReshardPlanner.utilization(recordRate, byteRate);
+			}
+			return utilization;
+		}
+
+		// records per second over both windows
+		double recordsPerSecond(long now) {
+			rotate(now);
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += previousRecords[i] + records.get(i);
+			}
+			return total / (double) RECORD_UNITS / seconds(now);
+		}
+
+		// bytes per second over both windows
+		double bytesPerSecond(long now) {
+			rotate(now);
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += previousBytes[i] + bytes.get(i);
+			}
+			return total / seconds(now);
+		}
+
+		// the shard's limits apply to its totals. Adding up the buckets' busier limits would
+		// overstate the load whenever some buckets are record bound and others byte bound
+		double utilization(long now) {
+			return ReshardPlanner.utilization(recordsPerSecond(now), bytesPerSecond(now));
+		}
+
+		private double seconds(long now) {
+			return Math.max(1, now - previousWindowStart) / 1000.0;
+		}
+
+		// the hash key with half of the observed traffic below it, interpolated inside its bucket.
+		// Null if the shard can't be split (a single hash key) or saw no traffic
+		BigInteger medianHashKey(long now) {
+			double[] utilization = bucketUtilization(now);
+			double total = 0;
+			for (double u : utilization) {
+				total += u;
+			}
+			if (total == 0 || end.subtract(start).compareTo(BigInteger.ONE) < 0) {
+				return null;
+			}
+			double half = total / 2;
+			double cumulative = 0;
+			int bucket = 0;
+			while (bucket < BUCKETS - 1 && cumulative + utilization[bucket] < half) {
+				cumulative += utilization[bucket];
+				bucket++;
+			}
+			double fraction = utilization[bucket] == 0 ? 0.5 : (half - cumulative) / utilization[bucket];
+			BigInteger key = start.add(bucketWidth.multiply(BigDecimal.valueOf(bucket + fraction)).toBigInteger());
+			// the new shard has to start above the old start and no later than the old end
+			if (key.compareTo(start) <= 0) {
+				key = start.add(BigInteger.ONE);
+			}
+			if (key.compareTo(end) > 0) {
+				key = end;
+			}
+			return key;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Tracks the parent/child lineage of a stream's shards across splits and merges. After a
+ * reshard, describeStream lists the closed parents next to their open children; records
+ * for a partition key are in the parent until the reshard and in a child after it, so
+ * to keep per-key order a child may only be read once its parents have been read to
+ * SHARD_END. This class works out which shards are ready to be read.
+ */
+public class ShardGraph {
+
+	// every shard we know about and haven't finished yet, in the order describeStream lists them
+	private final Map<String, Shard> shards = new LinkedHashMap<>();
+	// shards read to SHARD_END - kept by ID only, so a listing that still shows them doesn't bring them back
+	private final Set<String> completed = new HashSet<>();
+
+	public ShardGraph() {
+	}
+
+	public ShardGraph(List<Shard> shardList) {
+		update(shardList);
+	}
+
+	// add shards that are new since the last update (children created by a split or merge)
+	// and refresh the ones we already know, e.g. a parent that has closed since
+	public synchronized void update(List<Shard> shardList) {
+		for (Shard shard : shardList) {
+			if (!completed.contains(shard.getShardId())) {
+				shards.put(shard.getShardId(), shard);
+			}
+		}
+	}
+
+	// the shard has been read up to SHARD_END, its children can be started
+	public synchronized void markComplete(String shardId) {
+		shards.remove(shardId);
+		completed.add(shardId);
+	}
+
+	public synchronized boolean isComplete(String shardId) {
+		return completed.contains(shardId);
+	}
+
+	// forget completed shards that are no longer in the stream's shard list (they have aged
+	// out of the retention period), returns their IDs
+	public synchronized List<String> pruneCompleted(List<Shard> shardList) {
+		Set<String> listed = new HashSet<>();
+		for (Shard shard : shardList) {
+			listed.add(shard.getShardId());
+		}
+		List<String> pruned = new ArrayList<>();
+		for (String shardId : completed) {
+			if (!listed.contains(shardId)) {
+				pruned.add(shardId);
+			}
+		}
+		completed.removeAll(pruned);
+		return pruned;
+	}
+
+	// unfinished shards whose parents have all been read to the end. A parent that is not in
+	// the graph at all has expired, so there is nothing left to wait for
+	public synchronized List<Shard> getReadyShards() {
+		List<Shard> ready = new ArrayList<>();
+		for (Shard shard : shards.values()) {
+			if (parentDone(shard.getParentShardId()) && parentDone(shard.getAdjacentParentShardId())) {
+				ready.add(shard);
+			}
+		}
+		return ready;
+	}
+
+	// shards that are still being written to, ordered by hash key range
+	public synchronized List<Shard> getOpenShards() {
+		List<Shard> open = new ArrayList<>();
+		for (Shard shard : shards.values()) {
+			if (!isClosed(shard)) {
+				open.add(shard);
+			}
+		}
+		open.sort(Comparator.comparing(ShardGraph::startingHashKey));
+		return open;
+	}
+
+	// the open shard whose hash key range contains the given hash key, or null
+	public synchronized Shard findOpenShard(BigInteger hashKey) {
+		for (Shard shard : getOpenShards()) {
+			if (startingHashKey(shard).compareTo(hashKey) <= 0 && endingHashKey(shard).compareTo(hashKey) >= 0) {
+				return shard;
+			}
+		}
+		return null;
+	}
+
+	// the known shards that were created from this one by a split or merge
+	public synchronized List<Shard> getChildren(String shardId) {
+		List<Shard> children = new ArrayList<>();
+		for (Shard shard : shards.values()) {
+			if (shardId.equals(shard.getParentShardId()) || shardId.equals(shard.getAdjacentParentShardId())) {
+				children.add(shard);
+			}
+		}
+		return children;
+	}
+
+	public synchronized Shard getShard(String shardId) {
+		return shards.get(shardId);
+	}
+
+	// a closed shard has an ending sequence number and takes no more writes
+	public static boolean isClosed(Shard shard) {
+		return shard.getSequenceNumberRange() != null
+				&& shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+	}
+
+	public static BigInteger startingHashKey(Shard shard) {
+		return new BigInteger(shard.getHashKeyRange().getStartingHashKey());
+	}
+
+	public static BigInteger endingHashKey(Shard shard) {
+		return new BigInteger(shard.getHashKeyRange().getEndingHashKey());
+	}
+
+	private boolean parentDone(String parentShardId) {
+		return parentShardId == null || completed.contains(parentShardId) || !shards.containsKey(parentShardId);
+	}
+}
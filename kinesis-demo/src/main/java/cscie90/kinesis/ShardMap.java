@@ -0,0 +1,199 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * A client-side copy of which open shard owns which part of the hash key space. With it
+ * the producer can work out locally where a partition key will land (Kinesis uses the MD5
+ * of the key), group records by destination shard, or pick explicit hash keys that spread
+ * records evenly over all open shards no matter how few partition keys there are.
+ */
+public class ShardMap {
+
+	// MessageDigest isn't thread safe and is costly to look up, so each thread keeps one
+	private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(RecordAggregator::md5);
+
+	// a stale map is refreshed at most this often
+	private static final long MIN_REFRESH_INTERVAL_MILLIS = 5000;
+
+	private final AmazonKinesis kinesis;
+	private final String myStreamName;
+	private final KinesisUtils kus = new KinesisUtils();
+
+	private volatile Ranges ranges = new Ranges(Collections.emptyList());
+	private final AtomicInteger nextShard = new AtomicInteger();
+	private final List<Consumer<List<Shard>>> listeners = new CopyOnWriteArrayList<>();
+	private CompletableFuture<Void> refreshing;
+	private long lastRefreshMillis = 0;
+
+	// builds the map from the stream's current shards
+	public ShardMap(AmazonKinesis kinesis, String myStreamName) {
+		this.kinesis = kinesis;
+		this.myStreamName = myStreamName;
+		refresh();
+	}
+
+	public String getStreamName() {
+		return myStreamName;
+	}
+
+	// fetch the shard list again, e.g. after a split or merge
+	public void refresh() {
+		update(kus.getMyShards(kinesis, myStreamName));
+	}
+
+	// replace the map with the open shards of this list
+	public void update(List<Shard> shards) {
+		List<Shard> open = new ArrayList<>();
+		for (Shard shard : shards) {
+			if (!ShardGraph.isClosed(shard)) {
+				open.add(shard);
+			}
+		}
+		ranges = new Ranges(open);
+		synchronized (this) {
+			lastRefreshMillis = System.currentTimeMillis();
+		}
+		for (Consumer<List<Shard>> listener : listeners) {
+			listener.accept(ranges.shards);
+		}
+	}
+
+	// called with the open shards every time the map is updated, e.g. to follow a reshard
+	public void addListener(Consumer<List<Shard>> listener) {
+		listeners.add(listener);
+	}
+
+	// refresh in the background, because a put landed somewhere other than predicted. Calls
+	// while a refresh is running, or shortly after one, are ignored
+	public synchronized void refreshAsync() {
+		if ((refreshing != null && !refreshing.isDone())
+				|| System.currentTimeMillis() - lastRefreshMillis < MIN_REFRESH_INTERVAL_MILLIS) {
+			return;
+		}
+		refreshing = CompletableFuture.runAsync(() -> {
+			// the cached shard list is what produced the wrong prediction
+			kus.getMetadataCache().invalidate(kinesis, myStreamName);
+			refresh();
+		});
+	}
+
+	// the open shards, ordered by hash key range
+	public List<Shard> getShards() {
+		return ranges.shards;
+	}
+
+	public int getShardCount() {
+		return ranges.shards.size();
+	}
+
+	// the shard a record with this partition key goes to
+	public String shardIdForPartitionKey(String partitionKey) {
+		return shardIdForHashKey(hashKey(partitionKey));
+	}
+
+	// the shard a record with this explicit hash key (or, if that is null, partition key) goes to
+	public String shardIdFor(String partitionKey, String explicitHashKey) {
+		return explicitHashKey != null ? shardIdForHashKey(new BigInteger(explicitHashKey))
+				: shardIdForPartitionKey(partitionKey);
+	}
+
+	// the open shard whose range contains the hash key, null if the map is empty
+	public String shardIdForHashKey(BigInteger hashKey) {
+		Ranges r = ranges;
+		int i = r.indexOf(hashKey);
+		return i < 0 ? null : r.shards.get(i).getShardId();
+	}
+
+	// an explicit hash key for the next record, taking the open shards in turn so every shard
+	// gets the same share. The key is random within the shard's range
+	public String nextExplicitHashKey() {
+		Ranges r = ranges;
+		if (r.shards.isEmpty()) {
+			return null;
+		}
+		int i = Math.floorMod(nextShard.getAndIncrement(), r.shards.size());
+		return randomHashKey(r.starts[i], r.widths[i]).toString();
+	}
+
+	// sort items into per-shard lists, keeping their order within each shard
+	public <T> Map<String, List<T>> groupByShard(List<T> items, Function<T, String> partitionKey,
+			Function<T, String> explicitHashKey) {
+		Map<String, List<T>> byShard = new LinkedHashMap<>();
+		for (T item : items) {
+			String shardId = shardIdFor(partitionKey.apply(item), explicitHashKey.apply(item));
+			byShard.computeIfAbsent(shardId, id -> new ArrayList<>()).add(item);
+		}
+		return byShard;
+	}
+
+	// the hash key Kinesis derives from a partition key: the MD5 of its UTF-8 bytes as an unsigned number
+	public static BigInteger hashKey(String partitionKey) {
+		MessageDigest md5 = MD5.get();
+		return new BigInteger(1, md5.digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static BigInteger randomHashKey(BigInteger start, BigInteger width) {
+		BigInteger offset = new BigInteger(width.bitLength() + 8, ThreadLocalRandom.current()).mod(width);
+		return start.add(offset);
+	}
+
+	// an immutable snapshot of the open shards, searched by starting hash key
+	private static class Ranges {
+		final List<Shard> shards;
+		final BigInteger[] starts;
+		final BigInteger[] ends;
+		final BigInteger[] widths;
+
+		Ranges(List<Shard> open) {
+			List<Shard> sorted = new ArrayList<>(open);
+			sorted.sort((a, b) -> ShardGraph.startingHashKey(a).compareTo(ShardGraph.startingHashKey(b)));
+			this.shards = Collections.unmodifiableList(sorted);
+			this.starts = new BigInteger[sorted.size()];
+			this.ends = new BigInteger[sorted.size()];
+			this.widths = new BigInteger[sorted.size()];
+			for (int i = 0; i < sorted.size(); i++) {
+				starts[i] = ShardGraph.startingHashKey(sorted.get(i));
+				ends[i] = ShardGraph.endingHashKey(sorted.get(i));
+				widths[i] = ends[i].subtract(starts[i]).add(BigInteger.ONE);
+			}
+		}
+
+		int indexOf(BigInteger hashKey) {
+			int i = Arrays.binarySearch(starts, hashKey);
+			if (i < 0) {
+				// the shard starting just below the key
+				i = -i - 2;
+			}
+			if (i < 0 || hashKey.compareTo(ends[i]) > 0) {
+				return -1;
+			}
+			return i;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Put and get counters and latencies of one shard. The record methods are called on the
+ * producer and consumer threads and only add to striped counters; rates and percentiles
+ * are worked out once per interval by tick().
+ */
+public class ShardMetrics implements ShardMetricsMBean {
+
+	private final String myStreamName;
+	private final String shardId;
+
+	private final LatencyHistogram putLatency = new LatencyHistogram();
+	private final LatencyHistogram getLatency = new LatencyHistogram();
+	private final LongAdder putRecords = new LongAdder();
+	private final LongAdder putBytes = new LongAdder();
+	private final LongAdder getRecords = new LongAdder();
+	private final LongAdder getBytes = new LongAdder();
+	private final LongAdder putThrottles = new LongAdder();
+	private final LongAdder getThrottles = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private volatile long millisBehindLatest = -1;
+
+	// the totals at the start of the current interval, and what the last interval measured
+	private long intervalStartMillis = System.currentTimeMillis();
+	private Totals intervalStart = new Totals();
+	private volatile Interval last = new Interval(new Totals(), new Totals(), 1);
+
+	ShardMetrics(String myStreamName, String shardId) {
+		this.myStreamName = myStreamName;
+		this.shardId = shardId;
+	}
+
+	// records written to the shard by one call that took latencyNanos. The call counts once in
+	// the latency histogram however many of its records went to this shard
+	public void recordPut(long latencyNanos, int records, long bytes) {
+		putLatency.recordNanos(latencyNanos);
+		putRecords.add(records);
+		putBytes.add(bytes);
+	}
+
+	public void recordPutThrottled() {
+		putThrottles.increment();
+	}
+
+	// a put sent again after a failure
+	public void recordRetry() {
+		retries.increment();
+	}
+
+	// a payload written through a PayloadCompressor, before and after. Payloads it left alone
+	// count with the same size on both sides
+	public void recordCompression(long uncompressedBytes, long compressedBytes) {
+		this.uncompressedBytes.add(uncompressedBytes);
+		this.compressedBytes.add(compressedBytes);
+	}
+
+	public void recordGet(long latencyNanos, int records, long bytes, long millisBehindLatest) {
+		getLatency.recordNanos(latencyNanos);
+		getRecords.add(records);
+		getBytes.add(bytes);
+		this.millisBehindLatest = millisBehindLatest;
+	}
+
+	public void recordGetThrottled() {
+		getThrottles.increment();
+	}
+
+	// close the current interval and start the next
+	synchronized void tick(long now) {
+		Totals end = new Totals();
+		last = new Interval(intervalStart, end, Math.max(1, now - intervalStartMillis));
+		intervalStart = end;
+		intervalStartMillis = now;
+	}
+
+	@Override
+	public String getStreamName() {
+		return myStreamName;
+	}
+
+	@Override
+	public String getShardId() {
+		return shardId;
+	}
+
+	@Override
+	public double getPutRecordsPerSecond() {
+		return last.perSecond(last.end.putRecords - last.start.putRecords);
+	}
+
+	@Override
+	public double getPutBytesPerSecond() {
+		return last.perSecond(last.end.putBytes - last.start.putBytes);
+	}
+
+	@Override
+	public double getGetRecordsPerSecond() {
+		return last.perSecond(last.end.getRecords - last.start.getRecords);
+	}
+
+	@Override
+	public double getGetBytesPerSecond() {
+		return last.perSecond(last.end.getBytes - last.start.getBytes);
+	}
+
+	@Override
+	public double getPutLatencyP50Millis() {
+		return last.putLatency.getPercentileMillis(0.5);
+	}
+
+	@Override
+	public double getPutLatencyP99Millis() {
+		return last.putLatency.getPercentileMillis(0.99);
+	}
+
+	@Override
+	public double getPutLatencyMaxMillis() {
+		return last.putLatency.getMaxMillis();
+	}
+
+	@Override
+	public double getGetLatencyP50Millis() {
+		return last.getLatency.getPercentileMillis(0.5);
+	}
+
+	@Override
+	public double getGetLatencyP99Millis() {
+		return last.getLatency.getPercentileMillis(0.99);
+	}
+
+	@Override
+	public double getGetLatencyMaxMillis() {
+		return last.getLatency.getMaxMillis();
+	}
+
+	@Override
+	public long getPutRecords() {
+		return putRecords.sum();
+	}
+
+	@Override
+	public long getPutBytes() {
+		return putBytes.sum();
+	}
+
+	@Override
+	public long getGetRecords() {
+		return getRecords.sum();
+	}
+
+	@Override
+	public long getGetBytes() {
+		return getBytes.sum();
+	}
+
+	@Override
+	public long getPutThrottles() {
+		return putThrottles.sum();
+	}
+
+	@Override
+	public long getGetThrottles() {
+		return getThrottles.sum();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	@Override
+	public long getMillisBehindLatest() {
+		return millisBehindLatest;
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		long compressed = compressedBytes.sum();
+		return compressed == 0 ? 1.0 : (double) uncompressedBytes.sum() / compressed;
+	}
+
+	// one line for the snapshot log, covering the last interval
+	@Override
+	public String toString() {
+		Interval i = last;
+		return String.format("%s/%s put %.0f rec/s %.0f B/s p50 %.1f ms p99 %.1f ms, get %.0f rec/s %.0f B/s"
+				+ " p50 %.1f ms p99 %.1f ms, behind %d ms, throttled %d put %d get, retries %d, compression %.2fx",
+				myStreamName, shardId,
+				getPutRecordsPerSecond(), getPutBytesPerSecond(),
+				i.putLatency.getPercentileMillis(0.5), i.putLatency.getPercentileMillis(0.99),
+				getGetRecordsPerSecond(), getGetBytesPerSecond(),
+				i.getLatency.getPercentileMillis(0.5), i.getLatency.getPercentileMillis(0.99),
+				millisBehindLatest, i.end.putThrottles - i.start.putThrottles,
+				i.end.getThrottles - i.start.getThrottles, i.end.retries - i.start.retries, i.compressionRatio());
+	}
+
+	// the counters at one moment
+	private class Totals {
+		final long putRecords = ShardMetrics.this.putRecords.sum();
+		final long putBytes = ShardMetrics.this.putBytes.sum();
+		final long getRecords = ShardMetrics.this.getRecords.sum();
+		final long getBytes = ShardMetrics.this.getBytes.sum();
+		final long putThrottles = ShardMetrics.this.putThrottles.sum();
+		final long getThrottles = ShardMetrics.this.getThrottles.sum();
+		final long retries = ShardMetrics.this.retries.sum();
+		final long uncompressedBytes = ShardMetrics.this.uncompressedBytes.sum();
+		final long compressedBytes = ShardMetrics.this.compressedBytes.sum();
+		final LatencyHistogram.Snapshot putLatency = ShardMetrics.this.putLatency.snapshot();
+		final LatencyHistogram.Snapshot getLatency = ShardMetrics.this.getLatency.snapshot();
+	}
+
+	// what happened between two totals
+	private static class Interval {
+		final Totals start;
+		final Totals end;
+		final long millis;
+		final LatencyHistogram.Snapshot putLatency;
+		final LatencyHistogram.Snapshot getLatency;
+
+		Interval(Totals start, Totals end, long millis) {
+			this.start = start;
+			this.end = end;
+			this.millis = millis;
+			this.putLatency = end.putLatency.minus(start.putLatency);
+			this.getLatency = end.getLatency.minus(start.getLatency);
+		}
+
+		double perSecond(long delta) {
+			return delta * 1000.0 / millis;
+		}
+
+		double compressionRatio() {
+			long compressed = end.compressedBytes - start.compressedBytes;
+			return compressed == 0 ? 1.0 : (double) (end.uncompressedBytes - start.uncompressedBytes) / compressed;
+		}
+	}
+}
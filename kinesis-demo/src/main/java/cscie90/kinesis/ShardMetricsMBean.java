@@ -0,0 +1,61 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+/**
+ * The JMX view of one shard's metrics. Rates and latencies cover the last completed
+ * interval of the KinesisMetrics registry, the totals count since the shard was first seen.
+ */
+public interface ShardMetricsMBean {
+
+	String getStreamName();
+
+	String getShardId();
+
+	double getPutRecordsPerSecond();
+
+	double getPutBytesPerSecond();
+
+	double getGetRecordsPerSecond();
+
+	double getGetBytesPerSecond();
+
+	double getPutLatencyP50Millis();
+
+	double getPutLatencyP99Millis();
+
+	double getPutLatencyMaxMillis();
+
+	double getGetLatencyP50Millis();
+
+	double getGetLatencyP99Millis();
+
+	double getGetLatencyMaxMillis();
+
+	long getPutRecords();
+
+	long getPutBytes();
+
+	long getGetRecords();
+
+	long getGetBytes();
+
+	long getPutThrottles();
+
+	long getGetThrottles();
+
+	long getRetries();
+
+	// from the last GetRecords result, -1 before the shard has been read
+	long getMillisBehindLatest();
+
+	// payload bytes before compression per byte written since the shard was first seen, 1.0 when
+	// nothing went through a compressor
+	double getCompressionRatio();
+}
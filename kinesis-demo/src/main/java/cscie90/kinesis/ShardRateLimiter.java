@@ -0,0 +1,119 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Keeps this client inside each shard's limits - 1000 records/s and 1 MB/s of writes, 5
+ * calls/s and 2 MB/s of reads - with a token bucket per limit and shard. Callers reserve
+ * before they call and wait for as long as they are told, so a burst is spread out at
+ * the shard's ceiling instead of being throttled and retried. Writes are routed with a
+ * ShardMap, and the write limiters follow it through splits and merges.
+ */
+public class ShardRateLimiter {
+
+	// per-shard limits of the service
+	public static final long WRITE_RECORDS_PER_SECOND = 1000;
+	public static final long WRITE_BYTES_PER_SECOND = 1024 * 1024;
+	public static final long READ_CALLS_PER_SECOND = 5;
+	public static final long READ_BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+	private final ShardMap shardMap;
+	private final double utilization;
+
+	// write limits of the open shards, read limits of every shard being read
+	private final Map<String, WriteLimits> writeLimits = new ConcurrentHashMap<>();
+	private final Map<String, ReadLimits> readLimits = new ConcurrentHashMap<>();
+
+	public ShardRateLimiter(ShardMap shardMap) {
+		this(shardMap, 1.0);
+	}
+
+	// utilization is the fraction of each limit to use, e.g. 0.9 to leave room for other writers
+	public ShardRateLimiter(ShardMap shardMap, double utilization) {
+		this.shardMap = shardMap;
+		this.utilization = utilization;
+		shardMap.addListener(this::updateShards);
+		updateShards(shardMap.getShards());
+	}
+
+	public String getStreamName() {
+		return shardMap.getStreamName();
+	}
+
+	// the shard a record will be written to, null if the map doesn't know
+	public String shardIdFor(String partitionKey, String explicitHashKey) {
+		return shardMap.shardIdFor(partitionKey, explicitHashKey);
+	}
+
+	// start limiting new shards and drop the ones that have closed. Called by the shard map
+	// whenever it is refreshed
+	public void updateShards(List<Shard> openShards) {
+		Set<String> open = new HashSet<>();
+		for (Shard shard : openShards) {
+			open.add(shard.getShardId());
+			writeLimits.computeIfAbsent(shard.getShardId(), id -> new WriteLimits());
+		}
+		writeLimits.keySet().retainAll(open);
+	}
+
+	// reserve one record of this size on the shard, returns the nanoseconds to wait before
+	// sending it. Unknown shards aren't limited
+	public long reserveWrite(String shardId, long bytes) {
+		WriteLimits limits = shardId == null ? null : writeLimits.get(shardId);
+		if (limits == null) {
+			return 0;
+		}
+		return Math.max(limits.records.reserve(1), limits.bytes.reserve(bytes));
+	}
+
+	// reserve one GetRecords call on the shard, returns the nanoseconds to wait before making
+	// it. Also waits out any read bytes the last calls went over by
+	public long reserveRead(String shardId) {
+		ReadLimits limits = readLimits.computeIfAbsent(shardId, id -> new ReadLimits());
+		return Math.max(limits.calls.reserve(1), limits.bytes.nanosUntilAvailable(0));
+	}
+
+	// what a GetRecords call returned, paid for after the fact since the size isn't known before
+	public void recordRead(String shardId, long bytes) {
+		ReadLimits limits = readLimits.get(shardId);
+		if (limits != null) {
+			limits.bytes.charge(bytes);
+		}
+	}
+
+	// the shard has been read to the end
+	public void removeShard(String shardId) {
+		readLimits.remove(shardId);
+	}
+
+	// wait the nanoseconds a reserve call returned
+	public static void pause(long nanos) throws InterruptedException {
+		if (nanos > 0) {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}
+	}
+
+	private class WriteLimits {
+		final TokenBucket records = new TokenBucket(WRITE_RECORDS_PER_SECOND * utilization);
+		final TokenBucket bytes = new TokenBucket(WRITE_BYTES_PER_SECOND * utilization);
+	}
+
+	private class ReadLimits {
+		final TokenBucket calls = new TokenBucket(READ_CALLS_PER_SECOND * utilization);
+		final TokenBucket bytes = new TokenBucket(READ_BYTES_PER_SECOND * utilization);
+	}
+}
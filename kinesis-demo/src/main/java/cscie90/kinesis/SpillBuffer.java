@@ -0,0 +1,576 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Holds records that could not be put - the shard was throttling or the service could not
+ * be reached - in a log of memory-mapped segment files, and puts them again in the
+ * background once the stream accepts writes. Records are replayed in the order they were
+ * added, and a PutRecords batch never holds two records with the same partition key, so a
+ * failed record is always sent again before any later record with its key. A segment file is
+ * deleted once all of its records have been accepted.
+ *
+ * Each entry is: int body length | int CRC32 of the body | body. The body holds the stream
+ * name, partition key and explicit hash key (each a short length and UTF-8 bytes, -1 for a
+ * missing hash key) followed by the data. The position file says how far replay has got, so
+ * a restarted process picks up after the last acknowledged record.
+ */
+public class SpillBuffer implements AutoCloseable {
+
+	private static final Log LOG = LogFactory.getLog(SpillBuffer.class);
+
+	private static final int MAGIC = 0x4B53504C;
+	private static final int VERSION = 1;
+	// magic and version at the start of every segment and of the position file
+	private static final int FILE_HEADER_BYTES = 8;
+	private static final int ENTRY_HEADER_BYTES = 8;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String POSITION_FILE = "position";
+
+	public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+	private final AmazonKinesis kinesis;
+	private final Path directory;
+
+	// settings - see the setters below
+	private volatile int segmentBytes = DEFAULT_SEGMENT_BYTES;
+	private volatile long maxDiskBytes = 1024L * 1024 * 1024;
+	private volatile boolean forceOnAppend = false;
+	private volatile long retryBackoffMillis = 100;
+	private volatile long maxRetryBackoffMillis = 10000;
+	private volatile KinesisMetrics metrics = KinesisMetrics.getDefault();
+
+	// everything below the lock is guarded by it
+	private final Object lock = new Object();
+	// oldest first, the last one is written to
+	private final List<Segment> segments = new ArrayList<>();
+	private long nextSegmentId = 0;
+	private final FileChannel positionChannel;
+	private final MappedByteBuffer position;
+	// the next entry the replay thread reads
+	private Segment readSegment;
+	private int readOffset;
+	private long pendingRecords = 0;
+	private long spilledRecords = 0;
+	private long replayedRecords = 0;
+	private boolean closed = false;
+
+	private final Thread replayer;
+
+	// open the buffer in the directory, creating it if needed, and start replaying whatever a
+	// previous process left there
+	public SpillBuffer(AmazonKinesis kinesis, Path directory) throws IOException {
+		this.kinesis = kinesis;
+		this.directory = directory;
+		Files.createDirectories(directory);
+		positionChannel = FileChannel.open(directory.resolve(POSITION_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean fresh = positionChannel.size() < FILE_HEADER_BYTES + 16;
+		position = positionChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_BYTES + 16);
+		if (fresh) {
+			position.putInt(0, MAGIC);
+			position.putInt(4, VERSION);
+		}
+		else if (position.getInt(0) != MAGIC) {
+			positionChannel.close();
+			throw new IOException(directory+" holds a position file that isn't a spill buffer's");
+		}
+		recover();
+		replayer = new Thread(this::replayLoop, "kinesis-spill-replay");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	// size of new segment files, at least large enough for one full size record
+	public void setSegmentBytes(int segmentBytes) {
+		if (segmentBytes < KinesisProducer.MAX_RECORD_BYTES + 1024) {
+			throw new IllegalArgumentException("segments must hold at least one record of "+KinesisProducer.MAX_RECORD_BYTES+" bytes");
+		}
+		this.segmentBytes = segmentBytes;
+	}
+
+	// once the segment files take up this much, add() refuses further records
+	public void setMaxDiskBytes(long maxDiskBytes) {
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	// force every record to disk before add() returns. Without it records survive the process
+	// dying but not the machine losing power
+	public void setForceOnAppend(boolean forceOnAppend) {
+		this.forceOnAppend = forceOnAppend;
+	}
+
+	// replay waits about this long after a failed attempt, doubling up to the maximum
+	public void setRetryBackoffMillis(long retryBackoffMillis, long maxRetryBackoffMillis) {
+		this.retryBackoffMillis = retryBackoffMillis;
+		this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+	}
+
+	// where replayed puts and their throttles are reported
+	public void setMetrics(KinesisMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// append a record to the log, to be put once the stream accepts writes again. Throws
+	// IllegalStateException when the buffer is at its disk cap
+	public void add(String myStreamName, String partitionKey, String explicitHashKey, ByteBuffer data) {
+		byte[] stream = myStreamName.getBytes(StandardCharsets.UTF_8);
+		byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+		byte[] hashKey = explicitHashKey == null ? null : explicitHashKey.getBytes(StandardCharsets.UTF_8);
+		int bodyBytes = 2 + stream.length + 2 + key.length + 2 + (hashKey == null ? 0 : hashKey.length) + data.remaining();
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("spill buffer in "+directory+" is closed");
+			}
+			Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (segment == null || segment.writeOffset + ENTRY_HEADER_BYTES + bodyBytes > segment.map.capacity()) {
+				segment = addSegment(ENTRY_HEADER_BYTES + bodyBytes);
+			}
+			// the body first and the length last, so a reader never sees a half written entry
+			MappedByteBuffer map = segment.map;
+			int offset = segment.writeOffset;
+			ByteBuffer body = map.duplicate();
+			body.position(offset + ENTRY_HEADER_BYTES);
+			putString(body, stream);
+			putString(body, key);
+			putString(body, hashKey);
+			body.put(data.duplicate());
+			CRC32 crc = new CRC32();
+			crc.update(map.duplicate().position(offset + ENTRY_HEADER_BYTES).limit(offset + ENTRY_HEADER_BYTES + bodyBytes));
+			map.putInt(offset + 4, (int) crc.getValue());
+			map.putInt(offset, bodyBytes);
+			segment.writeOffset = offset + ENTRY_HEADER_BYTES + bodyBytes;
+			if (forceOnAppend) {
+				map.force();
+			}
+			pendingRecords++;
+			spilledRecords++;
+			lock.notifyAll();
+		}
+	}
+
+	// records added but not yet accepted by Kinesis
+	public long getPendingRecords() {
+		synchronized (lock) {
+			return pendingRecords;
+		}
+	}
+
+	public boolean isEmpty() {
+		return getPendingRecords() == 0;
+	}
+
+	public long getSpilledRecords() {
+		synchronized (lock) {
+			return spilledRecords;
+		}
+	}
+
+	public long getReplayedRecords() {
+		synchronized (lock) {
+			return replayedRecords;
+		}
+	}
+
+	public long getDiskBytes() {
+		synchronized (lock) {
+			return diskBytes();
+		}
+	}
+
+	// stop replaying and write everything to disk. Pending records stay for the next process
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lock.notifyAll();
+		}
+		replayer.interrupt();
+		try {
+			replayer.join(30000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			for (Segment segment : segments) {
+				segment.map.force();
+				segment.channel.close();
+			}
+			position.force();
+			positionChannel.close();
+		}
+	}
+
+	// open the segments left in the directory, skip what was acknowledged and find where
+	// writing left off
+	private void recover() throws IOException {
+		List<Long> ids = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX+"*"+SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		ids.sort(null);
+		long ackedSegment = position.getLong(FILE_HEADER_BYTES);
+		int ackedOffset = (int) position.getLong(FILE_HEADER_BYTES + 8);
+		for (long id : ids) {
+			if (id < ackedSegment) {
+				// fully acknowledged, but the process stopped before deleting it
+				Files.deleteIfExists(segmentPath(id));
+				continue;
+			}
+			FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Segment segment = new Segment(id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+			if (segment.map.capacity() < FILE_HEADER_BYTES || segment.map.getInt(0) != MAGIC) {
+				channel.close();
+				throw new IOException(segmentPath(id)+" is not a spill buffer segment");
+			}
+			int start = id == ackedSegment ? Math.max(ackedOffset, FILE_HEADER_BYTES) : FILE_HEADER_BYTES;
+			// everything up to the first missing or damaged entry counts, a torn write at the end is dropped
+			int offset = FILE_HEADER_BYTES;
+			while (validEntryAt(segment.map, offset)) {
+				if (offset >= start) {
+					pendingRecords++;
+				}
+				offset += ENTRY_HEADER_BYTES + segment.map.getInt(offset);
+			}
+			segment.writeOffset = offset;
+			segments.add(segment);
+			nextSegmentId = id + 1;
+		}
+		// new segments must sort after the acknowledged position, even if its file is gone
+		nextSegmentId = Math.max(nextSegmentId, ackedSegment + 1);
+		if (!segments.isEmpty()) {
+			// clear whatever is after the last good entry, so old bytes there can't pass for entries
+			Segment tail = segments.get(segments.size() - 1);
+			for (int i = tail.writeOffset; i < tail.map.capacity(); i++) {
+				tail.map.put(i, (byte) 0);
+			}
+			readSegment = segments.get(0);
+			readOffset = readSegment.id == ackedSegment ? Math.max(ackedOffset, FILE_HEADER_BYTES) : FILE_HEADER_BYTES;
+		}
+		if (pendingRecords > 0) {
+			LOG.info("Replaying "+pendingRecords+" records left in "+directory);
+		}
+	}
+
+	private static boolean validEntryAt(MappedByteBuffer map, int offset) {
+		if (offset + ENTRY_HEADER_BYTES > map.capacity()) {
+			return false;
+		}
+		int length = map.getInt(offset);
+		if (length <= 0 || offset + ENTRY_HEADER_BYTES + length > map.capacity()) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(map.duplicate().position(offset + ENTRY_HEADER_BYTES).limit(offset + ENTRY_HEADER_BYTES + length));
+		return (int) crc.getValue() == map.getInt(offset + 4);
+	}
+
+	// start a new segment file with room for at least minBytes (caller holds the lock)
+	private Segment addSegment(int minBytes) {
+		long bytes = Math.max(segmentBytes, FILE_HEADER_BYTES + minBytes);
+		if (diskBytes() + bytes > maxDiskBytes) {
+			throw new IllegalStateException("spill buffer in "+directory+" is full at "+diskBytes()+" bytes");
+		}
+		long id = nextSegmentId++;
+		try {
+			FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Segment segment = new Segment(id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes));
+			segment.map.putInt(0, MAGIC);
+			segment.map.putInt(4, VERSION);
+			segment.writeOffset = FILE_HEADER_BYTES;
+			segments.add(segment);
+			if (readSegment == null) {
+				readSegment = segment;
+				readOffset = FILE_HEADER_BYTES;
+			}
+			return segment;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("could not create a segment in "+directory, e);
+		}
+	}
+
+	private long diskBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.map.capacity();
+		}
+		return bytes;
+	}
+
+	private Path segmentPath(long id) {
+		return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	// the next entry after the read position, moving it on, or null if there is none yet
+	// (caller holds the lock)
+	private Entry readNext() {
+		while (readSegment != null) {
+			MappedByteBuffer map = readSegment.map;
+			boolean tail = readSegment == segments.get(segments.size() - 1);
+			if (readOffset < readSegment.writeOffset) {
+				int length = map.getInt(readOffset);
+				Entry entry = new Entry(readSegment, readOffset, map, length);
+				readOffset += ENTRY_HEADER_BYTES + length;
+				return entry;
+			}
+			if (tail) {
+				return null;
+			}
+			readSegment = segments.get(segments.indexOf(readSegment) + 1);
+			readOffset = FILE_HEADER_BYTES;
+		}
+		return null;
+	}
+
+	// everything before this entry has been accepted: save the position and drop the segments
+	// before it (caller holds the lock)
+	private void acknowledge(Segment segment, int offset, int records) {
+		position.putLong(FILE_HEADER_BYTES, segment.id);
+		position.putLong(FILE_HEADER_BYTES + 8, offset);
+		pendingRecords -= records;
+		replayedRecords += records;
+		while (segments.get(0) != segment) {
+			Segment done = segments.remove(0);
+			try {
+				done.channel.close();
+				Files.deleteIfExists(segmentPath(done.id));
+			}
+			catch (IOException e) {
+				LOG.warn("Could not delete spill segment "+segmentPath(done.id), e);
+			}
+		}
+	}
+
+	// send the log in batches until the buffer is closed
+	private void replayLoop() {
+		List<Entry> batch = new ArrayList<>();
+		long backoff = 0;
+		try {
+			while (true) {
+				synchronized (lock) {
+					fill(batch);
+					while (batch.isEmpty() && !closed) {
+						lock.wait();
+						fill(batch);
+					}
+					if (closed) {
+						return;
+					}
+				}
+				if (backoff > 0) {
+					Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+				}
+				int sent = batch.size();
+				boolean progress = send(batch);
+				synchronized (lock) {
+					// batch now holds the failures, in order; the first of them is where replay resumes
+					if (batch.isEmpty()) {
+						acknowledge(readSegment, readOffset, sent);
+					}
+					else {
+						acknowledge(batch.get(0).segment, batch.get(0).offset, sent - batch.size());
+					}
+				}
+				backoff = progress ? 0 : Math.min(Math.max(backoff * 2, retryBackoffMillis), maxRetryBackoffMillis);
+			}
+		}
+		catch (InterruptedException e) {
+			// close() was called
+		}
+	}
+
+	// add entries from the log behind the ones still waiting, stopping at a second record
+	// with the same partition key or one for another stream (caller holds the lock)
+	private void fill(List<Entry> batch) {
+		Set<String> keys = new HashSet<>();
+		long bytes = 0;
+		for (Entry entry : batch) {
+			keys.add(entry.partitionKey);
+			bytes += entry.size();
+		}
+		while (batch.size() < KinesisProducer.MAX_RECORDS_PER_REQUEST) {
+			int savedOffset = readOffset;
+			Segment savedSegment = readSegment;
+			Entry entry = readNext();
+			if (entry == null) {
+				return;
+			}
+			if ((!batch.isEmpty() && !entry.myStreamName.equals(batch.get(0).myStreamName))
+					|| keys.contains(entry.partitionKey) || bytes + entry.size() > KinesisProducer.MAX_BYTES_PER_REQUEST) {
+				// it starts the next batch
+				readSegment = savedSegment;
+				readOffset = savedOffset;
+				return;
+			}
+			batch.add(entry);
+			keys.add(entry.partitionKey);
+			bytes += entry.size();
+		}
+	}
+
+	// one PutRecords call. Accepted entries are removed from the batch, failed ones stay in
+	// order. Returns false if nothing was accepted
+	private boolean send(List<Entry> batch) {
+		String myStreamName = batch.get(0).myStreamName;
+		PutRecordsRequest putRecordsRequest = new PutRecordsRequest();
+		putRecordsRequest.setStreamName(myStreamName);
+		List<PutRecordsRequestEntry> entries = new ArrayList<>(batch.size());
+		for (Entry entry : batch) {
+			PutRecordsRequestEntry requestEntry = new PutRecordsRequestEntry();
+			requestEntry.setPartitionKey(entry.partitionKey);
+			requestEntry.setExplicitHashKey(entry.explicitHashKey);
+			requestEntry.setData(entry.data.duplicate());
+			entries.add(requestEntry);
+		}
+		putRecordsRequest.setRecords(entries);
+		KinesisMetrics m = metrics;
+		long start = System.nanoTime();
+		PutRecordsResult result;
+		try {
+			result = kinesis.putRecords(putRecordsRequest);
+		}
+		catch (AmazonClientException e) {
+			if (!KinesisProducer.isRetryable(e)) {
+				// the records can never be put (the stream is gone, say), keeping them would block the log
+				LOG.error("Dropping "+batch.size()+" spilled records for "+myStreamName, e);
+				batch.clear();
+				return true;
+			}
+			LOG.debug("Replay of spilled records failed, will retry", e);
+			return false;
+		}
+		long latency = System.nanoTime() - start;
+		List<PutRecordsResultEntry> resultEntries = result.getRecords();
+		List<Entry> failed = new ArrayList<>();
+		// records and bytes written per shard, so the call's latency is counted once per shard
+		Map<String, long[]> written = new LinkedHashMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			PutRecordsResultEntry resultEntry = resultEntries.get(i);
+			if (resultEntry.getErrorCode() == null) {
+				long[] totals = written.computeIfAbsent(resultEntry.getShardId(), k -> new long[2]);
+				totals[0]++;
+				totals[1] += batch.get(i).size();
+			}
+			else {
+				if ("ProvisionedThroughputExceededException".equals(resultEntry.getErrorCode())) {
+					m.shard(myStreamName, KinesisMetrics.UNKNOWN_SHARD).recordPutThrottled();
+				}
+				failed.add(batch.get(i));
+			}
+		}
+		for (Map.Entry<String, long[]> shard : written.entrySet()) {
+			m.shard(myStreamName, shard.getKey()).recordPut(latency, (int) shard.getValue()[0], shard.getValue()[1]);
+		}
+		boolean progress = failed.size() < batch.size();
+		batch.clear();
+		batch.addAll(failed);
+		return progress;
+	}
+
+	private static void putString(ByteBuffer out, byte[] bytes) {
+		if (bytes == null) {
+			out.putShort((short) -1);
+			return;
+		}
+		out.putShort((short) bytes.length);
+		out.put(bytes);
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getShort();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// one mapped segment file
+	private static class Segment {
+		final long id;
+		final FileChannel channel;
+		final MappedByteBuffer map;
+		int writeOffset;
+
+		Segment(long id, FileChannel channel, MappedByteBuffer map) {
+			this.id = id;
+			this.channel = channel;
+			this.map = map;
+		}
+	}
+
+	// a record read back from a segment, its data is a view of the mapped file
+	private static class Entry {
+		final Segment segment;
+		final int offset;
+		final String myStreamName;
+		final String partitionKey;
+		final String explicitHashKey;
+		final ByteBuffer data;
+
+		Entry(Segment segment, int offset, MappedByteBuffer map, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			ByteBuffer body = map.duplicate();
+			body.position(offset + ENTRY_HEADER_BYTES).limit(offset + ENTRY_HEADER_BYTES + length);
+			this.myStreamName = getString(body);
+			this.partitionKey = getString(body);
+			this.explicitHashKey = getString(body);
+			this.data = body.slice();
+		}
+
+		int size() {
+			return data.remaining() + RecordAggregator.utf8Length(partitionKey);
+		}
+	}
+}
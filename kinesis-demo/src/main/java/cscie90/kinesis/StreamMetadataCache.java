@@ -0,0 +1,356 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.ListStreamsRequest;
+import com.amazonaws.services.kinesis.model.ListStreamsResult;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Caches stream status, shard lists and stream names, so repeated getMyShards and
+ * listMyStreams calls don't each walk every describeStream page (DescribeStream is limited
+ * to a few calls per second per account). An expired or invalidated shard list is
+ * refreshed from the last known shard onwards, since new shards are always listed after
+ * the old ones. Concurrent callers for the same stream share one refresh.
+ */
+public class StreamMetadataCache {
+
+	// settings - see the setters below
+	private volatile long ttlMillis = 5 * 1000;
+	private volatile long fullRefreshIntervalMillis = 5 * 60 * 1000;
+	private volatile long evictAfterMillis = 10 * 60 * 1000;
+
+	// one entry per client and stream name, like StreamStateWaiter's pollers
+	private final Map<List<Object>, StreamEntry> streams = new ConcurrentHashMap<>();
+	private final Map<AmazonKinesis, NamesEntry> streamNames = new ConcurrentHashMap<>();
+
+	// how long cached metadata is used before it is refreshed
+	public void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	// incremental refreshes only pick up new shards, so every so often the whole list is reloaded
+	// to drop shards that have aged out of the stream
+	public void setFullRefreshIntervalMillis(long fullRefreshIntervalMillis) {
+		this.fullRefreshIntervalMillis = fullRefreshIntervalMillis;
+	}
+
+	// streams nobody has asked about for this long are forgotten
+	public void setEvictAfterMillis(long evictAfterMillis) {
+		this.evictAfterMillis = evictAfterMillis;
+	}
+
+	// every shard of the stream, open and closed, in the order describeStream lists them. The
+	// lists handed out here are shared with every caller, neither they nor their shards may be changed
+	public List<Shard> getShards(AmazonKinesis kinesis, String myStreamName) {
+		return entry(kinesis, myStreamName).get().shards;
+	}
+
+	public String getStreamStatus(AmazonKinesis kinesis, String myStreamName) {
+		return entry(kinesis, myStreamName).get().status;
+	}
+
+	// the shards still taking writes, ordered by hash key range
+	public List<Shard> getOpenShards(AmazonKinesis kinesis, String myStreamName) {
+		return entry(kinesis, myStreamName).get().openShards;
+	}
+
+	public List<String> getStreamNames(AmazonKinesis kinesis) {
+		return streamNames.computeIfAbsent(kinesis, NamesEntry::new).get();
+	}
+
+	// the stream's shards have changed (this client split or merged them, or a reader hit the
+	// end of a shard): refresh on the next read
+	public void invalidate(AmazonKinesis kinesis, String myStreamName) {
+		StreamEntry entry = streams.get(Arrays.asList(kinesis, myStreamName));
+		if (entry != null) {
+			entry.invalidate();
+		}
+	}
+
+	// the stream was created or deleted: forget it and the stream name list
+	public void evict(AmazonKinesis kinesis, String myStreamName) {
+		streams.remove(Arrays.asList(kinesis, myStreamName));
+		NamesEntry names = streamNames.get(kinesis);
+		if (names != null) {
+			names.invalidate();
+		}
+	}
+
+	private StreamEntry entry(AmazonKinesis kinesis, String myStreamName) {
+		long now = System.currentTimeMillis();
+		// drop streams that haven't been asked about for a while
+		Iterator<StreamEntry> it = streams.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().lastAccessMillis > evictAfterMillis) {
+				it.remove();
+			}
+		}
+		StreamEntry entry = streams.computeIfAbsent(Arrays.asList(kinesis, myStreamName),
+				key -> new StreamEntry(kinesis, myStreamName));
+		entry.lastAccessMillis = now;
+		return entry;
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	// an immutable view of a stream at one moment
+	private static class Snapshot {
+		final String status;
+		final List<Shard> shards;
+		final List<Shard> openShards;
+		final long loadedMillis;
+		final long fullLoadMillis;
+
+		Snapshot(String status, List<Shard> shards, long loadedMillis, long fullLoadMillis) {
+			this.status = status;
+			this.shards = Collections.unmodifiableList(shards);
+			List<Shard> open = new ArrayList<>();
+			for (Shard shard : shards) {
+				if (!ShardGraph.isClosed(shard)) {
+					open.add(shard);
+				}
+			}
+			open.sort((a, b) -> ShardGraph.startingHashKey(a).compareTo(ShardGraph.startingHashKey(b)));
+			this.openShards = Collections.unmodifiableList(open);
+			this.loadedMillis = loadedMillis;
+			this.fullLoadMillis = fullLoadMillis;
+		}
+
+		String lastShardId() {
+			return shards.isEmpty() ? null : shards.get(shards.size() - 1).getShardId();
+		}
+	}
+
+	private class StreamEntry {
+		final AmazonKinesis kinesis;
+		final String myStreamName;
+		volatile long lastAccessMillis;
+
+		// guarded by this
+		private Snapshot snapshot;
+		private CompletableFuture<Snapshot> refreshing;
+		// bumped by invalidate(), so an invalidation during a refresh isn't lost
+		private long generation = 0;
+		private long loadedGeneration = -1;
+
+		StreamEntry(AmazonKinesis kinesis, String myStreamName) {
+			this.kinesis = kinesis;
+			this.myStreamName = myStreamName;
+		}
+
+		synchronized void invalidate() {
+			generation++;
+		}
+
+		Snapshot get() {
+			CompletableFuture<Snapshot> future;
+			Snapshot previous;
+			long startGeneration;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				if (snapshot != null && loadedGeneration == generation && now - snapshot.loadedMillis < ttlMillis) {
+					return snapshot;
+				}
+				if (refreshing != null) {
+					// someone else is already refreshing, wait for their result
+					future = refreshing;
+					previous = null;
+					startGeneration = -1;
+				}
+				else {
+					future = refreshing = new CompletableFuture<>();
+					previous = snapshot;
+					startGeneration = generation;
+				}
+			}
+			if (startGeneration < 0) {
+				return join(future);
+			}
+
+			try {
+				Snapshot loaded = load(previous);
+				synchronized (this) {
+					snapshot = loaded;
+					loadedGeneration = startGeneration;
+					refreshing = null;
+				}
+				future.complete(loaded);
+				return loaded;
+			}
+			catch (RuntimeException e) {
+				synchronized (this) {
+					refreshing = null;
+				}
+				if (e instanceof ResourceNotFoundException) {
+					streams.remove(Arrays.asList(kinesis, myStreamName), this);
+				}
+				future.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		// fetch the shards listed after the last one we know. Only if those new shards closed
+		// shards we thought were open (a split or merge) is the whole list loaded again
+		private Snapshot load(Snapshot previous) {
+			long now = System.currentTimeMillis();
+			if (previous == null || now - previous.fullLoadMillis >= fullRefreshIntervalMillis) {
+				return describe(null, now, now);
+			}
+			Snapshot next = describe(previous.lastShardId(), now, previous.fullLoadMillis);
+			Map<String, Shard> known = new LinkedHashMap<>();
+			for (Shard shard : previous.shards) {
+				known.put(shard.getShardId(), shard);
+			}
+			for (Shard shard : next.shards) {
+				if (closesOpenShard(known, shard.getParentShardId()) || closesOpenShard(known, shard.getAdjacentParentShardId())) {
+					return describe(null, now, now);
+				}
+			}
+			List<Shard> shards = new ArrayList<>(previous.shards);
+			shards.addAll(next.shards);
+			return new Snapshot(next.status, shards, now, previous.fullLoadMillis);
+		}
+
+		private boolean closesOpenShard(Map<String, Shard> known, String parentShardId) {
+			Shard parent = parentShardId == null ? null : known.get(parentShardId);
+			return parent != null && !ShardGraph.isClosed(parent);
+		}
+
+		// the shards listed after exclusiveStartShardId (all of them if it is null)
+		private Snapshot describe(String exclusiveStartShardId, long now, long fullLoadMillis) {
+			// build a configurable request object
+			DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
+			// identify the name of the stream to get shard details from
+			describeStreamRequest.setStreamName(myStreamName);
+			List<Shard> shards = new ArrayList<>();
+			String status = null;
+			do {
+				// set the start point in the request object
+				describeStreamRequest.setExclusiveStartShardId(exclusiveStartShardId);
+				// get results - this may be a batch of results, and not necessarily the complete list
+				DescribeStreamResult describeStreamResult = kinesis.describeStream(describeStreamRequest);
+				status = describeStreamResult.getStreamDescription().getStreamStatus();
+				List<Shard> page = describeStreamResult.getStreamDescription().getShards();
+				shards.addAll(page);
+				// keep going from the last shard of this page while there are more
+				if (describeStreamResult.getStreamDescription().getHasMoreShards() && !page.isEmpty()) {
+					exclusiveStartShardId = page.get(page.size() - 1).getShardId();
+				}
+				else {
+					exclusiveStartShardId = null;
+				}
+			} while (exclusiveStartShardId != null);
+			return new Snapshot(status, shards, now, fullLoadMillis);
+		}
+	}
+
+	// the account's stream names, loaded the same way
+	private class NamesEntry {
+		final AmazonKinesis kinesis;
+
+		// guarded by this
+		private List<String> names;
+		private long loadedMillis;
+		private CompletableFuture<List<String>> refreshing;
+		private long generation = 0;
+		private long loadedGeneration = -1;
+
+		NamesEntry(AmazonKinesis kinesis) {
+			this.kinesis = kinesis;
+		}
+
+		synchronized void invalidate() {
+			generation++;
+		}
+
+		List<String> get() {
+			CompletableFuture<List<String>> future;
+			long startGeneration;
+			synchronized (this) {
+				if (names != null && loadedGeneration == generation && System.currentTimeMillis() - loadedMillis < ttlMillis) {
+					return names;
+				}
+				if (refreshing != null) {
+					// someone else is already refreshing, wait for their result. Not under the lock,
+					// the refreshing thread needs it to store what it loaded
+					future = refreshing;
+					startGeneration = -1;
+				}
+				else {
+					future = refreshing = new CompletableFuture<>();
+					startGeneration = generation;
+				}
+			}
+			if (startGeneration < 0) {
+				return join(future);
+			}
+			try {
+				List<String> loaded = Collections.unmodifiableList(list());
+				synchronized (this) {
+					names = loaded;
+					loadedMillis = System.currentTimeMillis();
+					loadedGeneration = startGeneration;
+					refreshing = null;
+				}
+				future.complete(loaded);
+				return loaded;
+			}
+			catch (RuntimeException e) {
+				synchronized (this) {
+					refreshing = null;
+				}
+				future.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		private List<String> list() {
+			// build a configurable request object
+			ListStreamsRequest listStreamsRequest = new ListStreamsRequest();
+			// ask for as many names per call as the service allows by default
+			listStreamsRequest.setLimit(100);
+			ListStreamsResult listStreamsResult = kinesis.listStreams(listStreamsRequest);
+			List<String> streamNames = new ArrayList<>(listStreamsResult.getStreamNames());
+			// keep fetching those stream names until no more are left
+			while (listStreamsResult.getHasMoreStreams() && !streamNames.isEmpty()) {
+				// get the stream names following the one we previously fetched
+				listStreamsRequest.setExclusiveStartStreamName(streamNames.get(streamNames.size() - 1));
+				listStreamsResult = kinesis.listStreams(listStreamsRequest);
+				streamNames.addAll(listStreamsResult.getStreamNames());
+			}
+			return streamNames;
+		}
+	}
+}
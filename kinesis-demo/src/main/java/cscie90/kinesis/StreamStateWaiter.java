@@ -0,0 +1,213 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.LimitExceededException;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+
+/**
+ * Waits for a stream to become ACTIVE, or for a split or merge to finish, without blocking
+ * a thread. The first describeStream call is made shortly after the request, later ones
+ * back off exponentially with jitter. All waiters on the same stream share one describe
+ * loop, so several operations running at once don't multiply the describeStream traffic
+ * (which is limited to a few calls per second per account).
+ */
+public class StreamStateWaiter {
+
+	private volatile long firstPollMillis = 500;
+	private volatile long maxPollMillis = 10 * 1000;
+	private volatile long timeoutMillis = 10 * 60 * 1000;
+
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+		Thread t = new Thread(r, "stream-state-waiter");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// one poller per client and stream name
+	private final Map<List<Object>, StreamPoller> pollers = new HashMap<>();
+
+	// delay before the first describeStream call, later calls double it up to maxPollMillis
+	public void setFirstPollMillis(long firstPollMillis) {
+		this.firstPollMillis = firstPollMillis;
+	}
+
+	public void setMaxPollMillis(long maxPollMillis) {
+		this.maxPollMillis = maxPollMillis;
+	}
+
+	// how long to wait before the future fails with a TimeoutException
+	public void setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	// completes with the stream's description once its status is ACTIVE
+	public CompletableFuture<StreamDescription> awaitActive(AmazonKinesis kinesis, String myStreamName) {
+		return await(kinesis, myStreamName, "become ACTIVE", stream -> "ACTIVE".equals(stream.getStreamStatus()));
+	}
+
+	// completes once the stream is ACTIVE again and the given shards (the ones being split or
+	// merged) are closed, so their children exist and can be read
+	public CompletableFuture<StreamDescription> awaitReshard(AmazonKinesis kinesis, String myStreamName,
+			String... closingShardIds) {
+		Set<String> closing = new HashSet<>(Arrays.asList(closingShardIds));
+		return await(kinesis, myStreamName, "finish resharding "+closing, stream -> {
+			if (!"ACTIVE".equals(stream.getStreamStatus())) {
+				return false;
+			}
+			for (Shard shard : stream.getShards()) {
+				if (closing.contains(shard.getShardId()) && !ShardGraph.isClosed(shard)) {
+					return false;
+				}
+			}
+			return true;
+		});
+	}
+
+	private CompletableFuture<StreamDescription> await(AmazonKinesis kinesis, String myStreamName,
+			String goal, Predicate<StreamDescription> condition) {
+		Waiter waiter = new Waiter(goal, condition, System.currentTimeMillis() + timeoutMillis);
+		List<Object> key = Arrays.asList(kinesis, myStreamName);
+		synchronized (pollers) {
+			StreamPoller poller = pollers.get(key);
+			if (poller == null) {
+				poller = new StreamPoller(key, kinesis, myStreamName);
+				pollers.put(key, poller);
+			}
+			poller.add(waiter);
+		}
+		return waiter.future;
+	}
+
+	// the shared describe loop of one stream
+	private class StreamPoller {
+		private final List<Object> key;
+		private final AmazonKinesis kinesis;
+		private final String myStreamName;
+		// guarded by pollers
+		private final List<Waiter> waiters = new ArrayList<>();
+		private int attempt = 0;
+		private ScheduledFuture<?> nextPoll;
+
+		StreamPoller(List<Object> key, AmazonKinesis kinesis, String myStreamName) {
+			this.key = key;
+			this.kinesis = kinesis;
+			this.myStreamName = myStreamName;
+		}
+
+		// a new waiter restarts the backoff, a fresh operation is likely to finish soon
+		void add(Waiter waiter) {
+			waiters.add(waiter);
+			attempt = 0;
+			if (nextPoll == null || (nextPoll.getDelay(TimeUnit.MILLISECONDS) > firstPollMillis && nextPoll.cancel(false))) {
+				nextPoll = scheduler.schedule(this::poll, firstPollMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void poll() {
+			StreamDescription stream = null;
+			Exception failure = null;
+			try {
+				stream = describe();
+			}
+			catch (ResourceNotFoundException | LimitExceededException e) {
+				// a new stream may not be visible yet, and a throttled call just means try later
+			}
+			catch (RuntimeException e) {
+				failure = e;
+			}
+
+			synchronized (pollers) {
+				long now = System.currentTimeMillis();
+				Iterator<Waiter> it = waiters.iterator();
+				while (it.hasNext()) {
+					Waiter waiter = it.next();
+					if (stream != null && waiter.condition.test(stream)) {
+						waiter.future.complete(stream);
+						it.remove();
+					}
+					else if (failure != null && !(failure instanceof AmazonServiceException
+							&& ((AmazonServiceException) failure).isRetryable())) {
+						waiter.future.completeExceptionally(failure);
+						it.remove();
+					}
+					else if (now >= waiter.deadline) {
+						String status = stream == null ? "unknown" : stream.getStreamStatus();
+						waiter.future.completeExceptionally(new TimeoutException("TIMING OUT: Stream "+myStreamName
+								+" did not "+waiter.goal+", status is "+status));
+						it.remove();
+					}
+				}
+				if (waiters.isEmpty()) {
+					pollers.remove(key);
+					nextPoll = null;
+					return;
+				}
+				// exponential backoff, spread over the upper half of the interval
+				long backoff = Math.min(maxPollMillis, firstPollMillis << Math.min(++attempt, 20));
+				long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+				nextPoll = scheduler.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		// the full description, following the pages when the stream has many shards
+		private StreamDescription describe() {
+			DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
+			describeStreamRequest.setStreamName(myStreamName);
+			DescribeStreamResult describeStreamResult = kinesis.describeStream(describeStreamRequest);
+			StreamDescription stream = describeStreamResult.getStreamDescription();
+			List<Shard> shards = new ArrayList<>(stream.getShards());
+			while (stream.getHasMoreShards() && !shards.isEmpty()) {
+				describeStreamRequest.setExclusiveStartShardId(shards.get(shards.size() - 1).getShardId());
+				StreamDescription page = kinesis.describeStream(describeStreamRequest).getStreamDescription();
+				shards.addAll(page.getShards());
+				stream.setHasMoreShards(page.getHasMoreShards());
+			}
+			stream.setShards(shards);
+			return stream;
+		}
+	}
+
+	// one caller waiting for a condition
+	private static class Waiter {
+		final String goal;
+		final Predicate<StreamDescription> condition;
+		final long deadline;
+		final CompletableFuture<StreamDescription> future = new CompletableFuture<>();
+
+		Waiter(String goal, Predicate<StreamDescription> condition, long deadline) {
+			this.goal = goal;
+			this.condition = condition;
+			this.deadline = deadline;
+		}
+	}
+}
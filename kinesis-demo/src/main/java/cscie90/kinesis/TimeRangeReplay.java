@@ -0,0 +1,282 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Reads every record that arrived between two times, from all shards of a stream including
+ * closed parents, and hands them to a ReplaySink in order of arrival. Each shard is read on
+ * its own thread from an AT_TIMESTAMP iterator into a bounded buffer, and the calling thread
+ * merges the buffers through a priority queue holding one record per shard, so a backfill
+ * takes about as long as reading the busiest shard rather than all of them one by one.
+ */
+public class TimeRangeReplay {
+
+	private static final Log LOG = LogFactory.getLog(TimeRangeReplay.class);
+
+	// marks the end of a shard's buffer
+	private static final Record END = new Record();
+
+	private final AmazonKinesis kinesis;
+	private final String myStreamName;
+	private final KinesisUtils kus = new KinesisUtils();
+
+	// settings - see the setters below
+	private volatile int bufferedRecordsPerShard = 10000;
+	private volatile int recordsPerCall = KinesisConsumer.MAX_RECORDS_PER_CALL;
+	private volatile long maxBackoffMillis = 5000;
+	private volatile KinesisMetrics metrics = KinesisMetrics.getDefault();
+	private volatile ShardRateLimiter rateLimiter;
+
+	public TimeRangeReplay(AmazonKinesis kinesis, String myStreamName) {
+		this.kinesis = kinesis;
+		this.myStreamName = myStreamName;
+	}
+
+	// records read ahead per shard before its reader waits for the merge to catch up
+	public void setBufferedRecordsPerShard(int bufferedRecordsPerShard) {
+		this.bufferedRecordsPerShard = Math.max(bufferedRecordsPerShard, 1);
+	}
+
+	// GetRecords limit of each call
+	public void setRecordsPerCall(int recordsPerCall) {
+		this.recordsPerCall = Math.min(Math.max(recordsPerCall, 1), KinesisConsumer.MAX_RECORDS_PER_CALL);
+	}
+
+	// longest wait after a throttled GetRecords call
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		this.maxBackoffMillis = Math.max(maxBackoffMillis, KinesisConsumer.MIN_POLL_INTERVAL_MILLIS);
+	}
+
+	// where per-shard get latencies, throughput and throttles are reported
+	public void setMetrics(KinesisMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// wait for each shard's read limits before calling GetRecords, useful when consumers are
+	// reading the same stream while the replay runs
+	public void setRateLimiter(ShardRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	// hand every record that arrived from start up to and including end to the sink, and return
+	// how many there were. A shard is read until its records pass end, or, for an open shard,
+	// until it is caught up and end has passed. Blocks until all shards are done; a sink or read
+	// failure stops the other readers and is thrown from here
+	public long replay(Date start, Date end, ReplaySink sink) throws IOException, InterruptedException {
+		long startMillis = start.getTime();
+		long endMillis = end.getTime();
+		if (endMillis < startMillis) {
+			throw new IllegalArgumentException("replay ends at "+end+" before it starts at "+start);
+		}
+		// the shard list keeps closed shards until their records have aged out, so this covers
+		// the parents of every split and merge the range might reach back to
+		List<Shard> shards = kus.getMyShards(kinesis, myStreamName);
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService readers = Executors.newFixedThreadPool(Math.max(shards.size(), 1), r -> {
+			Thread t = new Thread(r, "kinesis-replay-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<ShardReader> shardReaders = new ArrayList<>();
+			for (Shard shard : shards) {
+				ShardReader reader = new ShardReader(shard.getShardId(), startMillis, endMillis);
+				shardReaders.add(reader);
+				readers.execute(reader);
+			}
+			return merge(shardReaders, sink);
+		}
+		finally {
+			readers.shutdownNow();
+		}
+	}
+
+	// k-way merge: the queue holds the next record of each shard that still has records, so it
+	// never grows past the shard count
+	private long merge(List<ShardReader> shardReaders, ReplaySink sink) throws IOException, InterruptedException {
+		PriorityQueue<ShardReader> heads = new PriorityQueue<>(Math.max(shardReaders.size(), 1),
+				Comparator.comparingLong((ShardReader reader) -> reader.headMillis)
+						.thenComparing(reader -> reader.shardId));
+		for (ShardReader reader : shardReaders) {
+			if (reader.advance()) {
+				heads.add(reader);
+			}
+		}
+		long delivered = 0;
+		while (!heads.isEmpty()) {
+			ShardReader reader = heads.poll();
+			sink.replayed(reader.shardId, reader.head);
+			delivered++;
+			if (reader.advance()) {
+				heads.add(reader);
+			}
+		}
+		return delivered;
+	}
+
+	// reads one shard from the start time into its buffer, until the shard passes the end time
+	private class ShardReader implements Runnable {
+		private final String shardId;
+		private final long startMillis;
+		private final long endMillis;
+		private final BlockingQueue<Record> buffer = new ArrayBlockingQueue<>(bufferedRecordsPerShard);
+		private volatile RuntimeException failure;
+		// the last Kinesis record read, used to pick up again after an expired iterator
+		private String lastSequenceNumber;
+
+		// the merge side: the record this shard offers next, and its arrival time
+		private Record head;
+		private long headMillis;
+
+		ShardReader(String shardId, long startMillis, long endMillis) {
+			this.shardId = shardId;
+			this.startMillis = startMillis;
+			this.endMillis = endMillis;
+		}
+
+		// take the next record from the buffer, false once the shard is done
+		boolean advance() throws InterruptedException {
+			head = buffer.take();
+			if (head == END) {
+				if (failure != null) {
+					throw new IllegalStateException("Replay of shard "+shardId+" failed", failure);
+				}
+				return false;
+			}
+			headMillis = head.getApproximateArrivalTimestamp().getTime();
+			return true;
+		}
+
+		@Override
+		public void run() {
+			try {
+				read();
+			}
+			catch (InterruptedException e) {
+				// the merge stopped early, nobody is waiting for the end marker
+				return;
+			}
+			catch (RuntimeException e) {
+				failure = e;
+			}
+			try {
+				buffer.put(END);
+			}
+			catch (InterruptedException e) {
+				// the merge stopped early
+			}
+		}
+
+		private void read() throws InterruptedException {
+			String shardIterator = iterator();
+			long backoff = KinesisConsumer.MIN_POLL_INTERVAL_MILLIS;
+			while (shardIterator != null) {
+				long callStart = System.currentTimeMillis();
+				GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
+				getRecordsRequest.setShardIterator(shardIterator);
+				getRecordsRequest.setLimit(recordsPerCall);
+
+				ShardRateLimiter limiter = rateLimiter;
+				if (limiter != null) {
+					ShardRateLimiter.pause(limiter.reserveRead(shardId));
+				}
+				ShardMetrics shardMetrics = metrics.shard(myStreamName, shardId);
+				long start = System.nanoTime();
+				GetRecordsResult result;
+				try {
+					result = kinesis.getRecords(getRecordsRequest);
+				}
+				catch (ExpiredIteratorException e) {
+					// the merge held this reader up for more than 5 minutes
+					shardIterator = iterator();
+					continue;
+				}
+				catch (ProvisionedThroughputExceededException e) {
+					shardMetrics.recordGetThrottled();
+					Thread.sleep(backoff);
+					backoff = Math.min(backoff * 2, maxBackoffMillis);
+					continue;
+				}
+				backoff = KinesisConsumer.MIN_POLL_INTERVAL_MILLIS;
+
+				List<Record> records = result.getRecords();
+				long millisBehindLatest = result.getMillisBehindLatest() == null ? 0 : result.getMillisBehindLatest();
+				long bytes = KinesisUtils.payloadBytes(records);
+				shardMetrics.recordGet(System.nanoTime() - start, records.size(), bytes, millisBehindLatest);
+				if (limiter != null) {
+					limiter.recordRead(shardId, bytes);
+				}
+				for (Record record : RecordDeaggregator.deaggregate(records)) {
+					long arrival = record.getApproximateArrivalTimestamp().getTime();
+					// a shard's records arrive in order, so the first one past the end ends the shard
+					if (arrival > endMillis) {
+						return;
+					}
+					if (arrival >= startMillis) {
+						buffer.put(record);
+					}
+				}
+				if (!records.isEmpty()) {
+					lastSequenceNumber = records.get(records.size() - 1).getSequenceNumber();
+				}
+				// an open shard with nothing left to read is done once the end time has passed
+				if (records.isEmpty() && millisBehindLatest == 0 && System.currentTimeMillis() > endMillis) {
+					return;
+				}
+				shardIterator = result.getNextShardIterator();
+				// 5 GetRecords calls per second per shard
+				long wait = KinesisConsumer.MIN_POLL_INTERVAL_MILLIS - (System.currentTimeMillis() - callStart);
+				if (wait > 0 && shardIterator != null) {
+					Thread.sleep(wait);
+				}
+			}
+			LOG.debug("Replayed shard "+shardId+" to its end");
+		}
+
+		// the first record at or after the start time, or the record after the last one read
+		private String iterator() {
+			GetShardIteratorRequest getShardIteratorRequest = new GetShardIteratorRequest();
+			getShardIteratorRequest.setStreamName(myStreamName);
+			getShardIteratorRequest.setShardId(shardId);
+			if (lastSequenceNumber == null) {
+				getShardIteratorRequest.setShardIteratorType("AT_TIMESTAMP");
+				getShardIteratorRequest.setTimestamp(new Date(startMillis));
+			}
+			else {
+				getShardIteratorRequest.setShardIteratorType("AFTER_SEQUENCE_NUMBER");
+				getShardIteratorRequest.setStartingSequenceNumber(lastSequenceNumber);
+			}
+			return kinesis.getShardIterator(getShardIteratorRequest).getShardIterator();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+/**
+ * A token bucket refilled at a fixed rate up to one second's worth, the way Kinesis meters
+ * each shard. Tokens may be taken ahead of time: the balance goes negative and the caller
+ * is told how long to wait before what it took has been refilled.
+ */
+public class TokenBucket {
+
+	private final double ratePerNano;
+	private final double capacity;
+	private double tokens;
+	private long lastNanos = System.nanoTime();
+
+	public TokenBucket(double ratePerSecond) {
+		this.ratePerNano = ratePerSecond / 1e9;
+		this.capacity = ratePerSecond;
+		this.tokens = ratePerSecond;
+	}
+
+	// take the tokens now, returns how many nanoseconds to wait before using them (0 if they
+	// were there). Later callers queue behind this one
+	public synchronized long reserve(long amount) {
+		refill();
+		tokens -= amount;
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerNano);
+	}
+
+	// take the tokens only if they are all there
+	public synchronized boolean tryAcquire(long amount) {
+		refill();
+		if (tokens < amount) {
+			return false;
+		}
+		tokens -= amount;
+		return true;
+	}
+
+	// take tokens for something that has already happened, even if that leaves a debt
+	public synchronized void charge(long amount) {
+		refill();
+		tokens -= amount;
+	}
+
+	// nanoseconds until the given amount is there, without taking it
+	public synchronized long nanosUntilAvailable(long amount) {
+		refill();
+		return tokens >= amount ? 0 : (long) Math.ceil((amount - tokens) / ratePerNano);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastNanos) * ratePerNano);
+		lastNanos = now;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.Objects;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * A record that was unpacked from an aggregated Kinesis record. It carries the sequence
+ * number of the Kinesis record it came from, plus its position inside it as the
+ * sub-sequence number, so (sequence number, sub-sequence number) is unique per shard.
+ */
+public class UserRecord extends Record {
+
+	private static final long serialVersionUID = 1L;
+
+	private long subSequenceNumber;
+	private String explicitHashKey;
+	private boolean aggregated;
+
+	public UserRecord() {
+	}
+
+	// copy the Kinesis level fields of the record this user record was packed in
+	UserRecord(Record container, long subSequenceNumber, boolean aggregated) {
+		setSequenceNumber(container.getSequenceNumber());
+		setApproximateArrivalTimestamp(container.getApproximateArrivalTimestamp());
+		setEncryptionType(container.getEncryptionType());
+		setPartitionKey(container.getPartitionKey());
+		setData(container.getData());
+		this.subSequenceNumber = subSequenceNumber;
+		this.aggregated = aggregated;
+	}
+
+	public long getSubSequenceNumber() {
+		return subSequenceNumber;
+	}
+
+	public void setSubSequenceNumber(long subSequenceNumber) {
+		this.subSequenceNumber = subSequenceNumber;
+	}
+
+	public String getExplicitHashKey() {
+		return explicitHashKey;
+	}
+
+	public void setExplicitHashKey(String explicitHashKey) {
+		this.explicitHashKey = explicitHashKey;
+	}
+
+	// true if this record was unpacked from an aggregated record
+	public boolean isAggregated() {
+		return aggregated;
+	}
+
+	@Override
+	public String toString() {
+		// the SDK's format is {Field: value,...}, slip the sub-sequence number in before the brace
+		String s = super.toString();
+		String fields = s.substring(0, s.length() - 1);
+		if (!fields.endsWith(",") && !fields.endsWith("{")) {
+			fields += ",";
+		}
+		return fields+"SubSequenceNumber: "+subSequenceNumber+"}";
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof UserRecord) || !super.equals(obj)) {
+			return false;
+		}
+		UserRecord other = (UserRecord) obj;
+		return subSequenceNumber == other.subSequenceNumber && Objects.equals(explicitHashKey, other.explicitHashKey);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * super.hashCode() + Long.hashCode(subSequenceNumber);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Strings as UTF-8, whatever the platform's default charset is.
+ */
+public class Utf8StringCodec implements RecordCodec<String> {
+
+	// encoders keep state, so each thread has its own
+	private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() ->
+			StandardCharsets.UTF_8.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+	@Override
+	public ByteBuffer encode(String value, ByteBuffer target) {
+		CharsetEncoder encoder = ENCODER.get();
+		// a UTF-8 character takes at most 3 bytes per Java char
+		if (target == null || target.capacity() < value.length() * 3) {
+			target = ByteBuffer.allocate(value.length() * 3);
+		}
+		target.clear();
+		encoder.reset();
+		CharBuffer in = CharBuffer.wrap(value);
+		CoderResult result = encoder.encode(in, target, true);
+		if (result.isOverflow()) {
+			// can't happen with the capacity above, but don't leave a half encoded value behind
+			throw new IllegalStateException("UTF-8 encoding of "+value.length()+" chars overflowed");
+		}
+		encoder.flush(target);
+		target.flip();
+		return target;
+	}
+
+	@Override
+	public String decode(ByteBuffer data) {
+		if (data.hasArray()) {
+			// straight from the backing array, only the bytes between position and limit
+			return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(),
+					StandardCharsets.UTF_8);
+		}
+		try {
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE)
+					.decode(data.duplicate()).toString();
+		}
+		catch (CharacterCodingException e) {
+			// REPLACE never throws
+			throw new IllegalStateException(e);
+		}
+	}
+}
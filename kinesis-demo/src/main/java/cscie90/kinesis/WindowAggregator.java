@@ -0,0 +1,225 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Counts and sums records per partition key over tumbling or sliding windows of their
+ * ApproximateArrivalTimestamp, updating the totals as records arrive. Shards are read at
+ * different speeds, so each shard's latest arrival time is tracked separately and a window
+ * only closes once the watermark - the earliest of those minus the allowed lateness - has
+ * passed its end. A shard counts from its first record until shardEnded. Records for a
+ * window that has already closed are counted as late and left out. Use it as a
+ * KinesisConsumer processor, as a pipeline sink, or feed it getMyStreamData results with add().
+ *
+ * Records sit in open windows after processRecords returns, so a KinesisConsumer with a
+ * checkpoint store needs auto checkpointing turned off.
+ */
+public class WindowAggregator implements RecordProcessor {
+
+	private final long sizeMillis;
+	private final long slideMillis;
+	private final WindowSink sink;
+
+	// settings - see the setters below
+	private volatile ToLongFunction<Record> valueFunction = record -> record.getData().remaining();
+	private volatile long allowedLatenessMillis = 5000;
+	private volatile boolean offHeap = false;
+	private volatile int initialKeyCapacity = 1024;
+
+	// everything below is guarded by this
+	// open windows ordered by start, and closed ones kept for reuse
+	private final List<KeyedWindow> open = new ArrayList<>();
+	private final Deque<KeyedWindow> free = new ArrayDeque<>();
+	// latest arrival time per shard still being read
+	private final Map<String, Long> maxTimestamps = new HashMap<>();
+	private long watermark = Long.MIN_VALUE;
+	private long lateRecords = 0;
+
+	// tumbling windows: each record counts in exactly one window
+	public WindowAggregator(long sizeMillis, WindowSink sink) {
+		this(sizeMillis, sizeMillis, sink);
+	}
+
+	// sliding windows of sizeMillis starting every slideMillis, a record counts in each window
+	// that covers it
+	public WindowAggregator(long sizeMillis, long slideMillis, WindowSink sink) {
+		if (sizeMillis <= 0 || slideMillis <= 0 || slideMillis > sizeMillis) {
+			throw new IllegalArgumentException("need 0 < slide <= size, got size "+sizeMillis+" slide "+slideMillis);
+		}
+		this.sizeMillis = sizeMillis;
+		this.slideMillis = slideMillis;
+		this.sink = sink;
+	}
+
+	// the value summed per key, by default the payload size in bytes
+	public void setValueFunction(ToLongFunction<Record> valueFunction) {
+		this.valueFunction = valueFunction;
+	}
+
+	// how much older than the latest record of the slowest shard a record may be and still be counted
+	public void setAllowedLatenessMillis(long allowedLatenessMillis) {
+		this.allowedLatenessMillis = allowedLatenessMillis;
+	}
+
+	// keep the per key totals in direct buffers outside the heap. Worth it with many keys per
+	// window, so the totals don't add to garbage collection work. Applies to new windows
+	public void setOffHeap(boolean offHeap) {
+		synchronized (this) {
+			this.offHeap = offHeap;
+			free.clear();
+		}
+	}
+
+	// how many keys a new window has room for before it grows
+	public void setInitialKeyCapacity(int initialKeyCapacity) {
+		this.initialKeyCapacity = initialKeyCapacity;
+	}
+
+	@Override
+	public void processRecords(String shardId, List<Record> records, long millisBehindLatest) {
+		add(shardId, records);
+	}
+
+	// windows stay open until the watermark passes them, so records aren't done on return
+	@Override
+	public boolean completesOnReturn() {
+		return false;
+	}
+
+	// the shard no longer holds the watermark back
+	@Override
+	public synchronized void shardEnded(String shardId) {
+		if (maxTimestamps.remove(shardId) != null) {
+			updateWatermark();
+			fire();
+		}
+	}
+
+	// records without a shard count as a shard of their own
+	public void add(List<Record> records) {
+		add("", records);
+	}
+
+	public void add(Record record) {
+		add("", record);
+	}
+
+	public synchronized void add(String shardId, List<Record> records) {
+		for (Record record : records) {
+			addRecord(shardId, record);
+		}
+		updateWatermark();
+		fire();
+	}
+
+	public synchronized void add(String shardId, Record record) {
+		addRecord(shardId, record);
+		updateWatermark();
+		fire();
+	}
+
+	// move the watermark forward without a record, e.g. on a timer while the stream is idle
+	public synchronized void advanceWatermark(long timestampMillis) {
+		watermark = Math.max(watermark, timestampMillis);
+		fire();
+	}
+
+	// close every open window, whatever the watermark says
+	public synchronized void flush() {
+		while (!open.isEmpty()) {
+			close(open.remove(0));
+		}
+	}
+
+	public synchronized long getWatermark() {
+		return watermark;
+	}
+
+	// records that missed at least one of their windows because it had already closed
+	public synchronized long getLateRecords() {
+		return lateRecords;
+	}
+
+	public synchronized int getOpenWindows() {
+		return open.size();
+	}
+
+	private void addRecord(String shardId, Record record) {
+		long timestamp = record.getApproximateArrivalTimestamp() == null ? System.currentTimeMillis()
+				: record.getApproximateArrivalTimestamp().getTime();
+		maxTimestamps.merge(shardId, timestamp, Math::max);
+		long value = valueFunction.applyAsLong(record);
+		// the windows covering the timestamp start at multiples of the slide in (timestamp - size, timestamp]
+		for (long start = Math.floorDiv(timestamp, slideMillis) * slideMillis; start > timestamp - sizeMillis; start -= slideMillis) {
+			if (start + sizeMillis <= watermark) {
+				// this window has closed, and so have all earlier ones
+				lateRecords++;
+				break;
+			}
+			window(start).add(record.getPartitionKey(), value);
+		}
+	}
+
+	// the slowest shard's latest arrival time minus the lateness, the watermark never moves back
+	private void updateWatermark() {
+		if (maxTimestamps.isEmpty()) {
+			return;
+		}
+		long slowest = Long.MAX_VALUE;
+		for (long timestamp : maxTimestamps.values()) {
+			slowest = Math.min(slowest, timestamp);
+		}
+		watermark = Math.max(watermark, slowest - allowedLatenessMillis);
+	}
+
+	// the open window starting at start, opened if needed
+	private KeyedWindow window(long start) {
+		int i = open.size();
+		// records mostly land in the newest windows, so search from the end
+		while (i > 0 && open.get(i - 1).getStartMillis() >= start) {
+			if (open.get(i - 1).getStartMillis() == start) {
+				return open.get(i - 1);
+			}
+			i--;
+		}
+		KeyedWindow window = free.poll();
+		if (window == null) {
+			window = new KeyedWindow(initialKeyCapacity, offHeap);
+		}
+		window.reset(start, start + sizeMillis);
+		open.add(i, window);
+		return window;
+	}
+
+	// hand every window that ended at or before the watermark to the sink
+	private void fire() {
+		while (!open.isEmpty() && open.get(0).getEndMillis() <= watermark) {
+			close(open.remove(0));
+		}
+	}
+
+	private void close(KeyedWindow window) {
+		try {
+			sink.windowFired(window);
+		}
+		finally {
+			free.push(window);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+/**
+ * Receives the windows of a WindowAggregator as they close.
+ */
+public interface WindowSink {
+
+	// called once per window, in order of the window start. The window is reused after this
+	// returns, so copy out whatever should be kept
+	void windowFired(KeyedWindow window);
+}
@@ -0,0 +1,83 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * CheckpointStore: checkpoints survive growing the mapped file and reopening it.
+ */
+public class CheckpointStoreTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void checkpointsSurviveRemapAndReopen() throws IOException {
+		Path file = dir.resolve("checkpoints");
+		// more shards than the initial slots, so the file is remapped twice
+		int shards = 1000;
+		try (CheckpointStore store = new CheckpointStore(file)) {
+			for (int i = 0; i < shards; i++) {
+				store.checkpoint("stream", shardId(i), "4900000000000000000000000000"+i);
+			}
+			store.checkpoint("stream", shardId(7), "49000000000000000000000000007777");
+			store.checkpoint("stream", shardId(8), CheckpointStore.SHARD_END);
+		}
+		try (CheckpointStore store = new CheckpointStore(file)) {
+			for (int i = 0; i < shards; i++) {
+				String expected = i == 7 ? "49000000000000000000000000007777"
+						: i == 8 ? CheckpointStore.SHARD_END : "4900000000000000000000000000"+i;
+				assertEquals(expected, store.getCheckpoint("stream", shardId(i)));
+			}
+			assertNull(store.getCheckpoint("other", shardId(0)));
+		}
+	}
+
+	@Test
+	public void removedSlotIsReusedAfterReopen() throws IOException {
+		Path file = dir.resolve("checkpoints");
+		try (CheckpointStore store = new CheckpointStore(file)) {
+			store.checkpoint("stream", shardId(0), "1");
+			store.checkpoint("stream", shardId(1), "2");
+			store.remove("stream", shardId(0));
+		}
+		long size = Files.size(file);
+		try (CheckpointStore store = new CheckpointStore(file)) {
+			assertNull(store.getCheckpoint("stream", shardId(0)));
+			assertEquals("2", store.getCheckpoint("stream", shardId(1)));
+			store.checkpoint("stream", shardId(2), "3");
+		}
+		assertEquals(size, Files.size(file));
+		try (CheckpointStore store = new CheckpointStore(file)) {
+			assertEquals("2", store.getCheckpoint("stream", shardId(1)));
+			assertEquals("3", store.getCheckpoint("stream", shardId(2)));
+		}
+	}
+
+	@Test
+	public void otherFilesAreRefused() throws IOException {
+		Path file = dir.resolve("not-checkpoints");
+		Files.write(file, new byte[4096]);
+		assertThrows(IOException.class, () -> new CheckpointStore(file));
+	}
+
+	private static String shardId(int i) {
+		return String.format("shardId-%012d", i);
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * KeyOrderedDispatcher: the low watermark only passes records that have finished, and a
+ * shard recovers from an interrupted dispatch or a failed record.
+ */
+public class KeyOrderedDispatcherTest {
+
+	private static final String STREAM = "dispatch-test";
+	private static final String SHARD = "shardId-000000000000";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void watermarkWaitsForTheOldestUnfinishedRecord() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		KeyOrderedDispatcher dispatcher = new KeyOrderedDispatcher(STREAM, 4, (shardId, record) -> {
+			if (record.getPartitionKey().equals("slow")) {
+				await(release);
+			}
+		});
+		try (CheckpointStore store = new CheckpointStore(dir.resolve("checkpoints"))) {
+			dispatcher.setCheckpointStore(store);
+			// 1 and 2 are plain records, 3 is slow, 4 and 5 are the two halves of an aggregate
+			List<Record> records = new ArrayList<>();
+			records.add(record("1", "a"));
+			records.add(record("2", "b"));
+			records.add(record("3", "slow"));
+			records.add(record("4", "c"));
+			records.add(record("4", "d"));
+			dispatcher.processRecords(SHARD, records, 0);
+			// 1 and 2 are ahead of the slow record in any lane they share with it
+			waitFor(() -> "2".equals(dispatcher.getLowWatermark(SHARD)));
+			Thread.sleep(200);
+			assertEquals("2", dispatcher.getLowWatermark(SHARD));
+			assertEquals("2", store.getCheckpoint(STREAM, SHARD));
+
+			release.countDown();
+			waitFor(() -> "4".equals(dispatcher.getLowWatermark(SHARD)));
+			assertEquals("4", store.getCheckpoint(STREAM, SHARD));
+			dispatcher.shardEnded(SHARD);
+		}
+		finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void interruptedDispatchUntracksTheRestOfTheBatch() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		KeyOrderedDispatcher dispatcher = new KeyOrderedDispatcher(STREAM, 2, (shardId, record) -> {
+			started.countDown();
+			await(release);
+		});
+		// one record in flight, so processRecords waits for a permit before the second
+		dispatcher.setMaxInFlightPerShard(1);
+		List<Record> records = new ArrayList<>();
+		for (int i = 1; i <= 5; i++) {
+			records.add(record(String.valueOf(i), "key"+i));
+		}
+		AtomicReference<RuntimeException> thrown = new AtomicReference<>();
+		Thread worker = new Thread(() -> {
+			try {
+				dispatcher.processRecords(SHARD, records, 0);
+			}
+			catch (RuntimeException e) {
+				thrown.set(e);
+			}
+		});
+		worker.start();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		// the consumer stopping interrupts its workers
+		worker.interrupt();
+		worker.join(10000);
+		assertTrue(thrown.get() instanceof IllegalStateException);
+
+		release.countDown();
+		// the first record finishes and nothing else holds the shard
+		waitFor(() -> "1".equals(dispatcher.getLowWatermark(SHARD)));
+		assertTimeoutPreemptively(Duration.ofSeconds(10), dispatcher::close);
+	}
+
+	@Test
+	public void failedShardStartsOverFromTheCheckpoint() throws Exception {
+		AtomicBoolean failNext = new AtomicBoolean(true);
+		List<String> handled = new ArrayList<>();
+		KeyOrderedDispatcher dispatcher = new KeyOrderedDispatcher(STREAM, 1, (shardId, record) -> {
+			if (record.getSequenceNumber().equals("2") && failNext.getAndSet(false)) {
+				throw new IllegalArgumentException("bad record");
+			}
+			synchronized (handled) {
+				handled.add(record.getSequenceNumber());
+			}
+		});
+		try (CheckpointStore store = new CheckpointStore(dir.resolve("checkpoints"))) {
+			dispatcher.setCheckpointStore(store);
+			List<Record> first = new ArrayList<>();
+			first.add(record("1", "a"));
+			first.add(record("2", "a"));
+			first.add(record("3", "a"));
+			dispatcher.processRecords(SHARD, first, 0);
+			waitFor(() -> "1".equals(dispatcher.getLowWatermark(SHARD)));
+
+			// the next batch reports the failure, and the shard is forgotten
+			List<Record> second = new ArrayList<>();
+			second.add(record("4", "a"));
+			assertThrows(IllegalStateException.class, () -> dispatcher.processRecords(SHARD, second, 0));
+			assertNull(dispatcher.getLowWatermark(SHARD));
+			assertEquals("1", store.getCheckpoint(STREAM, SHARD));
+
+			// a restarted worker reads on after the checkpoint, and the shard works again
+			List<Record> again = new ArrayList<>();
+			again.add(record("2", "a"));
+			again.add(record("3", "a"));
+			again.add(record("4", "a"));
+			dispatcher.processRecords(SHARD, again, 0);
+			waitFor(() -> "4".equals(dispatcher.getLowWatermark(SHARD)));
+			assertEquals("4", store.getCheckpoint(STREAM, SHARD));
+			dispatcher.shardEnded(SHARD);
+		}
+		finally {
+			dispatcher.close();
+		}
+		synchronized (handled) {
+			assertEquals(List.of("1", "2", "3", "4"), handled);
+		}
+	}
+
+	private static Record record(String sequenceNumber, String partitionKey) {
+		return new Record().withSequenceNumber(sequenceNumber).withPartitionKey(partitionKey)
+				.withData(ByteBuffer.allocate(1));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	private static void waitFor(Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.holds()) {
+			assertTrue(System.currentTimeMillis() < deadline, "timed out");
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * KinesisConsumer against LocalKinesis: reading across a split in key order, and stopping
+ * while a worker is finishing a shard.
+ */
+public class KinesisConsumerTest {
+
+	private static final String STREAM = "consumer-test";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void readsParentsBeforeChildrenAndCheckpoints() throws Exception {
+		LocalKinesis kinesis = new LocalKinesis();
+		kinesis.setThrottlingEnabled(false);
+		KinesisUtils kus = new KinesisUtils();
+		kus.createMyStream(kinesis, STREAM, 1);
+		for (int i = 0; i < 100; i++) {
+			put(kinesis, "key"+(i % 5), i);
+		}
+		Shard parent = kus.getMyShards(kinesis, STREAM).get(0);
+		kus.splitMyShard(kinesis, parent, STREAM);
+		for (int i = 100; i < 200; i++) {
+			put(kinesis, "key"+(i % 5), i);
+		}
+
+		Map<String, List<Integer>> values = new ConcurrentHashMap<>();
+		AtomicInteger received = new AtomicInteger();
+		RecordProcessor processor = (shardId, records, millisBehindLatest) -> {
+			for (Record record : records) {
+				int value = Integer.parseInt(StandardCharsets.UTF_8.decode(record.getData()).toString());
+				values.computeIfAbsent(record.getPartitionKey(), k -> new ArrayList<>()).add(value);
+				received.incrementAndGet();
+			}
+		};
+		try (CheckpointStore store = new CheckpointStore(dir.resolve("checkpoints"))) {
+			KinesisConsumer consumer = kus.createMyConsumer(kinesis, STREAM, processor);
+			consumer.setCheckpointStore(store);
+			consumer.start();
+			try {
+				long deadline = System.currentTimeMillis() + 20000;
+				while (received.get() < 200 && System.currentTimeMillis() < deadline) {
+					Thread.sleep(50);
+				}
+			}
+			finally {
+				consumer.stop();
+			}
+			assertEquals(200, received.get());
+			assertEquals(CheckpointStore.SHARD_END, store.getCheckpoint(STREAM, parent.getShardId()));
+		}
+		// every key's records arrive in the order they were written, across the split
+		for (Map.Entry<String, List<Integer>> key : values.entrySet()) {
+			List<Integer> seen = key.getValue();
+			assertEquals(40, seen.size(), key.getKey());
+			for (int i = 1; i < seen.size(); i++) {
+				assertTrue(seen.get(i - 1) < seen.get(i), key.getKey()+" out of order: "+seen);
+			}
+		}
+	}
+
+	@Test
+	public void stopDoesNotWaitOnAShardBeingFinished() throws Exception {
+		LocalKinesis kinesis = new LocalKinesis();
+		kinesis.setThrottlingEnabled(false);
+		KinesisUtils kus = new KinesisUtils();
+		kus.createMyStream(kinesis, STREAM, 1);
+		put(kinesis, "key", 1);
+		kus.splitMyShard(kinesis, kus.getMyShards(kinesis, STREAM).get(0), STREAM);
+
+		// stop() comes while the worker is still in shardEnded, after which it looks for the
+		// shard's children
+		CountDownLatch ending = new CountDownLatch(1);
+		KinesisConsumer consumer = kus.createMyConsumer(kinesis, STREAM, new RecordProcessor() {
+			@Override
+			public void processRecords(String shardId, List<Record> records, long millisBehindLatest) {
+			}
+
+			@Override
+			public void shardEnded(String shardId) {
+				ending.countDown();
+				long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+				while (System.nanoTime() < end) {
+					Thread.onSpinWait();
+				}
+			}
+		});
+		consumer.start();
+		assertTrue(ending.await(20, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		long start = System.nanoTime();
+		consumer.stop();
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(millis < 5000, "stop took "+millis+" ms");
+	}
+
+	private static void put(LocalKinesis kinesis, String partitionKey, int value) {
+		kinesis.putRecord(STREAM, ByteBuffer.wrap(String.valueOf(value).getBytes(StandardCharsets.UTF_8)), partitionKey);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * RecordAggregator and RecordDeaggregator: the KPL format written and read back, and
+ * payloads that only look aggregated.
+ */
+public class RecordAggregationTest {
+
+	@Test
+	public void userRecordsSurviveTheRoundTrip() {
+		RecordAggregator aggregator = new RecordAggregator();
+		for (int i = 0; i < 100; i++) {
+			String explicitHashKey = i % 3 == 0 ? String.valueOf(i) : null;
+			assertTrue(aggregator.addUserRecord("key"+(i % 10), explicitHashKey, utf8("value"+i)));
+		}
+		assertEquals("key0", aggregator.getPartitionKey());
+
+		List<Record> userRecords = RecordDeaggregator.deaggregate(Collections.singletonList(container(aggregator.toByteBuffer())));
+
+		assertEquals(100, userRecords.size());
+		for (int i = 0; i < 100; i++) {
+			UserRecord userRecord = (UserRecord) userRecords.get(i);
+			assertTrue(userRecord.isAggregated());
+			assertEquals("1", userRecord.getSequenceNumber());
+			assertEquals(i, userRecord.getSubSequenceNumber());
+			assertEquals("key"+(i % 10), userRecord.getPartitionKey());
+			assertEquals(i % 3 == 0 ? String.valueOf(i) : null, userRecord.getExplicitHashKey());
+			assertEquals("value"+i, StandardCharsets.UTF_8.decode(userRecord.getData()).toString());
+		}
+	}
+
+	@Test
+	public void fullAggregatorRefusesTheNextRecord() {
+		RecordAggregator aggregator = new RecordAggregator(1024);
+		int added = 0;
+		while (aggregator.addUserRecord("key", null, ByteBuffer.allocate(100))) {
+			added++;
+		}
+		assertEquals(added, aggregator.getNumUserRecords());
+		assertTrue(aggregator.getSizeBytes() <= 1024);
+		assertEquals(added, RecordDeaggregator.deaggregate(Collections.singletonList(container(aggregator.toByteBuffer()))).size());
+	}
+
+	@Test
+	public void corruptedDigestIsPassedThrough() {
+		RecordAggregator aggregator = new RecordAggregator();
+		aggregator.addUserRecord("a", null, utf8("one"));
+		aggregator.addUserRecord("b", null, utf8("two"));
+		ByteBuffer data = aggregator.toByteBuffer();
+		assertTrue(RecordDeaggregator.isAggregated(data));
+		// flip a payload byte, the MD5 at the end no longer matches
+		int i = data.limit() - RecordAggregator.DIGEST_LENGTH - 1;
+		data.put(i, (byte) (data.get(i) ^ 1));
+		assertFalse(RecordDeaggregator.isAggregated(data));
+
+		Record container = container(data);
+		List<Record> records = RecordDeaggregator.deaggregate(Collections.singletonList(container));
+		assertEquals(1, records.size());
+		assertSame(container, records.get(0));
+	}
+
+	@Test
+	public void malformedMessageWithValidDigestIsPassedThrough() {
+		// a record tag claiming more bytes than there are, behind the magic and a correct MD5
+		byte[] message = { (byte) RecordAggregator.TAG_RECORD, 100, 1, 2, 3 };
+		MessageDigest md5 = RecordAggregator.md5();
+		byte[] digest = md5.digest(message);
+		ByteBuffer data = ByteBuffer.allocate(RecordAggregator.MAGIC.length + message.length + digest.length);
+		data.put(RecordAggregator.MAGIC).put(message).put(digest).flip();
+		assertTrue(RecordDeaggregator.isAggregated(data));
+
+		Record container = container(data);
+		List<Record> records = RecordDeaggregator.deaggregate(Collections.singletonList(container));
+		assertEquals(1, records.size());
+		assertSame(container, records.get(0));
+	}
+
+	@Test
+	public void plainRecordsAreLeftAlone() {
+		Record plain = container(utf8("just a record"));
+		List<Record> records = RecordDeaggregator.deaggregate(Collections.singletonList(plain));
+		assertEquals(1, records.size());
+		assertSame(plain, records.get(0));
+	}
+
+	private static Record container(ByteBuffer data) {
+		return new Record().withSequenceNumber("1").withPartitionKey("container").withData(data);
+	}
+
+	private static ByteBuffer utf8(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+}
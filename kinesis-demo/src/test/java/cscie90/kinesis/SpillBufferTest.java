@@ -0,0 +1,180 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * SpillBuffer: records spilled while Kinesis can't be reached survive a restart and are
+ * replayed in order, ahead of the records written after them.
+ */
+public class SpillBufferTest {
+
+	private static final String STREAM = "spill-test";
+	private static final int KEYS = 20;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void spilledRecordsAreReplayedInOrderAfterARestart() throws Exception {
+		UnreachableKinesis kinesis = new UnreachableKinesis();
+		KinesisUtils kus = new KinesisUtils();
+		kus.createMyStream(kinesis, STREAM, 2);
+
+		kinesis.down = true;
+		SpillBuffer spill = open(kinesis);
+		kus.setSpillBuffer(spill);
+		// enough to fill more than one segment
+		for (int i = 0; i < 5000; i++) {
+			assertNull(put(kus, kinesis, i));
+		}
+		assertEquals(5000, spill.getPendingRecords());
+		spill.close();
+
+		// the next process finds the records on disk
+		kinesis.down = false;
+		spill = open(kinesis);
+		kus.setSpillBuffer(spill);
+		assertTrue(spill.getPendingRecords() > 0);
+		// written while the replay runs, so they have to queue behind it
+		for (int i = 5000; i < 6000; i++) {
+			put(kus, kinesis, i);
+		}
+		long deadline = System.currentTimeMillis() + 30000;
+		while (!spill.isEmpty()) {
+			assertTrue(System.currentTimeMillis() < deadline, "replay timed out, "+spill.getPendingRecords()+" pending");
+			Thread.sleep(20);
+		}
+		spill.close();
+		// the acknowledged segments are deleted, only the one still written to is left
+		assertEquals(1, segmentFiles());
+
+		// every key's records arrive once and in the order they were written
+		Map<String, Integer> last = new HashMap<>();
+		int total = 0;
+		for (Shard shard : kus.getMyShards(kinesis, STREAM)) {
+			String iterator = kinesis.getShardIterator(STREAM, shard.getShardId(), "TRIM_HORIZON").getShardIterator();
+			while (iterator != null) {
+				GetRecordsResult result = kinesis.getRecords(new GetRecordsRequest().withShardIterator(iterator));
+				if (result.getRecords().isEmpty()) {
+					break;
+				}
+				for (Record record : result.getRecords()) {
+					String[] fields = StandardCharsets.UTF_8.decode(record.getData().duplicate()).toString().split(":");
+					int count = Integer.parseInt(fields[1]);
+					Integer previous = last.put(fields[0], count);
+					assertEquals(previous == null ? 0 : previous + 1, count, fields[0]+" out of order");
+					total++;
+				}
+				iterator = result.getNextShardIterator();
+			}
+		}
+		assertEquals(6000, total);
+		assertEquals(KEYS, last.size());
+	}
+
+	@Test
+	public void fullBufferRefusesRecords() throws Exception {
+		UnreachableKinesis kinesis = new UnreachableKinesis();
+		KinesisUtils kus = new KinesisUtils();
+		kus.createMyStream(kinesis, STREAM, 1);
+		kinesis.down = true;
+		try (SpillBuffer spill = open(kinesis)) {
+			spill.setMaxDiskBytes(4 * 1024 * 1024);
+			kus.setSpillBuffer(spill);
+			byte[] data = new byte[100000];
+			IllegalStateException full = null;
+			// later records queue behind the spilled ones until the cap
+			for (int i = 0; i < 1000 && full == null; i++) {
+				try {
+					assertNull(kus.putMyData(kinesis, data, "key", STREAM));
+				}
+				catch (IllegalStateException e) {
+					full = e;
+				}
+			}
+			assertTrue(full != null, "the buffer never filled up");
+			assertTrue(spill.getDiskBytes() <= 4 * 1024 * 1024);
+			assertEquals(spill.getSpilledRecords(), spill.getPendingRecords());
+		}
+	}
+
+	private SpillBuffer open(UnreachableKinesis kinesis) throws IOException {
+		SpillBuffer spill = new SpillBuffer(kinesis, dir);
+		spill.setSegmentBytes(2 * 1024 * 1024);
+		spill.setRetryBackoffMillis(10, 100);
+		return spill;
+	}
+
+	// the i-th record: its key, its count within the key and some padding
+	private static PutRecordResult put(KinesisUtils kus, UnreachableKinesis kinesis, int i) {
+		String key = "key"+(i % KEYS);
+		String value = key+":"+(i / KEYS)+":"+"x".repeat(500);
+		return kus.putMyData(kinesis, value.getBytes(StandardCharsets.UTF_8), key, STREAM);
+	}
+
+	private long segmentFiles() throws IOException {
+		long count = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*")) {
+			for (Path file : files) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// refuses every put while down, like a network outage
+	private static class UnreachableKinesis extends LocalKinesis {
+		volatile boolean down = false;
+
+		UnreachableKinesis() {
+			setThrottlingEnabled(false);
+		}
+
+		@Override
+		public PutRecordResult putRecord(PutRecordRequest request) {
+			if (down) {
+				throw new AmazonClientException("connection refused");
+			}
+			return super.putRecord(request);
+		}
+
+		@Override
+		public PutRecordsResult putRecords(PutRecordsRequest request) {
+			if (down) {
+				throw new AmazonClientException("connection refused");
+			}
+			return super.putRecords(request);
+		}
+	}
+}
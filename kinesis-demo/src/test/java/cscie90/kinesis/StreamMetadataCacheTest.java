@@ -0,0 +1,114 @@
+/*
+ * Greg Misicko
+ * cscie90 Cloud Computing
+ * Kinesis End to End Demo with Stream Management
+ * Dec 15 2014
+ */
+
+
+package cscie90.kinesis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * StreamMetadataCache: describeStream pages are shared between concurrent callers, and an
+ * invalidated shard list is refreshed from the last known shard, or reloaded after a split.
+ */
+public class StreamMetadataCacheTest {
+
+	private static final String STREAM = "cache-test";
+	// three describeStream pages
+	private static final int SHARDS = 250;
+
+	@Test
+	public void concurrentCallersShareOneLoad() throws Exception {
+		CountingKinesis kinesis = new CountingKinesis(20);
+		kinesis.createStream(STREAM, SHARDS);
+		StreamMetadataCache cache = new StreamMetadataCache();
+		ExecutorService callers = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<List<Shard>>> results = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				results.add(callers.submit(() -> cache.getShards(kinesis, STREAM)));
+			}
+			for (Future<List<Shard>> result : results) {
+				assertEquals(SHARDS, result.get().size());
+			}
+		}
+		finally {
+			callers.shutdown();
+		}
+		assertEquals(3, kinesis.describes.get());
+	}
+
+	@Test
+	public void invalidatedListPicksUpASplit() {
+		CountingKinesis kinesis = new CountingKinesis(0);
+		kinesis.createStream(STREAM, SHARDS);
+		StreamMetadataCache cache = new StreamMetadataCache();
+		Shard parent = cache.getShards(kinesis, STREAM).get(0);
+		assertEquals(3, kinesis.describes.get());
+
+		// nothing changed: one page listed after the last known shard
+		kinesis.describes.set(0);
+		cache.invalidate(kinesis, STREAM);
+		assertEquals(SHARDS, cache.getShards(kinesis, STREAM).size());
+		assertEquals(1, kinesis.describes.get());
+
+		new KinesisUtils().splitMyShard(kinesis, parent, STREAM);
+		kinesis.describes.set(0);
+		cache.invalidate(kinesis, STREAM);
+		List<Shard> shards = cache.getShards(kinesis, STREAM);
+		// the children close a shard the cache had as open, so the whole list is reloaded
+		assertEquals(1 + 3, kinesis.describes.get());
+		assertEquals(SHARDS + 2, shards.size());
+		Shard closed = shards.get(0);
+		assertEquals(parent.getShardId(), closed.getShardId());
+		assertTrue(ShardGraph.isClosed(closed));
+		List<Shard> open = cache.getOpenShards(kinesis, STREAM);
+		assertEquals(SHARDS + 1, open.size());
+		for (Shard shard : open) {
+			assertFalse(shard.getShardId().equals(parent.getShardId()));
+		}
+		assertEquals(parent.getShardId(), shards.get(SHARDS).getParentShardId());
+		assertEquals(parent.getShardId(), shards.get(SHARDS + 1).getParentShardId());
+	}
+
+	// counts describeStream calls, each taking the given time
+	private static class CountingKinesis extends LocalKinesis {
+		final AtomicInteger describes = new AtomicInteger();
+		private final long delayMillis;
+
+		CountingKinesis(long delayMillis) {
+			this.delayMillis = delayMillis;
+			setThrottlingEnabled(false);
+		}
+
+		@Override
+		public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+			describes.incrementAndGet();
+			try {
+				Thread.sleep(delayMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.describeStream(request);
+		}
+	}
+}